@@ -0,0 +1,223 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The future result of an asynchronous cache load. Listeners can be added to get notified when the result is available,
+ * so that the caller does not need to block. The load is shared by all callers, so it can't be cancelled.
+ *
+ * @author Ren de Bloois
+ * @param <T> The type of the result.
+ */
+public class CacheFuture<T> implements Future<T>
+{
+	static private final Logger log = LoggerFactory.getLogger( CacheFuture.class );
+
+	private boolean done;
+	private T value;
+	private Throwable throwable;
+	private List<Listener<? super T>> listeners;
+
+
+	/**
+	 * Returns a future that has already completed with the given value.
+	 *
+	 * @param value The value.
+	 * @return A future that has already completed.
+	 */
+	static public <T> CacheFuture<T> completed( T value )
+	{
+		CacheFuture<T> result = new CacheFuture<T>();
+		result.complete( value );
+		return result;
+	}
+
+	/**
+	 * Returns a future that has already failed with the given throwable.
+	 *
+	 * @param throwable The cause of the failure.
+	 * @return A future that has already failed.
+	 */
+	static public <T> CacheFuture<T> failed( Throwable throwable )
+	{
+		CacheFuture<T> result = new CacheFuture<T>();
+		result.fail( throwable );
+		return result;
+	}
+
+	/**
+	 * Adds a listener. When the future has completed already, the listener is called immediately in the current thread.
+	 * Otherwise it is called by the thread that completes the future.
+	 *
+	 * @param listener The listener.
+	 */
+	public void addListener( Listener<? super T> listener )
+	{
+		synchronized( this )
+		{
+			if( !this.done )
+			{
+				if( this.listeners == null )
+					this.listeners = new ArrayList<Listener<? super T>>( 2 );
+				this.listeners.add( listener );
+				return;
+			}
+		}
+		callListener( listener );
+	}
+
+	/**
+	 * Completes this future with a value.
+	 *
+	 * @param value The value.
+	 * @return True if this call completed the future, false if it had completed already.
+	 */
+	boolean complete( T value )
+	{
+		return done( value, null );
+	}
+
+	/**
+	 * Completes this future with a failure.
+	 *
+	 * @param throwable The cause of the failure.
+	 * @return True if this call completed the future, false if it had completed already.
+	 */
+	boolean fail( Throwable throwable )
+	{
+		if( throwable == null )
+			throw new NullPointerException( "throwable must not be null" );
+		return done( null, throwable );
+	}
+
+	private boolean done( T value, Throwable throwable )
+	{
+		List<Listener<? super T>> listeners;
+		synchronized( this )
+		{
+			if( this.done )
+				return false;
+			this.done = true;
+			this.value = value;
+			this.throwable = throwable;
+			listeners = this.listeners;
+			this.listeners = null;
+			notifyAll();
+		}
+
+		if( listeners != null )
+			for( Listener<? super T> listener : listeners )
+				callListener( listener );
+		return true;
+	}
+
+	private void callListener( Listener<? super T> listener )
+	{
+		try
+		{
+			if( this.throwable != null )
+				listener.failed( this.throwable );
+			else
+				listener.completed( this.value );
+		}
+		catch( RuntimeException e )
+		{
+			log.error( "Listener failed", e );
+		}
+	}
+
+	/**
+	 * A load can't be cancelled because it is shared.
+	 *
+	 * @return Always false.
+	 */
+	public boolean cancel( boolean mayInterruptIfRunning )
+	{
+		return false;
+	}
+
+	public boolean isCancelled()
+	{
+		return false;
+	}
+
+	synchronized public boolean isDone()
+	{
+		return this.done;
+	}
+
+	synchronized public T get() throws InterruptedException, ExecutionException
+	{
+		while( !this.done )
+			wait();
+		return result();
+	}
+
+	synchronized public T get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		long now = System.nanoTime();
+		long stop = now + unit.toNanos( timeout );
+		while( !this.done && now < stop )
+		{
+			TimeUnit.NANOSECONDS.timedWait( this, stop - now );
+			now = System.nanoTime();
+		}
+		if( !this.done )
+			throw new TimeoutException( "Timed out waiting for the cache entry to be loaded" );
+		return result();
+	}
+
+	private T result() throws ExecutionException
+	{
+		if( this.throwable != null )
+			throw new ExecutionException( this.throwable );
+		return this.value;
+	}
+
+	/**
+	 * Gets notified when a {@link CacheFuture} completes.
+	 *
+	 * @param <T> The type of the result.
+	 */
+	static public interface Listener<T>
+	{
+		/**
+		 * The future completed with a value.
+		 *
+		 * @param value The value.
+		 */
+		void completed( T value );
+
+		/**
+		 * The future completed with a failure.
+		 *
+		 * @param throwable The cause of the failure.
+		 */
+		void failed( Throwable throwable );
+	}
+}
@@ -0,0 +1,129 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+
+/**
+ * A key composed of multiple parts. The hash code is computed once, and two keys are equal when all their parts are
+ * equal. The parts are not converted to strings. The parts must be immutable, or at least not change while the key is
+ * in a cache. A key can only be serialized when all its parts are serializable.
+ *
+ * <p>
+ * The caches create these keys automatically when they are called with more than one key part. A key with a single part
+ * is used as is, so it is not wrapped in a CacheKey and no array is needed when calling the single key methods of the
+ * caches.
+ * </p>
+ *
+ * @author Ren de Bloois
+ * @since 2012
+ */
+public final class CacheKey implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The key used for a single null part, because the caches can't store null keys.
+	 */
+	static final CacheKey NULL = new CacheKey( new Object[] { null } );
+
+	private final Object[] parts;
+	private final transient int hash;
+
+
+	/**
+	 * Constructor. The array is not copied, so it should not be changed afterwards.
+	 *
+	 * @param parts The parts of the key.
+	 */
+	public CacheKey( Object... parts )
+	{
+		this.parts = parts;
+		this.hash = Arrays.hashCode( parts );
+	}
+
+	/**
+	 * Returns the key to use in the cache for the given key parts.
+	 *
+	 * @param parts The key parts.
+	 * @return The key to use in the cache.
+	 */
+	static Object toKey( Object[] parts )
+	{
+		if( parts.length == 1 )
+			return toKey( parts[ 0 ] );
+		return new CacheKey( parts );
+	}
+
+	/**
+	 * Returns the key to use in the cache for the given single key.
+	 *
+	 * @param key The key.
+	 * @return The key to use in the cache.
+	 */
+	static Object toKey( Object key )
+	{
+		if( key == null )
+			return NULL;
+		return key;
+	}
+
+	/**
+	 * Recomputes the hash code after deserialization, the hash codes of the parts may differ between JVMs.
+	 *
+	 * @return A new key with the same parts.
+	 */
+	private Object readResolve()
+	{
+		return new CacheKey( this.parts );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals( Object other )
+	{
+		if( other == this )
+			return true;
+		if( !( other instanceof CacheKey ) )
+			return false;
+		CacheKey key = (CacheKey)other;
+		return this.hash == key.hash && Arrays.equals( this.parts, key.parts );
+	}
+
+	/**
+	 * Returns the parts separated by semicolons. Only used for logging, so no escaping is done.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for( int i = 0; i < this.parts.length; i++ )
+		{
+			if( i > 0 )
+				result.append( ';' );
+			result.append( this.parts[ i ] );
+		}
+		return result.toString();
+	}
+}
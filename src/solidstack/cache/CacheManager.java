@@ -0,0 +1,751 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Manages named caches. All caches of a manager are purged by a single background thread, so that the threads calling
+ * the caches never need to purge. To keep the pauses short, each run of the maintenance thread sweeps the caches for a
+ * limited amount of time only, and continues where it left off in the next run.
+ *
+ * <p>
+ * The statistics of the managed caches can be registered with JMX, see {@link #setJmxEnabled(boolean)}.
+ * </p>
+ *
+ * <p>
+ * When a snapshot directory is set, the read-through caches are written to that directory at shutdown and optionally
+ * periodically, and read back when they are created again, see {@link #setSnapshotDirectory(File)}.
+ * </p>
+ *
+ * @author Ren de Bloois
+ * @since 2012
+ */
+public class CacheManager
+{
+	static private final Logger log = LoggerFactory.getLogger( CacheManager.class );
+
+	/**
+	 * Default interval between the runs of the maintenance thread, 1 second.
+	 */
+	static public final int DEFAULT_MAINTENANCE_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Default time a run of the maintenance thread may take, 10 milliseconds.
+	 */
+	static public final int DEFAULT_TIME_SLICE_MILLIS = 10;
+
+	/**
+	 * Default interval between two complete sweeps of a cache, 1 minute.
+	 */
+	static public final int DEFAULT_SWEEP_INTERVAL_MILLIS = 60000;
+
+	/**
+	 * The number of entries swept between two checks of the clock.
+	 */
+	static private final int CLOCK_CHECK_INTERVAL = 64;
+
+	/**
+	 * The default global cache manager.
+	 */
+	static private final CacheManager defaultManager = new CacheManager();
+
+	/**
+	 * The managed caches by name.
+	 */
+	private final ConcurrentMap<String, Sweeper<?, ?>> caches = new ConcurrentHashMap<String, Sweeper<?, ?>>();
+
+	/**
+	 * Current maintenance interval.
+	 */
+	private volatile int maintenanceIntervalMillis = DEFAULT_MAINTENANCE_INTERVAL_MILLIS;
+
+	/**
+	 * Current time slice.
+	 */
+	private volatile int timeSliceMillis = DEFAULT_TIME_SLICE_MILLIS;
+
+	/**
+	 * Current sweep interval.
+	 */
+	private volatile int sweepIntervalMillis = DEFAULT_SWEEP_INTERVAL_MILLIS;
+
+	/**
+	 * Register the statistics of the caches with JMX?
+	 */
+	private boolean jmxEnabled;
+
+	/**
+	 * The names of the statistics registered with JMX by cache name.
+	 */
+	private final Map<String, ObjectName> mbeans = new HashMap<String, ObjectName>();
+
+	/**
+	 * The directory to write the snapshots of the read-through caches to, or null.
+	 */
+	private volatile File snapshotDirectory;
+
+	/**
+	 * Current snapshot interval.
+	 */
+	private int snapshotIntervalMillis;
+
+	/**
+	 * The scheduled snapshot task.
+	 */
+	private ScheduledFuture<?> snapshots;
+
+	/**
+	 * The scheduler of the maintenance thread, created when the first cache is added.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The scheduled maintenance task.
+	 */
+	private ScheduledFuture<?> maintenance;
+
+	/**
+	 * The index of the cache to continue with in the next run. Only used by the maintenance thread.
+	 */
+	private int next;
+
+
+	/**
+	 * Gets the default global cache manager.
+	 *
+	 * @return The default global cache manager.
+	 */
+	static public CacheManager getManager()
+	{
+		return defaultManager;
+	}
+
+	/**
+	 * Returns the read-through cache with the given name. The cache is created when it does not exist yet.
+	 *
+	 * @param name The name of the cache.
+	 * @return The read-through cache with the given name.
+	 * @throws IllegalStateException When a cache of a different type exists with the given name.
+	 */
+	public ReadThroughCache getReadThroughCache( String name )
+	{
+		Sweeper<?, ?> sweeper = this.caches.get( name );
+		if( sweeper == null )
+		{
+			ReadThroughCache cache = new ReadThroughCache( name );
+			sweeper = register( name, cache.newSweeper() );
+			if( sweeper.getCache() == cache )
+			{
+				cache.setManager( this );
+				readSnapshot( cache );
+			}
+		}
+		Object result = sweeper.getCache();
+		if( !( result instanceof ReadThroughCache ) )
+			throw new IllegalStateException( "Cache [" + name + "] is not a ReadThroughCache" );
+		return (ReadThroughCache)result;
+	}
+
+	/**
+	 * Returns the simple cache with the given name. The cache is created when it does not exist yet.
+	 *
+	 * @param name The name of the cache.
+	 * @return The simple cache with the given name.
+	 * @throws IllegalStateException When a cache of a different type exists with the given name.
+	 */
+	public SimpleCache getSimpleCache( String name )
+	{
+		Sweeper<?, ?> sweeper = this.caches.get( name );
+		if( sweeper == null )
+		{
+			SimpleCache cache = new SimpleCache( name );
+			sweeper = register( name, cache.newSweeper() );
+			if( sweeper.getCache() == cache )
+				cache.setManager( this );
+		}
+		Object result = sweeper.getCache();
+		if( !( result instanceof SimpleCache ) )
+			throw new IllegalStateException( "Cache [" + name + "] is not a SimpleCache" );
+		return (SimpleCache)result;
+	}
+
+	/**
+	 * Adds an existing read-through cache to this manager. From now on the cache is purged by the maintenance thread of
+	 * this manager.
+	 *
+	 * @param cache The cache.
+	 * @throws IllegalArgumentException When the cache has no name.
+	 * @throws IllegalStateException When the name is taken already or the cache is managed already.
+	 */
+	public void manage( ReadThroughCache cache )
+	{
+		String name = checkName( cache.getName() );
+		cache.setManager( this );
+		if( register( name, cache.newSweeper() ).getCache() != cache )
+		{
+			cache.setManager( null );
+			throw new IllegalStateException( "A cache named [" + name + "] exists already" );
+		}
+		readSnapshot( cache );
+	}
+
+	/**
+	 * Adds an existing simple cache to this manager. From now on the cache is purged by the maintenance thread of this
+	 * manager.
+	 *
+	 * @param cache The cache.
+	 * @throws IllegalArgumentException When the cache has no name.
+	 * @throws IllegalStateException When the name is taken already or the cache is managed already.
+	 */
+	public void manage( SimpleCache cache )
+	{
+		String name = checkName( cache.getName() );
+		cache.setManager( this );
+		if( register( name, cache.newSweeper() ).getCache() != cache )
+		{
+			cache.setManager( null );
+			throw new IllegalStateException( "A cache named [" + name + "] exists already" );
+		}
+	}
+
+	/**
+	 * Removes the cache with the given name from this manager. The cache itself is not cleared, it will purge itself
+	 * again when it is used.
+	 *
+	 * @param name The name of the cache.
+	 * @return True if the cache was removed, false if no cache with the given name exists.
+	 */
+	public boolean release( String name )
+	{
+		Sweeper<?, ?> sweeper = this.caches.remove( name );
+		if( sweeper == null )
+			return false;
+		unregisterMBean( name );
+		Object cache = sweeper.getCache();
+		if( cache instanceof ReadThroughCache )
+			( (ReadThroughCache)cache ).setManager( null );
+		else
+			( (SimpleCache)cache ).setManager( null );
+		log.debug( "released [{}]", name );
+		return true;
+	}
+
+	/**
+	 * Returns the names of the managed caches.
+	 *
+	 * @return The names of the managed caches.
+	 */
+	public Set<String> getCacheNames()
+	{
+		return Collections.unmodifiableSet( new TreeSet<String>( this.caches.keySet() ) );
+	}
+
+	/**
+	 * Stops the maintenance thread, and writes the snapshots of the read-through caches when a snapshot directory is set.
+	 * The caches stay managed, the maintenance thread is started again when a cache is added or when one of the intervals
+	 * is changed.
+	 */
+	public void shutdown()
+	{
+		synchronized( this )
+		{
+			if( this.scheduler != null )
+			{
+				this.scheduler.shutdownNow();
+				this.scheduler = null;
+				this.maintenance = null;
+				this.snapshots = null;
+			}
+		}
+		if( this.snapshotDirectory != null )
+			writeSnapshots();
+	}
+
+	/**
+	 * Writes the snapshots of all read-through caches to the snapshot directory. Failures are logged.
+	 *
+	 * @throws IllegalStateException When no snapshot directory is set.
+	 */
+	public void writeSnapshots()
+	{
+		File directory = this.snapshotDirectory;
+		if( directory == null )
+			throw new IllegalStateException( "No snapshot directory set" );
+
+		for( Sweeper<?, ?> sweeper : this.caches.values() )
+			if( sweeper.getCache() instanceof ReadThroughCache )
+			{
+				ReadThroughCache cache = (ReadThroughCache)sweeper.getCache();
+				try
+				{
+					cache.writeSnapshot( getSnapshotFile( directory, cache.getName() ) );
+				}
+				catch( RuntimeException e )
+				{
+					log.error( "Could not write the snapshot of cache [" + cache.getName() + "]", e );
+				}
+			}
+	}
+
+
+	// ---------- Getters & Setters
+
+	/**
+	 * Returns the interval between the runs of the maintenance thread.
+	 *
+	 * @return The interval between the runs of the maintenance thread.
+	 */
+	public int getMaintenanceIntervalMillis()
+	{
+		return this.maintenanceIntervalMillis;
+	}
+
+	/**
+	 * Sets the interval between the runs of the maintenance thread.
+	 *
+	 * @param maintenanceIntervalMillis The interval between the runs of the maintenance thread.
+	 */
+	public void setMaintenanceIntervalMillis( int maintenanceIntervalMillis )
+	{
+		if( maintenanceIntervalMillis <= 0 )
+			throw new IllegalArgumentException( "maintenanceIntervalMillis must be positive" );
+		this.maintenanceIntervalMillis = maintenanceIntervalMillis;
+		reschedule();
+	}
+
+	/**
+	 * Returns the time a run of the maintenance thread may take.
+	 *
+	 * @return The time a run of the maintenance thread may take.
+	 */
+	public int getTimeSliceMillis()
+	{
+		return this.timeSliceMillis;
+	}
+
+	/**
+	 * Sets the time a run of the maintenance thread may take. When the time is up, the next run continues where this run
+	 * left off.
+	 *
+	 * @param timeSliceMillis The time a run of the maintenance thread may take.
+	 */
+	public void setTimeSliceMillis( int timeSliceMillis )
+	{
+		if( timeSliceMillis <= 0 )
+			throw new IllegalArgumentException( "timeSliceMillis must be positive" );
+		this.timeSliceMillis = timeSliceMillis;
+	}
+
+	/**
+	 * Returns the interval between two complete sweeps of a cache.
+	 *
+	 * @return The interval between two complete sweeps of a cache.
+	 */
+	public int getSweepIntervalMillis()
+	{
+		return this.sweepIntervalMillis;
+	}
+
+	/**
+	 * Sets the interval between two complete sweeps of a cache.
+	 *
+	 * @param sweepIntervalMillis The interval between two complete sweeps of a cache.
+	 */
+	public void setSweepIntervalMillis( int sweepIntervalMillis )
+	{
+		if( sweepIntervalMillis < 0 )
+			throw new IllegalArgumentException( "sweepIntervalMillis can't be negative" );
+		this.sweepIntervalMillis = sweepIntervalMillis;
+	}
+
+	/**
+	 * Returns true if the statistics of the caches are registered with JMX.
+	 *
+	 * @return True if the statistics of the caches are registered with JMX.
+	 */
+	synchronized public boolean isJmxEnabled()
+	{
+		return this.jmxEnabled;
+	}
+
+	/**
+	 * Enables or disables the registration of the statistics of the caches with the platform MBean server. The statistics
+	 * of a cache are registered as "solidstack.cache:type=[ReadThroughCache|SimpleCache],name=[name of the cache]".
+	 *
+	 * @param jmxEnabled True to register the statistics of the caches with JMX.
+	 */
+	synchronized public void setJmxEnabled( boolean jmxEnabled )
+	{
+		if( jmxEnabled == this.jmxEnabled )
+			return;
+		this.jmxEnabled = jmxEnabled;
+		for( String name : this.caches.keySet() )
+			if( jmxEnabled )
+				registerMBean( name );
+			else
+				unregisterMBean( name );
+	}
+
+
+	/**
+	 * Returns the directory to write the snapshots of the read-through caches to.
+	 *
+	 * @return The directory to write the snapshots of the read-through caches to, or null.
+	 */
+	public File getSnapshotDirectory()
+	{
+		return this.snapshotDirectory;
+	}
+
+	/**
+	 * Sets the directory to write the snapshots of the read-through caches to. Each cache gets its own file named after
+	 * the cache. The snapshots are written when this manager shuts down and every snapshot interval. When a read-through
+	 * cache is created by {@link #getReadThroughCache(String)} or added with {@link #manage(ReadThroughCache)}, its
+	 * snapshot is read back, so that the cache starts warm.
+	 *
+	 * @param snapshotDirectory The directory to write the snapshots to, or null to disable the snapshots.
+	 */
+	public void setSnapshotDirectory( File snapshotDirectory )
+	{
+		this.snapshotDirectory = snapshotDirectory;
+	}
+
+	/**
+	 * Returns the interval between the periodic snapshots.
+	 *
+	 * @return The interval between the periodic snapshots, 0 when disabled.
+	 */
+	synchronized public int getSnapshotIntervalMillis()
+	{
+		return this.snapshotIntervalMillis;
+	}
+
+	/**
+	 * Sets the interval between the periodic snapshots. The snapshots are written by the maintenance thread.
+	 *
+	 * @param snapshotIntervalMillis The interval between the periodic snapshots, 0 to only write snapshots at shutdown.
+	 */
+	public void setSnapshotIntervalMillis( int snapshotIntervalMillis )
+	{
+		if( snapshotIntervalMillis < 0 )
+			throw new IllegalArgumentException( "snapshotIntervalMillis can't be negative" );
+		synchronized( this )
+		{
+			this.snapshotIntervalMillis = snapshotIntervalMillis;
+		}
+		reschedule();
+	}
+
+
+	// ---------- Maintenance
+
+	/**
+	 * Returns the snapshot file of a cache. Characters other than letters, digits, dots and dashes are escaped as an
+	 * underscore followed by 4 hexadecimal digits, so that different caches never share a snapshot file.
+	 */
+	static private File getSnapshotFile( File directory, String name )
+	{
+		StringBuilder result = new StringBuilder( name.length() + 16 );
+		for( int i = 0; i < name.length(); i++ )
+		{
+			char c = name.charAt( i );
+			if( c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' || c == '-' )
+				result.append( c );
+			else
+				result.append( '_' ).append( Integer.toHexString( c | 0x10000 ).substring( 1 ) );
+		}
+		return new File( directory, result.append( ".snapshot" ).toString() );
+	}
+
+	private void readSnapshot( ReadThroughCache cache )
+	{
+		File directory = this.snapshotDirectory;
+		if( directory == null )
+			return;
+		File file = getSnapshotFile( directory, cache.getName() );
+		if( !file.exists() )
+			return;
+		try
+		{
+			int count = cache.readSnapshot( file );
+			log.info( "Cache [{}] started with {} entries from its snapshot", cache.getName(), count );
+		}
+		catch( RuntimeException e )
+		{
+			log.error( "Could not read the snapshot of cache [" + cache.getName() + "]", e );
+		}
+	}
+
+	private String checkName( String name )
+	{
+		if( name == null )
+			throw new IllegalArgumentException( "Only named caches can be managed" );
+		return name;
+	}
+
+	/**
+	 * Registers the sweeper of a cache, unless a cache with the same name exists already.
+	 *
+	 * @param name The name of the cache.
+	 * @param sweeper The sweeper of the cache.
+	 * @return The sweeper registered with the given name, which is the given sweeper when the registration succeeded.
+	 */
+	private Sweeper<?, ?> register( String name, Sweeper<?, ?> sweeper )
+	{
+		Sweeper<?, ?> existing = this.caches.putIfAbsent( name, sweeper );
+		if( existing != null )
+			return existing;
+		log.debug( "managing [{}]", name );
+		start();
+		synchronized( this )
+		{
+			if( this.jmxEnabled )
+				registerMBean( name );
+		}
+		return sweeper;
+	}
+
+	synchronized private void registerMBean( String name )
+	{
+		Sweeper<?, ?> sweeper = this.caches.get( name );
+		if( sweeper == null || this.mbeans.containsKey( name ) )
+			return;
+		Object cache = sweeper.getCache();
+		CacheStatistics statistics;
+		String type;
+		if( cache instanceof ReadThroughCache )
+		{
+			statistics = ( (ReadThroughCache)cache ).getStatistics();
+			type = "ReadThroughCache";
+		}
+		else
+		{
+			statistics = ( (SimpleCache)cache ).getStatistics();
+			type = "SimpleCache";
+		}
+
+		try
+		{
+			ObjectName objectName = new ObjectName( "solidstack.cache:type=" + type + ",name=" + ObjectName.quote( name ) );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( statistics, objectName );
+			this.mbeans.put( name, objectName );
+		}
+		catch( JMException e )
+		{
+			log.warn( "Could not register the statistics of cache [" + name + "] with JMX", e );
+		}
+	}
+
+	synchronized private void unregisterMBean( String name )
+	{
+		ObjectName objectName = this.mbeans.remove( name );
+		if( objectName == null )
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+		}
+		catch( JMException e )
+		{
+			log.warn( "Could not unregister the statistics of cache [" + name + "] from JMX", e );
+		}
+	}
+
+	synchronized private void start()
+	{
+		if( this.scheduler == null )
+		{
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor( 1, new DaemonThreadFactory( "CacheManager" ) );
+			scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+			this.scheduler = scheduler;
+		}
+		if( this.maintenance == null )
+		{
+			long interval = this.maintenanceIntervalMillis;
+			this.maintenance = this.scheduler.scheduleWithFixedDelay( new Runnable()
+			{
+				public void run()
+				{
+					maintain();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS );
+		}
+		if( this.snapshots == null && this.snapshotIntervalMillis > 0 )
+		{
+			long interval = this.snapshotIntervalMillis;
+			this.snapshots = this.scheduler.scheduleWithFixedDelay( new Runnable()
+			{
+				public void run()
+				{
+					if( CacheManager.this.snapshotDirectory != null )
+						writeSnapshots();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	synchronized private void reschedule()
+	{
+		if( this.maintenance != null )
+		{
+			this.maintenance.cancel( false );
+			this.maintenance = null;
+		}
+		if( this.snapshots != null )
+		{
+			this.snapshots.cancel( false );
+			this.snapshots = null;
+		}
+		if( !this.caches.isEmpty() )
+			start();
+	}
+
+	/**
+	 * Sweeps the caches round robin until the time slice is used up.
+	 */
+	void maintain()
+	{
+		try
+		{
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( this.timeSliceMillis );
+			int sweepInterval = this.sweepIntervalMillis;
+
+			List<Sweeper<?, ?>> sweepers = new ArrayList<Sweeper<?, ?>>( this.caches.values() );
+			int count = sweepers.size();
+			for( int i = 0; i < count; i++ )
+			{
+				if( this.next >= count )
+					this.next = 0;
+				if( !sweepers.get( this.next ).sweep( deadline, sweepInterval ) )
+					return; // Time is up, continue with the same cache in the next run
+				this.next++;
+			}
+		}
+		catch( Throwable t )
+		{
+			log.error( "Cache maintenance failed", t ); // Never let the scheduled task die
+		}
+	}
+
+	/**
+	 * Sweeps a cache in time slices. Holds on to an iterator over the entries of the cache between time slices. The
+	 * iterators of the caches are weakly consistent, so changes to the cache while it is being swept are allowed. Only
+	 * used by the maintenance thread.
+	 *
+	 * @param <K> The type of the keys.
+	 * @param <V> The type of the entries.
+	 */
+	static abstract class Sweeper<K, V>
+	{
+		private Iterator<Map.Entry<K, V>> iterator;
+		private long nextSweepMillis;
+
+		/**
+		 * Returns the cache that is swept by this sweeper.
+		 *
+		 * @return The cache that is swept by this sweeper.
+		 */
+		abstract Object getCache();
+
+		/**
+		 * Returns the current time in milliseconds, according to the cache.
+		 *
+		 * @return The current time in milliseconds.
+		 */
+		abstract long getTime();
+
+		/**
+		 * Returns an iterator over the entries of the cache.
+		 *
+		 * @return An iterator over the entries of the cache.
+		 */
+		abstract Iterator<Map.Entry<K, V>> iterator();
+
+		/**
+		 * Sweeps a single entry.
+		 *
+		 * @param key The key of the entry.
+		 * @param entry The entry.
+		 * @param now The now.
+		 */
+		abstract void sweep( K key, V entry, long now );
+
+		/**
+		 * Called when a complete sweep has finished.
+		 *
+		 * @param now The now at the start of the sweep.
+		 */
+		void swept( long now )
+		{
+			// Nothing by default
+		}
+
+		/**
+		 * Sweeps the cache until the deadline has passed.
+		 *
+		 * @param deadline The deadline in nanoseconds, according to {@link System#nanoTime()}.
+		 * @param sweepInterval The interval between two complete sweeps.
+		 * @return True if the sweep is complete or was not due yet, false if the time is up.
+		 */
+		boolean sweep( long deadline, int sweepInterval )
+		{
+			long now = getTime();
+			if( this.iterator == null )
+			{
+				if( now < this.nextSweepMillis )
+					return true;
+				this.iterator = iterator();
+				this.nextSweepMillis = now + sweepInterval;
+			}
+
+			int count = 0;
+			while( this.iterator.hasNext() )
+			{
+				if( ++count % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - deadline >= 0 )
+					return false;
+				Map.Entry<K, V> entry = this.iterator.next();
+				sweep( entry.getKey(), entry.getValue(), now );
+			}
+			this.iterator = null;
+			swept( now );
+			return true;
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The statistics of a cache. The counters are striped, so that they can be updated by many threads at the same time
+ * without contention. The getters return the live values, {@link #snapshot()} returns all values at once. The
+ * statistics can be registered with JMX through the {@link CacheManager}.
+ *
+ * <p>
+ * The load times are recorded in a histogram with buckets of increasing size. The upper limit of each bucket is twice
+ * the upper limit of the previous bucket, see {@link #getLoadTimeBucketLimitsMicros()}.
+ * </p>
+ *
+ * @author Ren de Bloois
+ * @since 2012
+ */
+public abstract class CacheStatistics implements CacheStatisticsMBean
+{
+	/**
+	 * Number of buckets in the load time histogram. The last bucket has no upper limit.
+	 */
+	static private final int BUCKETS = 26;
+
+	final StripedCounter hits = new StripedCounter();
+	final StripedCounter misses = new StripedCounter();
+	final StripedCounter graceHits = new StripedCounter();
+	final StripedCounter backgroundLoads = new StripedCounter();
+	final StripedCounter loadSuccesses = new StripedCounter();
+	final StripedCounter loadFailures = new StripedCounter();
+	final StripedCounter timeouts = new StripedCounter();
+	final StripedCounter evictions = new StripedCounter();
+	final StripedCounter purges = new StripedCounter();
+
+	private final StripedCounter loadNanos = new StripedCounter();
+	private final AtomicLongArray loadTimes = new AtomicLongArray( BUCKETS );
+
+
+	/**
+	 * Constructor.
+	 */
+	CacheStatistics()
+	{
+		// Only the caches create statistics
+	}
+
+	/**
+	 * Returns the current number of entries in the cache.
+	 *
+	 * @return The current number of entries in the cache.
+	 */
+	abstract public int getSize();
+
+	/**
+	 * Records the time a load took.
+	 *
+	 * @param nanos The time in nanoseconds.
+	 * @param success Whether the load succeeded.
+	 */
+	void loaded( long nanos, boolean success )
+	{
+		if( success )
+			this.loadSuccesses.increment();
+		else
+			this.loadFailures.increment();
+		this.loadNanos.add( nanos );
+		int bucket = 64 - Long.numberOfLeadingZeros( nanos / 1000 );
+		this.loadTimes.incrementAndGet( bucket < BUCKETS ? bucket : BUCKETS - 1 );
+	}
+
+	/**
+	 * Returns the exclusive upper limits of the buckets of the load time histogram in microseconds. The last bucket has
+	 * {@link Long#MAX_VALUE} as its upper limit.
+	 *
+	 * @return The upper limits of the buckets of the load time histogram.
+	 */
+	static public long[] getLoadTimeBucketLimitsMicros()
+	{
+		long[] result = new long[ BUCKETS ];
+		for( int i = 0; i < BUCKETS - 1; i++ )
+			result[ i ] = 1L << i;
+		result[ BUCKETS - 1 ] = Long.MAX_VALUE;
+		return result;
+	}
+
+	public long getHitCount()
+	{
+		return this.hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return this.misses.get();
+	}
+
+	public long getGraceHitCount()
+	{
+		return this.graceHits.get();
+	}
+
+	public long getBackgroundLoadCount()
+	{
+		return this.backgroundLoads.get();
+	}
+
+	public long getLoadSuccessCount()
+	{
+		return this.loadSuccesses.get();
+	}
+
+	public long getLoadFailureCount()
+	{
+		return this.loadFailures.get();
+	}
+
+	public long getTimeoutCount()
+	{
+		return this.timeouts.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return this.evictions.get();
+	}
+
+	public long getPurgeCount()
+	{
+		return this.purges.get();
+	}
+
+	public double getHitRatio()
+	{
+		return snapshot().getHitRatio();
+	}
+
+	public double getAverageLoadTimeMillis()
+	{
+		return snapshot().getAverageLoadTimeMillis();
+	}
+
+	public long[] getLoadTimeHistogram()
+	{
+		long[] result = new long[ BUCKETS ];
+		for( int i = 0; i < BUCKETS; i++ )
+			result[ i ] = this.loadTimes.get( i );
+		return result;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics.
+	 *
+	 * @return A snapshot of the statistics.
+	 */
+	public Snapshot snapshot()
+	{
+		return new Snapshot( this );
+	}
+
+	@Override
+	public String toString()
+	{
+		return snapshot().toString();
+	}
+
+	/**
+	 * An immutable copy of the statistics of a cache. The counters are read one after the other, so they are not
+	 * guaranteed to be consistent with each other when the cache is in use.
+	 */
+	static public class Snapshot
+	{
+		private long hits, misses, graceHits, backgroundLoads, loadSuccesses, loadFailures, timeouts, evictions, purges;
+		private long loadNanos;
+		private long[] loadTimes;
+		private int size;
+
+		Snapshot( CacheStatistics statistics )
+		{
+			this.hits = statistics.hits.get();
+			this.misses = statistics.misses.get();
+			this.graceHits = statistics.graceHits.get();
+			this.backgroundLoads = statistics.backgroundLoads.get();
+			this.loadSuccesses = statistics.loadSuccesses.get();
+			this.loadFailures = statistics.loadFailures.get();
+			this.timeouts = statistics.timeouts.get();
+			this.evictions = statistics.evictions.get();
+			this.purges = statistics.purges.get();
+			this.loadNanos = statistics.loadNanos.get();
+			this.loadTimes = statistics.getLoadTimeHistogram();
+			this.size = statistics.getSize();
+		}
+
+		/**
+		 * @return The number of values served from the cache.
+		 */
+		public long getHitCount()
+		{
+			return this.hits;
+		}
+
+		/**
+		 * @return The number of values that were not found or expired, which caused the caller to load the value.
+		 */
+		public long getMissCount()
+		{
+			return this.misses;
+		}
+
+		/**
+		 * @return The number of old values served during their grace period while they were being reloaded.
+		 */
+		public long getGraceHitCount()
+		{
+			return this.graceHits;
+		}
+
+		/**
+		 * @return The number of background reloads started.
+		 */
+		public long getBackgroundLoadCount()
+		{
+			return this.backgroundLoads;
+		}
+
+		/**
+		 * @return The number of successful loads.
+		 */
+		public long getLoadSuccessCount()
+		{
+			return this.loadSuccesses;
+		}
+
+		/**
+		 * @return The number of failed loads.
+		 */
+		public long getLoadFailureCount()
+		{
+			return this.loadFailures;
+		}
+
+		/**
+		 * @return The number of loads that timed out and callers that timed out waiting for a load.
+		 */
+		public long getTimeoutCount()
+		{
+			return this.timeouts;
+		}
+
+		/**
+		 * @return The number of entries evicted because the cache was full.
+		 */
+		public long getEvictionCount()
+		{
+			return this.evictions;
+		}
+
+		/**
+		 * @return The number of entries purged because they were too old.
+		 */
+		public long getPurgeCount()
+		{
+			return this.purges;
+		}
+
+		/**
+		 * @return The number of entries in the cache.
+		 */
+		public int getSize()
+		{
+			return this.size;
+		}
+
+		/**
+		 * @return The fraction of the requests that were served from the cache, including the grace hits.
+		 */
+		public double getHitRatio()
+		{
+			long requests = this.hits + this.graceHits + this.misses;
+			return requests == 0 ? 1 : (double)( this.hits + this.graceHits ) / requests;
+		}
+
+		/**
+		 * @return The average load time in milliseconds.
+		 */
+		public double getAverageLoadTimeMillis()
+		{
+			long loads = this.loadSuccesses + this.loadFailures;
+			return loads == 0 ? 0 : this.loadNanos / 1000000d / loads;
+		}
+
+		/**
+		 * @return The number of loads per load time bucket, see {@link CacheStatistics#getLoadTimeBucketLimitsMicros()}.
+		 */
+		public long[] getLoadTimeHistogram()
+		{
+			return this.loadTimes.clone();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "hits=" + this.hits + ", misses=" + this.misses + ", graceHits=" + this.graceHits
+					+ ", backgroundLoads=" + this.backgroundLoads + ", loadSuccesses=" + this.loadSuccesses
+					+ ", loadFailures=" + this.loadFailures + ", timeouts=" + this.timeouts + ", evictions=" + this.evictions
+					+ ", purges=" + this.purges + ", size=" + this.size;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+
+/**
+ * The JMX management interface of the {@link CacheStatistics}.
+ *
+ * @author Ren de Bloois
+ */
+public interface CacheStatisticsMBean
+{
+	/**
+	 * @return The number of values served from the cache.
+	 */
+	long getHitCount();
+
+	/**
+	 * @return The number of values that were not found or expired, which caused the caller to load the value.
+	 */
+	long getMissCount();
+
+	/**
+	 * @return The number of old values served during their grace period while they were being reloaded.
+	 */
+	long getGraceHitCount();
+
+	/**
+	 * @return The number of background reloads started.
+	 */
+	long getBackgroundLoadCount();
+
+	/**
+	 * @return The number of successful loads.
+	 */
+	long getLoadSuccessCount();
+
+	/**
+	 * @return The number of failed loads.
+	 */
+	long getLoadFailureCount();
+
+	/**
+	 * @return The number of loads that timed out and callers that timed out waiting for a load.
+	 */
+	long getTimeoutCount();
+
+	/**
+	 * @return The number of entries evicted because the cache was full.
+	 */
+	long getEvictionCount();
+
+	/**
+	 * @return The number of entries purged because they were too old.
+	 */
+	long getPurgeCount();
+
+	/**
+	 * @return The current number of entries in the cache.
+	 */
+	int getSize();
+
+	/**
+	 * @return The fraction of the requests that were served from the cache, including the grace hits.
+	 */
+	double getHitRatio();
+
+	/**
+	 * @return The average load time in milliseconds.
+	 */
+	double getAverageLoadTimeMillis();
+
+	/**
+	 * @return The number of loads per load time bucket, see {@link CacheStatistics#getLoadTimeBucketLimitsMicros()}.
+	 */
+	long[] getLoadTimeHistogram();
+}
@@ -0,0 +1,49 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Creates named daemon threads, so that the threads of the cache never keep the JVM alive.
+ *
+ * @author Ren de Bloois
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+	private String name;
+	private AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name The prefix of the thread names.
+	 */
+	DaemonThreadFactory( String name )
+	{
+		this.name = name;
+	}
+
+	public Thread newThread( Runnable runnable )
+	{
+		Thread thread = new Thread( runnable, this.name + "-" + this.count.incrementAndGet() );
+		thread.setDaemon( true );
+		return thread;
+	}
+}
@@ -0,0 +1,123 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+
+/**
+ * A count-min sketch which estimates how often a key has been used recently. Counters saturate at 15 and all counters
+ * are halved when the number of increments reaches 10 times the capacity, so that old popularity fades away. This class
+ * is NOT threadsafe.
+ *
+ * @author Ren de Bloois
+ */
+class FrequencySketch
+{
+	static private final int[] SEEDS = { 0x97CB3127, 0xB7D6A3C5, 0xC2B2AE35, 0x9E3779B9 };
+	static private final int MAX_COUNT = 15;
+
+	private byte[][] rows;
+	private int mask;
+	private int additions;
+	private int sampleSize;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The expected number of different keys.
+	 */
+	FrequencySketch( int capacity )
+	{
+		ensureCapacity( capacity );
+	}
+
+	/**
+	 * Makes sure the sketch is large enough for the given number of keys. Growing the sketch forgets all frequencies.
+	 *
+	 * @param capacity The expected number of different keys.
+	 */
+	void ensureCapacity( int capacity )
+	{
+		int width = 16;
+		while( width < capacity && width < 1 << 24 )
+			width <<= 1;
+		if( this.rows != null && this.rows[ 0 ].length >= width )
+			return;
+
+		this.rows = new byte[ SEEDS.length ][ width ];
+		this.mask = width - 1;
+		this.additions = 0;
+		this.sampleSize = width * 10;
+	}
+
+	/**
+	 * Increments the frequency of the given key.
+	 *
+	 * @param key The key.
+	 */
+	void increment( Object key )
+	{
+		int hash = key.hashCode();
+		boolean added = false;
+		for( int i = 0; i < SEEDS.length; i++ )
+		{
+			byte[] row = this.rows[ i ];
+			int index = index( hash, i );
+			if( row[ index ] < MAX_COUNT )
+			{
+				row[ index ]++;
+				added = true;
+			}
+		}
+		if( added && ++this.additions >= this.sampleSize )
+			age();
+	}
+
+	/**
+	 * Returns the estimated frequency of the given key.
+	 *
+	 * @param key The key.
+	 * @return The estimated frequency of the given key.
+	 */
+	int frequency( Object key )
+	{
+		int hash = key.hashCode();
+		int result = MAX_COUNT;
+		for( int i = 0; i < SEEDS.length; i++ )
+		{
+			int count = this.rows[ i ][ index( hash, i ) ];
+			if( count < result )
+				result = count;
+		}
+		return result;
+	}
+
+	private int index( int hash, int row )
+	{
+		int h = hash * SEEDS[ row ];
+		h ^= h >>> 16;
+		return h & this.mask;
+	}
+
+	private void age()
+	{
+		for( byte[] row : this.rows )
+			for( int i = 0; i < row.length; i++ )
+				row[ i ] >>= 1;
+		this.additions /= 2;
+	}
+}
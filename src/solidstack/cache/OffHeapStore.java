@@ -0,0 +1,333 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Stores serialized values outside of the Java heap, so that large values that are rarely used do not burden the garbage
+ * collector. The memory consists of direct byte buffers which are divided into pages. The buffers are allocated when
+ * they are needed, up to the capacity. A value occupies as many pages as it needs, the pages do not need to be adjacent.
+ * When there are not enough free pages, the least recently stored values are dropped.
+ *
+ * <p>
+ * All methods are synchronized. Values are only copied while holding the lock, serialization is done by the caller.
+ * </p>
+ *
+ * @author Ren de Bloois
+ */
+class OffHeapStore
+{
+	/**
+	 * The size of a page.
+	 */
+	static final int PAGE_SIZE = 8192;
+
+	/**
+	 * The number of pages in a direct byte buffer.
+	 */
+	static private final int SEGMENT_PAGES = 1024;
+
+	private final int maxPages;
+	private ByteBuffer[] segments;
+	private int allocatedPages;
+	private int[] freePages;
+	private int freeCount;
+
+	/**
+	 * The records in the order they were stored.
+	 */
+	private final Map<Object, Record> records = new LinkedHashMap<Object, Record>();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The maximum number of bytes to use, rounded down to whole pages.
+	 */
+	OffHeapStore( long capacity )
+	{
+		long pages = capacity / PAGE_SIZE;
+		if( pages > Integer.MAX_VALUE / 2 )
+			throw new IllegalArgumentException( "capacity too large" );
+		this.maxPages = (int)pages;
+		this.segments = new ByteBuffer[ ( this.maxPages + SEGMENT_PAGES - 1 ) / SEGMENT_PAGES ];
+		this.freePages = new int[ 0 ];
+	}
+
+	/**
+	 * Stores a serialized value. Replaces the value stored with the same key. The least recently stored values are dropped
+	 * to make room.
+	 *
+	 * @param key The key.
+	 * @param data The serialized value.
+	 * @param stored The time the value was stored in the cache.
+	 * @param expiration The time the value expires.
+	 * @param loadMillis The time it took to load the value.
+	 * @return False if the value is larger than the capacity.
+	 */
+	synchronized boolean put( Object key, byte[] data, long stored, long expiration, int loadMillis )
+	{
+		free( this.records.remove( key ) );
+
+		int needed = ( data.length + PAGE_SIZE - 1 ) / PAGE_SIZE;
+		if( needed > this.maxPages )
+			return false;
+
+		while( this.freeCount < needed && !allocateSegment() )
+		{
+			Iterator<Record> eldest = this.records.values().iterator();
+			free( eldest.next() );
+			eldest.remove();
+		}
+
+		int[] pages = new int[ needed ];
+		for( int i = 0; i < needed; i++ )
+		{
+			int page = this.freePages[ --this.freeCount ];
+			pages[ i ] = page;
+			ByteBuffer buffer = page( page );
+			buffer.put( data, i * PAGE_SIZE, Math.min( PAGE_SIZE, data.length - i * PAGE_SIZE ) );
+		}
+		this.records.put( key, new Record( pages, data.length, stored, expiration, loadMillis ) );
+		return true;
+	}
+
+	/**
+	 * Removes a value.
+	 *
+	 * @param key The key.
+	 * @return The removed value, or null if there was no value with the given key.
+	 */
+	synchronized Value remove( Object key )
+	{
+		Record record = this.records.remove( key );
+		if( record == null )
+			return null;
+
+		byte[] data = new byte[ record.length ];
+		for( int i = 0; i < record.pages.length; i++ )
+			page( record.pages[ i ] ).get( data, i * PAGE_SIZE, Math.min( PAGE_SIZE, data.length - i * PAGE_SIZE ) );
+		free( record );
+		return new Value( data, record.stored, record.expire, record.loadMillis );
+	}
+
+	/**
+	 * Removes all values that expired before the given time.
+	 *
+	 * @param expiredBefore The values that expired before this time are removed.
+	 * @param storedBefore The values that were stored before this time are removed.
+	 * @return The number of values removed.
+	 */
+	synchronized int purge( long expiredBefore, long storedBefore )
+	{
+		int result = 0;
+		for( Iterator<Record> i = this.records.values().iterator(); i.hasNext(); )
+		{
+			Record record = i.next();
+			if( record.expire < expiredBefore || record.stored < storedBefore )
+			{
+				free( record );
+				i.remove();
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the capacity.
+	 *
+	 * @return The capacity in bytes.
+	 */
+	long getCapacity()
+	{
+		return (long)this.maxPages * PAGE_SIZE;
+	}
+
+	/**
+	 * Returns the number of values stored.
+	 *
+	 * @return The number of values stored.
+	 */
+	synchronized int size()
+	{
+		return this.records.size();
+	}
+
+	/**
+	 * Returns the number of bytes in use, including the unused parts of the last pages of the values.
+	 *
+	 * @return The number of bytes in use.
+	 */
+	synchronized long getUsedBytes()
+	{
+		return (long)( this.allocatedPages - this.freeCount ) * PAGE_SIZE;
+	}
+
+	/**
+	 * Returns a buffer positioned at the start of the given page, with its limit at the end of the page.
+	 */
+	private ByteBuffer page( int page )
+	{
+		ByteBuffer result = this.segments[ page / SEGMENT_PAGES ].duplicate();
+		int start = page % SEGMENT_PAGES * PAGE_SIZE;
+		result.limit( start + PAGE_SIZE );
+		result.position( start );
+		return result;
+	}
+
+	private void free( Record record )
+	{
+		if( record == null )
+			return;
+		for( int page : record.pages )
+			this.freePages[ this.freeCount++ ] = page;
+	}
+
+	private boolean allocateSegment()
+	{
+		if( this.allocatedPages >= this.maxPages )
+			return false;
+
+		int pages = Math.min( SEGMENT_PAGES, this.maxPages - this.allocatedPages );
+		this.segments[ this.allocatedPages / SEGMENT_PAGES ] = ByteBuffer.allocateDirect( pages * PAGE_SIZE );
+
+		int[] freePages = new int[ this.allocatedPages + pages ];
+		System.arraycopy( this.freePages, 0, freePages, 0, this.freeCount );
+		for( int i = 0; i < pages; i++ )
+			freePages[ this.freeCount++ ] = this.allocatedPages + i;
+		this.freePages = freePages;
+		this.allocatedPages += pages;
+		return true;
+	}
+
+	/**
+	 * Serializes a value.
+	 *
+	 * @param value The value.
+	 * @return The serialized value.
+	 * @throws IOException When the value can't be serialized.
+	 */
+	static byte[] serialize( Object value ) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( 1024 );
+		ObjectOutputStream out = new ObjectOutputStream( bytes );
+		out.writeObject( value );
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes a value. Classes are resolved with the context class loader of the current thread first.
+	 *
+	 * @param data The serialized value.
+	 * @return The value.
+	 * @throws IOException When the value can't be deserialized.
+	 * @throws ClassNotFoundException When a class of the value can't be found.
+	 */
+	static Object deserialize( byte[] data ) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in = new ContextObjectInputStream( new ByteArrayInputStream( data ) );
+		try
+		{
+			return in.readObject();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * A serialized value.
+	 */
+	static class Value
+	{
+		final byte[] data;
+		final long stored;
+		final long expire;
+		final int loadMillis;
+
+		Value( byte[] data, long stored, long expire, int loadMillis )
+		{
+			this.data = data;
+			this.stored = stored;
+			this.expire = expire;
+			this.loadMillis = loadMillis;
+		}
+	}
+
+	/**
+	 * The pages and times of a stored value.
+	 */
+	static private class Record
+	{
+		final int[] pages;
+		final int length;
+		final long stored;
+		final long expire;
+		final int loadMillis;
+
+		Record( int[] pages, int length, long stored, long expire, int loadMillis )
+		{
+			this.pages = pages;
+			this.length = length;
+			this.stored = stored;
+			this.expire = expire;
+			this.loadMillis = loadMillis;
+		}
+	}
+
+	/**
+	 * An ObjectInputStream that resolves classes with the context class loader of the current thread.
+	 */
+	static private class ContextObjectInputStream extends ObjectInputStream
+	{
+		ContextObjectInputStream( InputStream in ) throws IOException
+		{
+			super( in );
+		}
+
+		@Override
+		protected Class<?> resolveClass( ObjectStreamClass desc ) throws IOException, ClassNotFoundException
+		{
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if( loader != null )
+				try
+				{
+					return Class.forName( desc.getName(), false, loader );
+				}
+				catch( ClassNotFoundException e )
+				{
+					// Fall back to the default
+				}
+			return super.resolveClass( desc );
+		}
+	}
+}
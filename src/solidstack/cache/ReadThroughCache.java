@@ -16,35 +16,79 @@
 
 package solidstack.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import solidstack.io.FatalIOException;
+import solidstack.lang.SystemException;
 import solidstack.lang.ThreadInterrupted;
 
 
 /*
  * Thread safety:
- * 1. All access to the central map containing the cache is synchronized.
- * 2. All access to the nextPurgeMillis field is synchronized.
+ * 1. The central map containing the cache is a ConcurrentHashMap. Entries are never changed in place, state transitions
+ *    (Loading -> Loaded/Failed, Loaded -> Reloading/Loading, Failed -> Loading, Loading -> Failed) are done with
+ *    compare-and-swap operations (putIfAbsent, replace and remove) on the map.
+ * 2. The nextPurgeMillis field is an AtomicLong. Only the thread that succeeds in moving it forward will purge. When the
+ *    cache is managed by a CacheManager, the purge is done by the maintenance thread of the manager instead.
  * 3. All primitive fields are final or volatile.
  * 4. The Loaded and Failed cache entries are immutable.
- * 5. The Loading and Reloading cache entries are immutable except for the result field which gets assigned only once.
- * 6. Access to the result field of Loading and Reloading is synchronized.
+ * 5. The Loading and Reloading cache entries are immutable except for the result field which gets assigned only once,
+ *    the claimed field which gets set only once and the future field which gets created only once.
+ * 6. Access to the mutable fields of Loading and Reloading is synchronized on the entry itself. The future is completed
+ *    outside the synchronized block, so that listeners are not called while holding the lock.
  * 7. The values stored in the cache are NOT threadsafe!
+ * 8. The eviction order (a linked list of the Loaded and Failed entries) and the size and weight totals are only accessed
+ *    while holding the eviction lock. Cache hits record their access in a lossy striped buffer which is drained by
+ *    whichever thread manages to get the eviction lock.
  *
  * Deadlock:
  * 1. There are no nested synchronized block.
- * 2. There are no multiple locks needed.
+ * 2. The eviction lock is never held while calling a Loader, waiting for a Loading entry or logging.
+ * 3. The lock of the off-heap tier is only held while copying bytes, values are (de)serialized outside of it. Evicted
+ *    values are moved to the off-heap tier after the eviction lock has been released.
  *
  * Starvation:
- * TODO
+ * 1. A cache hit does not acquire any lock.
+ * 2. A compare-and-swap that fails is retried with the new state of the entry, which means another thread made progress.
  *
  * No leakage.
  * Leakage concern 1: Object or threads that are not used any more but references to them still exist.
@@ -52,16 +96,23 @@ import solidstack.lang.ThreadInterrupted;
  * 1.2. The only references to cache entries are:
  * 1.2.1. From the central map to the cache entries.
  * 1.2.2. From the Loading and Reloading cache entries to the Loaded or Failed cache entries.
- * 1.3. A purge routine runs regularly to remove old entries from the cache.
+ * 1.3. A purge routine runs regularly to remove old entries from the cache. When managed by a CacheManager, the cache is
+ *      swept in small time slices by the maintenance thread, which also collects loads that timed out.
+ * 1.4. When bounded, the least recently used entries are evicted when the maximum number of entries or the maximum
+ *      weight is exceeded.
+ * 1.5. The off-heap tier has its own capacity and drops the oldest values when it is full.
  * Leakage concern 2: Loading and Reloading cache entries that survive in the cache even though the loading thread died.
  * 2.1. The loading routine has a catch Throwable clause and is carefully written not to trigger exceptions itself.
  * Leakage concern 3: Loading threads that survive even though its Loading or Reloading cache entry is removed from the cache.
  * 3.1. No care is taken concerning this category. The loading thread should finish all by itself.
+ * 3.2. Background reloads run on a bounded executor, the number of pending background reloads is limited, and only one
+ *      background reload per key can be in progress.
  */
 
 /**
- * A read-through cache. This cache does not care about memory, it only cares about time. Entries expire and are
- * reloaded. Old entries will be purged periodically.
+ * A read-through cache. Entries expire and are reloaded. Old entries will be purged periodically. By default this cache
+ * does not care about memory, it only cares about time. With {@link #setMaxEntries(int)} or {@link #setMaxWeight(long)}
+ * the cache becomes bounded, and entries are evicted according to the configured {@link EvictionPolicy}.
  *
  * @author Ren de Bloois
  * @since 2012
@@ -100,6 +151,27 @@ public class ReadThroughCache
 	 */
 	static public final int DEFAULT_PURGE_AGE_MILLIS = 3600000;
 
+	/**
+	 * The largest value of -ln(random) for a double between 0 and 1, used to skip the random number when the expiration
+	 * is too far away for an early refresh.
+	 */
+	static private final double MAX_LOG_FACTOR = 40;
+
+	/**
+	 * Random numbers for the expiration jitter and the early refreshes.
+	 */
+	static private final Random random = new Random();
+
+	/**
+	 * Identifies a snapshot stream. The last byte is the version of the format.
+	 */
+	static private final int SNAPSHOT_MAGIC = 0x53534332;
+
+	/**
+	 * Default maximum number of pending background reloads.
+	 */
+	static public final int DEFAULT_MAX_PENDING_REFRESHES = 1000;
+
 	/**
 	 * Blocking mode.
 	 */
@@ -123,15 +195,59 @@ public class ReadThroughCache
 		NONE
 	}
 
+	/**
+	 * Eviction policy for a bounded cache.
+	 */
+	static public enum EvictionPolicy
+	{
+		/**
+		 * The least recently used entry is evicted.
+		 */
+		LRU,
+		/**
+		 * The least recently used entry is evicted, but only if the new entry has been used more frequently in the recent
+		 * past. Otherwise the new entry is evicted. This keeps popular entries in the cache when a burst of keys that are
+		 * used only once passes through.
+		 */
+		TINY_LFU
+	}
+
+	/**
+	 * Number of stripes in the read buffer, a power of 2.
+	 */
+	static private final int READ_BUFFER_STRIPES;
+	static
+	{
+		int stripes = 1;
+		while( stripes < Runtime.getRuntime().availableProcessors() && stripes < 64 )
+			stripes <<= 1;
+		READ_BUFFER_STRIPES = stripes;
+	}
+
+	/**
+	 * Number of accesses that can be recorded in one stripe of the read buffer.
+	 */
+	static private final int READ_BUFFER_SIZE = 32;
+
+	/**
+	 * Entry states in the eviction order.
+	 */
+	static private final int NEW = 0, LINKED = 1, RETIRED = 2;
+
 	/**
 	 * The default global cache.
 	 */
 	static private final ReadThroughCache defaultCache = new ReadThroughCache();
 
+	/**
+	 * The name of the cache.
+	 */
+	private final String name;
+
 	/**
 	 * The cache.
 	 */
-	private final Map<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+	private final ConcurrentMap<Object, CacheEntry> cache = new ConcurrentHashMap<Object, CacheEntry>();
 
 	/**
 	 * Current expiration interval.
@@ -166,12 +282,12 @@ public class ReadThroughCache
 	/**
 	 * The next purge moment.
 	 */
-	private volatile long nextPurgeMillis = 0;
+	private final AtomicLong nextPurgeMillis = new AtomicLong();
 
 	/**
-	 * Lock object.
+	 * The cache manager that purges this cache, or null.
 	 */
-	private final Object nextPurgeMillisLock = new Object();
+	private volatile CacheManager manager;
 
 	/**
 	 * Blocking mode.
@@ -179,6 +295,109 @@ public class ReadThroughCache
 	// TODO Ability to overrule blocking/nonblocking
 	private volatile BlockingMode blockingMode = BlockingMode.ALL;
 
+	/**
+	 * Maximum number of entries, 0 is unbounded.
+	 */
+	private volatile int maxEntries;
+
+	/**
+	 * Maximum total weight, 0 is unbounded.
+	 */
+	private volatile long maxWeight;
+
+	/**
+	 * Weighs the values.
+	 */
+	private volatile Weigher weigher;
+
+	/**
+	 * The eviction policy.
+	 */
+	private volatile EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+	/**
+	 * True when maxEntries or maxWeight is set.
+	 */
+	private volatile boolean bounded;
+
+	/**
+	 * Protects the eviction order and the totals below.
+	 */
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	/**
+	 * Least recently used and most recently used entry.
+	 */
+	private Resident head, tail;
+
+	/**
+	 * Number of entries and total weight in the eviction order.
+	 */
+	private int entryCount;
+	private long totalWeight;
+
+	/**
+	 * Frequencies of the keys, only used with {@link EvictionPolicy#TINY_LFU}.
+	 */
+	private FrequencySketch sketch;
+
+	/**
+	 * Accesses that still need to be applied to the eviction order.
+	 */
+	private final AtomicReferenceArray<Resident> readBuffer = new AtomicReferenceArray<Resident>( READ_BUFFER_STRIPES * READ_BUFFER_SIZE );
+
+	/**
+	 * Number of accesses recorded per stripe. Padded to let each stripe have its own cache line.
+	 */
+	private final AtomicIntegerArray readCounts = new AtomicIntegerArray( READ_BUFFER_STRIPES * 16 );
+
+	/**
+	 * Executes the background reloads, null for the default executor.
+	 */
+	private volatile Executor refreshExecutor;
+
+	/**
+	 * Maximum number of pending background reloads.
+	 */
+	private volatile int maxPendingRefreshes = DEFAULT_MAX_PENDING_REFRESHES;
+
+	/**
+	 * Fraction of the expiration interval by which the expiration is randomly shortened.
+	 */
+	private volatile double expirationJitter;
+
+	/**
+	 * How eagerly values are refreshed before they expire, 0 disables early refreshes.
+	 */
+	private volatile double earlyRefreshBeta;
+
+	/**
+	 * Number of background reloads queued or in progress.
+	 */
+	private final AtomicInteger pendingRefreshes = new AtomicInteger();
+
+	/**
+	 * The background reloads in progress by key.
+	 */
+	private final ConcurrentMap<Object, Reloading> refreshing = new ConcurrentHashMap<Object, Reloading>();
+
+	/**
+	 * The off-heap tier for evicted values, or null.
+	 */
+	private volatile OffHeapStore offHeap;
+
+	/**
+	 * The statistics.
+	 */
+	private final CacheStatistics statistics = new CacheStatistics()
+	{
+		@Override
+		public int getSize()
+		{
+			return size();
+		}
+	};
+
 
 	/**
 	 * Gets the default global cache.
@@ -191,11 +410,37 @@ public class ReadThroughCache
 	}
 
 
-	// TODO Give a name to the cache
+	/**
+	 * Constructor.
+	 */
+	public ReadThroughCache()
+	{
+		this( null );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name The name of the cache.
+	 */
+	public ReadThroughCache( String name )
+	{
+		this.name = name;
+	}
 
 
 	// ---------- Getters & Setters
 
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return The name of the cache, can be null.
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
 	/**
 	 * Returns the number of milliseconds before a cache entry expires.
 	 *
@@ -300,10 +545,7 @@ public class ReadThroughCache
 		if( purgeInterval < 0 )
 			throw new IllegalArgumentException( "purgeInterval can't be negative" );
 		this.purgeIntervalMillis = purgeInterval;
-		synchronized( this.nextPurgeMillisLock )
-		{
-			this.nextPurgeMillis = 0;
-		}
+		this.nextPurgeMillis.set( 0 );
 	}
 
 	/**
@@ -335,275 +577,1772 @@ public class ReadThroughCache
 	 */
 	public BlockingMode getBlockingMode()
 	{
-		return this.blockingMode;
+		return this.blockingMode;
+	}
+
+	/**
+	 * Sets the blocking mode.
+	 *
+	 * @param blockingMode The blocking mode.
+	 */
+	public void setBlockingMode( BlockingMode blockingMode )
+	{
+		this.blockingMode = blockingMode;
+	}
+
+	/**
+	 * Returns the maximum number of entries.
+	 *
+	 * @return The maximum number of entries, 0 means unbounded.
+	 */
+	public int getMaxEntries()
+	{
+		return this.maxEntries;
+	}
+
+	/**
+	 * Sets the maximum number of entries. Entries that are being loaded are not counted. This should be configured before
+	 * the cache is used, entries stored while the cache is unbounded are only removed by the purge.
+	 *
+	 * @param maxEntries The maximum number of entries, 0 means unbounded.
+	 */
+	public void setMaxEntries( int maxEntries )
+	{
+		if( maxEntries < 0 )
+			throw new IllegalArgumentException( "maxEntries can't be negative" );
+		this.maxEntries = maxEntries;
+		this.bounded = maxEntries > 0 || this.maxWeight > 0;
+		evict();
+	}
+
+	/**
+	 * Returns the maximum total weight of the entries.
+	 *
+	 * @return The maximum total weight of the entries, 0 means unbounded.
+	 */
+	public long getMaxWeight()
+	{
+		return this.maxWeight;
+	}
+
+	/**
+	 * Sets the maximum total weight of the entries. The weight of an entry is determined by the {@link Weigher}. Without a
+	 * weigher each value weighs 1. This should be configured before the cache is used, entries stored while the cache is
+	 * unbounded are only removed by the purge.
+	 *
+	 * @param maxWeight The maximum total weight of the entries, 0 means unbounded.
+	 */
+	public void setMaxWeight( long maxWeight )
+	{
+		if( maxWeight < 0 )
+			throw new IllegalArgumentException( "maxWeight can't be negative" );
+		this.maxWeight = maxWeight;
+		this.bounded = maxWeight > 0 || this.maxEntries > 0;
+		evict();
+	}
+
+	/**
+	 * Returns the weigher.
+	 *
+	 * @return The weigher.
+	 */
+	public Weigher getWeigher()
+	{
+		return this.weigher;
+	}
+
+	/**
+	 * Sets the weigher which determines the weight of the values in the cache. Values that are already in the cache keep
+	 * their weight.
+	 *
+	 * @param weigher The weigher.
+	 */
+	public void setWeigher( Weigher weigher )
+	{
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the eviction policy.
+	 *
+	 * @return The eviction policy.
+	 */
+	public EvictionPolicy getEvictionPolicy()
+	{
+		return this.evictionPolicy;
+	}
+
+	/**
+	 * Sets the eviction policy. The eviction policy is used when the cache is bounded.
+	 *
+	 * @param evictionPolicy The eviction policy.
+	 */
+	public void setEvictionPolicy( EvictionPolicy evictionPolicy )
+	{
+		if( evictionPolicy == null )
+			throw new NullPointerException( "evictionPolicy must not be null" );
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Returns the executor that executes the background reloads in {@link BlockingMode#NONE}.
+	 *
+	 * @return The executor that executes the background reloads.
+	 */
+	public Executor getRefreshExecutor()
+	{
+		Executor executor = this.refreshExecutor;
+		if( executor != null )
+			return executor;
+		return DefaultRefreshExecutor.INSTANCE;
+	}
+
+	/**
+	 * Sets the executor that executes the background reloads in {@link BlockingMode#NONE}. By default a pool of daemon
+	 * threads is used which is shared by all caches. The number of threads is the number of processors with a minimum of 4.
+	 *
+	 * @param refreshExecutor The executor, null for the default executor.
+	 * @see #newVirtualThreadExecutor()
+	 */
+	public void setRefreshExecutor( Executor refreshExecutor )
+	{
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * Returns the maximum number of background reloads that can be pending.
+	 *
+	 * @return The maximum number of background reloads that can be pending.
+	 */
+	public int getMaxPendingRefreshes()
+	{
+		return this.maxPendingRefreshes;
+	}
+
+	/**
+	 * Sets the maximum number of background reloads that can be pending. When this number is reached, or the executor
+	 * rejects the reload, the expired value is kept and the reload is tried again on the next access.
+	 *
+	 * @param maxPendingRefreshes The maximum number of background reloads that can be pending.
+	 */
+	public void setMaxPendingRefreshes( int maxPendingRefreshes )
+	{
+		if( maxPendingRefreshes < 1 )
+			throw new IllegalArgumentException( "maxPendingRefreshes must be 1 or more" );
+		this.maxPendingRefreshes = maxPendingRefreshes;
+	}
+
+	/**
+	 * Returns the fraction of the expiration interval by which the expiration of each value is randomly shortened.
+	 *
+	 * @return The expiration jitter, between 0 and 1.
+	 */
+	public double getExpirationJitter()
+	{
+		return this.expirationJitter;
+	}
+
+	/**
+	 * Sets the fraction of the expiration interval by which the expiration of each value is randomly shortened. With a
+	 * jitter of 0.1 and an expiration interval of 10 minutes, values expire between 9 and 10 minutes after they are loaded.
+	 * This prevents values that are loaded at the same time, at startup for example, from expiring at the same time.
+	 *
+	 * @param expirationJitter The expiration jitter, between 0 and 1. 0 disables the jitter.
+	 */
+	public void setExpirationJitter( double expirationJitter )
+	{
+		if( expirationJitter < 0 || expirationJitter > 1 )
+			throw new IllegalArgumentException( "expirationJitter must be between 0 and 1" );
+		this.expirationJitter = expirationJitter;
+	}
+
+	/**
+	 * Returns how eagerly values are refreshed before they expire.
+	 *
+	 * @return How eagerly values are refreshed before they expire, 0 when disabled.
+	 */
+	public double getEarlyRefreshBeta()
+	{
+		return this.earlyRefreshBeta;
+	}
+
+	/**
+	 * Enables the probabilistic early refresh of values. A hit on a value that is about to expire may trigger a background
+	 * reload, while the current value keeps being served. The probability rises as the expiration approaches and is
+	 * higher for values that took longer to load. A hit triggers the refresh when
+	 * <code>now - loadTime * beta * ln(random) &gt;= expiration</code>, with <code>random</code> between 0 and 1. A beta
+	 * of 1 is a good default, a larger beta refreshes earlier. Early refreshes are triggered by {@link #get(Loader, Object)}
+	 * and {@link #getAll(BulkLoader, Collection)}, and run on the refresh executor.
+	 *
+	 * @param earlyRefreshBeta How eagerly values are refreshed before they expire, 0 disables early refreshes.
+	 */
+	public void setEarlyRefreshBeta( double earlyRefreshBeta )
+	{
+		if( earlyRefreshBeta < 0 )
+			throw new IllegalArgumentException( "earlyRefreshBeta can't be negative" );
+		this.earlyRefreshBeta = earlyRefreshBeta;
+	}
+
+	/**
+	 * Returns the capacity of the off-heap tier.
+	 *
+	 * @return The capacity of the off-heap tier in bytes, 0 when there is no off-heap tier.
+	 */
+	public long getOffHeapCapacity()
+	{
+		OffHeapStore offHeap = this.offHeap;
+		return offHeap != null ? offHeap.getCapacity() : 0;
+	}
+
+	/**
+	 * Sets the capacity of the off-heap tier. When the cache is bounded, values that are evicted and are
+	 * {@link Serializable} are serialized into the off-heap tier, outside of the Java heap. When a value is not found in
+	 * the cache but it is found in the off-heap tier, it is deserialized and moved back into the cache. This keeps large
+	 * values that are rarely used away from the garbage collector. The off-heap tier drops the values that were stored the
+	 * longest ago when it is full. Changing the capacity discards the values in the off-heap tier.
+	 *
+	 * @param capacity The capacity of the off-heap tier in bytes, 0 for no off-heap tier.
+	 */
+	public void setOffHeapCapacity( long capacity )
+	{
+		if( capacity < 0 )
+			throw new IllegalArgumentException( "capacity can't be negative" );
+		this.offHeap = capacity > 0 ? new OffHeapStore( capacity ) : null;
+	}
+
+	/**
+	 * Returns the number of values in the off-heap tier.
+	 *
+	 * @return The number of values in the off-heap tier.
+	 */
+	public int offHeapSize()
+	{
+		OffHeapStore offHeap = this.offHeap;
+		return offHeap != null ? offHeap.size() : 0;
+	}
+
+	/**
+	 * Returns the number of entries in the cache, including the entries that are being loaded.
+	 *
+	 * @return The number of entries in the cache.
+	 */
+	public int size()
+	{
+		return this.cache.size();
+	}
+
+	/**
+	 * Returns the statistics of this cache.
+	 *
+	 * @return The statistics of this cache.
+	 */
+	public CacheStatistics getStatistics()
+	{
+		return this.statistics;
+	}
+
+	// END ------ Getters & Setters
+
+
+
+	// TODO get with blocking mode override
+	// TODO get without loader: 1 loader is configured and receives the key to determine what it should load
+	// TODO named parameters, key becomes: par1:dkjhdkjh;par2:dkjhdkjh, pars sorted
+
+	/**
+	 * Get a value from the cache. If the value is not found or the value is expired, the loader is called to get a new
+	 * value to store in the cache. During load, other threads that are trying to get the same value are blocked until
+	 * loading is finished.
+	 *
+	 * @param loader The loader to load values.
+	 * @param key The key into the cache.
+	 * @return The value belonging to the key.
+	 */
+	public <T> T get( Loader<T> loader, Object... key )
+	{
+		return get( loader, CacheKey.toKey( key ) );
+	}
+
+	/**
+	 * Get a value from the cache with a single object as the key. The key object must implement equals() and hashCode(),
+	 * and must not change while it is in the cache. See also {@link CacheKey}.
+	 *
+	 * @param loader The loader to load values.
+	 * @param key The key into the cache.
+	 * @return The value belonging to the key.
+	 * @see #get(Loader, Object...)
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <T> T get( Loader<T> loader, Object key )
+	{
+		Object cacheKey = CacheKey.toKey( key );
+
+		CacheEntry result = lookup( cacheKey );
+
+		// 1. result contains a CacheEntry
+
+		if( result instanceof Loading )
+		{
+			Loading loading = (Loading)result;
+			if( loading.claim() )
+			{
+				if( this.blockingMode == BlockingMode.NONE && loading instanceof Reloading )
+				{
+					Reloading reloading = (Reloading)loading;
+					___.debug( "background load [{}]", cacheKey );
+					backgroundLoad( reloading, cacheKey, loader );
+					___.debug( "use old [{}]", cacheKey );
+					this.statistics.graceHits.increment();
+					return (T)reloading.getOldValue();
+				}
+
+				___.debug( "blocking load [{}]", cacheKey );
+				this.statistics.misses.increment();
+				return load( loading, cacheKey, loader );
+			}
+
+			if( this.blockingMode != BlockingMode.ALL && loading instanceof Reloading )
+			{
+				___.debug( "use old [{}]", cacheKey );
+				this.statistics.graceHits.increment();
+				return (T)( (Reloading)loading ).getOldValue();
+			}
+			___.debug( "waiting [{}]", cacheKey );
+			result = waitFor( loading, cacheKey ); // Blocking
+			___.debug( "ready [{}]", cacheKey );
+		}
+
+		// 1. result contains a Loaded or a Failed
+
+		if( result instanceof Loaded )
+		{
+			if( this.bounded )
+				accessed( (Resident)result );
+			___.debug( "hit [{}]", cacheKey );
+			this.statistics.hits.increment();
+			if( this.earlyRefreshBeta > 0 )
+				refreshEarly( (Loaded)result, cacheKey, loader );
+			return (T)( (Loaded)result ).getValue();
+		}
+
+		// Wrap because we wouldn't want to rethrow ThreadDeath or ThreadInterrupted, which would cause this thread to kill itself too
+		throw new CacheException( "Previous load failed", ( (Failed)result ).getThrowable() );
+	}
+
+	/**
+	 * Get a value from the cache without blocking. If the value is not found or the value is expired, the loader is called
+	 * to start loading a new value. All callers that ask for the same value during the load share the same future, which
+	 * completes when the loader calls back. During a reload, the blocking mode determines if the callers get the old value
+	 * or the future of the reload.
+	 *
+	 * @param loader The loader to load values.
+	 * @param key The key into the cache.
+	 * @return A future for the value belonging to the key.
+	 */
+	public <T> CacheFuture<T> getAsync( AsyncLoader<T> loader, Object... key )
+	{
+		return getAsync( loader, CacheKey.toKey( key ) );
+	}
+
+	/**
+	 * Get a value from the cache without blocking, with a single object as the key. The key object must implement equals()
+	 * and hashCode(), and must not change while it is in the cache. See also {@link CacheKey}.
+	 *
+	 * @param loader The loader to load values.
+	 * @param key The key into the cache.
+	 * @return A future for the value belonging to the key.
+	 * @see #getAsync(AsyncLoader, Object...)
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <T> CacheFuture<T> getAsync( AsyncLoader<T> loader, Object key )
+	{
+		Object cacheKey = CacheKey.toKey( key );
+
+		CacheEntry result = lookup( cacheKey );
+
+		if( result instanceof Loading )
+		{
+			Loading loading = (Loading)result;
+			if( loading.claim() )
+			{
+				CacheFuture<T> future = (CacheFuture<T>)loading.getFuture(); // Before loading, the result may be set immediately
+				___.debug( "async load [{}]", cacheKey );
+				loadAsync( loading, cacheKey, loader );
+				if( this.blockingMode == BlockingMode.NONE && loading instanceof Reloading )
+				{
+					this.statistics.graceHits.increment();
+					return CacheFuture.completed( (T)( (Reloading)loading ).getOldValue() );
+				}
+				this.statistics.misses.increment();
+				return future;
+			}
+			if( this.blockingMode != BlockingMode.ALL && loading instanceof Reloading )
+			{
+				this.statistics.graceHits.increment();
+				return CacheFuture.completed( (T)( (Reloading)loading ).getOldValue() );
+			}
+			this.statistics.hits.increment();
+			return (CacheFuture<T>)loading.getFuture();
+		}
+
+		if( result instanceof Loaded )
+		{
+			if( this.bounded )
+				accessed( (Resident)result );
+			this.statistics.hits.increment();
+			return CacheFuture.completed( (T)( (Loaded)result ).getValue() );
+		}
+
+		return CacheFuture.failed( ( (Failed)result ).getThrowable() );
+	}
+
+	/**
+	 * Get multiple values from the cache with a single call to the loader. Hits are returned immediately. All the keys
+	 * that are not found or expired are marked as loading in one pass, after which the loader is called once with all the
+	 * keys that this thread has to load. Keys that are being loaded by other threads are waited for afterwards, depending
+	 * on the blocking mode. Keys left out of the map returned by the loader are cached with a null value.
+	 *
+	 * @param loader The loader to load the values that are not in the cache.
+	 * @param keys The keys into the cache. Each key is used as a single object key, see also {@link CacheKey}.
+	 * @return The values by key, in the order of the given keys.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <K, T> Map<K, T> getAll( BulkLoader<K, T> loader, Collection<? extends K> keys )
+	{
+		Map<K, T> result = new LinkedHashMap<K, T>();
+		Map<K, Loading> claimed = new LinkedHashMap<K, Loading>();
+		Map<K, Loading> waiting = new LinkedHashMap<K, Loading>();
+		Throwable failure = null;
+
+		// 1. Look up all keys, claim the misses
+
+		for( K key : new LinkedHashSet<K>( keys ) )
+		{
+			Object cacheKey = CacheKey.toKey( key );
+			CacheEntry entry = lookup( cacheKey );
+
+			if( entry instanceof Loading )
+			{
+				Loading loading = (Loading)entry;
+				if( loading.claim() )
+				{
+					if( this.blockingMode == BlockingMode.NONE && loading instanceof Reloading )
+					{
+						Reloading reloading = (Reloading)loading;
+						___.debug( "background load [{}]", cacheKey );
+						backgroundLoad( reloading, cacheKey, singleLoader( loader, key ) );
+						this.statistics.graceHits.increment();
+						result.put( key, (T)reloading.getOldValue() );
+					}
+					else
+					{
+						this.statistics.misses.increment();
+						claimed.put( key, loading );
+						result.put( key, null ); // Keeps the order of the keys
+					}
+				}
+				else if( this.blockingMode != BlockingMode.ALL && loading instanceof Reloading )
+				{
+					___.debug( "use old [{}]", cacheKey );
+					this.statistics.graceHits.increment();
+					result.put( key, (T)( (Reloading)loading ).getOldValue() );
+				}
+				else
+				{
+					waiting.put( key, loading );
+					result.put( key, null ); // Keeps the order of the keys
+				}
+			}
+			else if( entry instanceof Loaded )
+			{
+				if( this.bounded )
+					accessed( (Resident)entry );
+				___.debug( "hit [{}]", cacheKey );
+				this.statistics.hits.increment();
+				if( this.earlyRefreshBeta > 0 )
+					refreshEarly( (Loaded)entry, cacheKey, singleLoader( loader, key ) );
+				result.put( key, (T)( (Loaded)entry ).getValue() );
+			}
+			else if( failure == null )
+				failure = ( (Failed)entry ).getThrowable();
+		}
+
+		// 2. Load all claimed keys at once
+
+		if( !claimed.isEmpty() )
+		{
+			___.debug( "bulk load {}", claimed.keySet() );
+
+			Map<K, T> values;
+			long start = System.nanoTime();
+			try
+			{
+				values = loader.load( Collections.unmodifiableSet( claimed.keySet() ) );
+			}
+			catch( Throwable throwable )
+			{
+				this.statistics.loaded( System.nanoTime() - start, false );
+				for( Entry<K, Loading> entry : claimed.entrySet() )
+					loadFailed( entry.getValue(), CacheKey.toKey( entry.getKey() ), throwable );
+
+				if( throwable instanceof Error )
+					throw (Error)throwable;
+				if( throwable instanceof RuntimeException )
+					throw (RuntimeException)throwable;
+				throw new CacheException( "Unexpected checked exception", throwable );
+			}
+			long nanos = System.nanoTime() - start;
+			this.statistics.loaded( nanos, true );
+
+			for( Entry<K, Loading> entry : claimed.entrySet() )
+			{
+				T value = values != null ? values.get( entry.getKey() ) : null;
+				CacheEntry loaded = loaded( entry.getValue(), CacheKey.toKey( entry.getKey() ), value, nanos );
+				if( loaded instanceof Loaded )
+					result.put( entry.getKey(), value );
+				else if( failure == null )
+					failure = ( (Failed)loaded ).getThrowable();
+			}
+		}
+
+		// 3. Wait for the keys loaded by other threads
+
+		for( Entry<K, Loading> entry : waiting.entrySet() )
+		{
+			Object cacheKey = CacheKey.toKey( entry.getKey() );
+			___.debug( "waiting [{}]", cacheKey );
+			CacheEntry loaded = waitFor( entry.getValue(), cacheKey ); // Blocking
+			if( loaded instanceof Loaded )
+			{
+				this.statistics.hits.increment();
+				result.put( entry.getKey(), (T)( (Loaded)loaded ).getValue() );
+			}
+			else if( failure == null )
+				failure = ( (Failed)loaded ).getThrowable();
+		}
+
+		if( failure != null )
+			throw new CacheException( "Previous load failed", failure );
+		return result;
+	}
+
+	/**
+	 * Returns a loader that loads a single key with a bulk loader.
+	 *
+	 * @param loader The bulk loader.
+	 * @param key The key to load.
+	 * @return A loader that loads a single key.
+	 */
+	static private <K, T> Loader<T> singleLoader( final BulkLoader<K, T> loader, final K key )
+	{
+		return new Loader<T>()
+		{
+			public T load()
+			{
+				Map<K, T> values = loader.load( Collections.singleton( key ) );
+				return values != null ? values.get( key ) : null;
+			}
+		};
+	}
+
+	/**
+	 * Writes the loaded entries of the cache to a file. The snapshot is written to a temporary file first which then
+	 * replaces the given file, so that a crash during the write does not leave a broken snapshot behind.
+	 *
+	 * @param file The file to write the snapshot to.
+	 * @return The number of entries written.
+	 * @see #writeSnapshot(OutputStream)
+	 */
+	public int writeSnapshot( File file )
+	{
+		File temp = new File( file.getPath() + ".tmp" );
+		boolean renamed = false;
+		try
+		{
+			int result;
+			OutputStream out = new BufferedOutputStream( new FileOutputStream( temp ) );
+			try
+			{
+				result = writeSnapshot( out );
+			}
+			finally
+			{
+				out.close();
+			}
+
+			file.delete(); // Windows does not rename to an existing file
+			if( !temp.renameTo( file ) )
+				throw new FatalIOException( "Could not rename [" + temp + "] to [" + file + "]" );
+			renamed = true;
+			return result;
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+		finally
+		{
+			if( !renamed )
+				temp.delete(); // Also when writing the snapshot failed with a FatalIOException
+		}
+	}
+
+	/**
+	 * Writes the loaded entries of the cache to a stream. Only entries with a key and a value that are both
+	 * {@link Serializable} are written, together with the time they were stored and the time they expire. Each entry is
+	 * serialized separately, so the snapshot is written and read entry by entry. The stream is not closed.
+	 *
+	 * @param out The stream to write the snapshot to.
+	 * @return The number of entries written.
+	 */
+	public int writeSnapshot( OutputStream out )
+	{
+		int result = 0;
+		try
+		{
+			DataOutputStream data = new DataOutputStream( out );
+			data.writeInt( SNAPSHOT_MAGIC );
+			for( CacheEntry entry : this.cache.values() )
+			{
+				if( !( entry instanceof Loaded ) )
+					continue;
+				Loaded loaded = (Loaded)entry;
+				if( !( loaded.getKey() instanceof Serializable ) || loaded.getValue() != null && !( loaded.getValue() instanceof Serializable ) )
+					continue;
+
+				byte[] bytes;
+				try
+				{
+					bytes = OffHeapStore.serialize( new Object[] { loaded.getKey(), loaded.getValue() } );
+				}
+				catch( IOException e )
+				{
+					___.debug( "not serializable [{}]", loaded.getKey(), e );
+					continue;
+				}
+				data.writeInt( bytes.length );
+				data.write( bytes );
+				data.writeLong( loaded.getStoredTime() );
+				data.writeLong( loaded.getExpirationTime() );
+				data.writeInt( loaded.loadMillis );
+				result++;
+			}
+			data.writeInt( -1 );
+			data.flush();
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+		___.debug( "snapshot written, {} entries", result );
+		return result;
+	}
+
+	/**
+	 * Reads a snapshot from a file into the cache.
+	 *
+	 * @param file The file to read the snapshot from.
+	 * @return The number of entries put into the cache.
+	 * @see #readSnapshot(InputStream)
+	 */
+	public int readSnapshot( File file )
+	{
+		try
+		{
+			InputStream in = new BufferedInputStream( new FileInputStream( file ) );
+			try
+			{
+				return readSnapshot( in );
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #writeSnapshot(OutputStream)} into the cache. The entries keep the time they
+	 * were stored and the time they expire, so they only live as long as they have left. Entries that can't be used
+	 * anymore are skipped, and so are entries that are already in the cache. Entries that can't be deserialized are
+	 * skipped too. The stream is not closed.
+	 *
+	 * @param in The stream to read the snapshot from.
+	 * @return The number of entries put into the cache.
+	 */
+	public int readSnapshot( InputStream in )
+	{
+		int result = 0;
+		try
+		{
+			DataInputStream data = new DataInputStream( in );
+			if( data.readInt() != SNAPSHOT_MAGIC )
+				throw new FatalIOException( "Not a cache snapshot" );
+			while( true )
+			{
+				int length = data.readInt();
+				if( length < 0 )
+					break;
+				byte[] bytes = new byte[ length ];
+				data.readFully( bytes );
+				long stored = data.readLong();
+				long expire = data.readLong();
+				int loadMillis = data.readInt();
+
+				long now = System.currentTimeMillis();
+				if( now >= expire + this.gracePeriodMillis || stored < now - this.purgeAgeMillis )
+					continue;
+
+				Object[] pair;
+				try
+				{
+					pair = (Object[])OffHeapStore.deserialize( bytes );
+				}
+				catch( Exception e )
+				{
+					___.warn( "Could not deserialize a snapshot entry", e );
+					continue;
+				}
+
+				Loaded loaded = new Loaded( pair[ 0 ], pair[ 1 ], weigh( pair[ 0 ], pair[ 1 ] ), stored, expire, loadMillis );
+				if( this.cache.putIfAbsent( pair[ 0 ], loaded ) == null )
+				{
+					added( loaded );
+					result++;
+				}
+			}
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+		___.debug( "snapshot read, {} entries", result );
+		return result;
+	}
+
+	/**
+	 * Looks up the entry with the given key, and checks for expiration. When the value needs to be (re)loaded, a new
+	 * {@link Loading} or {@link Reloading} entry is stored in the cache and returned. The caller that succeeds in claiming
+	 * a Loading entry is responsible for loading it.
+	 *
+	 * @param cacheKey The key of the entry.
+	 * @return The entry found or stored in the cache.
+	 */
+	private CacheEntry lookup( Object cacheKey )
+	{
+		long now = System.currentTimeMillis();
+
+		// Purge, only the thread that succeeds in moving the purge moment forward will purge
+		if( this.manager == null )
+		{
+			long nextPurge = this.nextPurgeMillis.get();
+			if( now >= nextPurge && this.nextPurgeMillis.compareAndSet( nextPurge, now + this.purgeIntervalMillis ) )
+				purge();
+		}
+
+		// Read the cache, check for expiration and control (re)loading
+		CacheEntry result;
+		Loading loading = null;
+		Failed failed = null;
+		String __ = null;
+		while( true )
+		{
+			result = this.cache.get( cacheKey );
+
+			if( result == null )
+			{
+				Loaded promoted = promote( cacheKey, now );
+				if( promoted != null )
+				{
+					if( this.cache.putIfAbsent( cacheKey, promoted ) == null )
+					{
+						added( promoted );
+						___.debug( "promoted [{}]", cacheKey );
+					}
+					continue; // Check the expiration of the promoted entry
+				}
+
+				loading = new Loading( now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
+				if( this.cache.putIfAbsent( cacheKey, loading ) == null )
+				{
+					__ = "miss [{}]";
+					break;
+				}
+			}
+			else if( now < result.getExpirationTime() )
+				return result;
+			else if( result instanceof Loaded )
+			{
+				if( now < result.getExpirationTime() + this.gracePeriodMillis )
+				{
+					loading = new Reloading( (Loaded)result, now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
+					__ = "expired grace [{}]";
+				}
+				else
+				{
+					loading = new Loading( now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
+					__ = "expired [{}]";
+				}
+				if( this.cache.replace( cacheKey, result, loading ) )
+				{
+					removed( (Resident)result );
+					break;
+				}
+			}
+			else if( result instanceof Failed )
+			{
+				loading = new Loading( now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
+				__ = "fail expired [{}]";
+				if( this.cache.replace( cacheKey, result, loading ) )
+				{
+					removed( (Resident)result );
+					break;
+				}
+			}
+			else
+			{
+				Exception e = new IllegalStateException( "LoadingCacheEntry expired in cache" );
+				failed = new Failed( cacheKey, e, now, now + this.expirationMillis );
+				if( this.cache.replace( cacheKey, result, failed ) )
+				{
+					added( failed );
+					break;
+				}
+			}
+
+			// Another thread changed the entry in the meantime, try again
+			loading = null;
+			failed = null;
+			__ = null;
+			now = System.currentTimeMillis();
+		}
+
+		if( failed != null )
+		{
+			( (Loading)result ).setResult( failed ); // Notifies all waiting threads
+			___.debug( "load expired [{}]", cacheKey );
+			this.statistics.timeouts.increment();
+			return failed;
+		}
+
+		___.debug( __, cacheKey );
+		return loading;
+	}
+
+	private void replace( Object cacheKey, CacheEntry original, Resident replacement )
+	{
+		if( this.cache.replace( cacheKey, original, replacement ) ) // Does nothing when the original has been replaced or purged already
+			added( replacement );
+	}
+
+	/**
+	 * Call the loader and put the result in the cache.
+	 *
+	 * @param loading The entry to load.
+	 * @param cacheKey The key of the entry to load.
+	 * @param loader The loader to use.
+	 * @return The value loaded.
+	 */
+	@SuppressWarnings( "unchecked" )
+	<T> T load( Loading loading, Object cacheKey, Loader<T> loader )
+	{
+		if( loading instanceof Reloading )
+		{
+			Reloading refresh = findRefresh( (Reloading)loading, cacheKey );
+			if( refresh != null )
+			{
+				___.debug( "joining early refresh [{}]", cacheKey );
+				CacheEntry result = waitFor( refresh, cacheKey );
+				if( result instanceof Loaded )
+				{
+					refreshed( (Reloading)loading, cacheKey, (Loaded)result );
+					return (T)( (Loaded)result ).getValue();
+				}
+			}
+		}
+
+		T value;
+		long start = System.nanoTime();
+
+		try
+		{
+			value = loader.load();
+		}
+		catch( Throwable throwable )
+		{
+			this.statistics.loaded( System.nanoTime() - start, false );
+			loadFailed( loading, cacheKey, throwable );
+
+			if( throwable instanceof Error )
+				throw (Error)throwable;
+			if( throwable instanceof RuntimeException )
+				throw (RuntimeException)throwable;
+			throw new CacheException( "Unexpected checked exception", throwable );
+		}
+
+		long nanos = System.nanoTime() - start;
+		this.statistics.loaded( nanos, true );
+		CacheEntry result = loaded( loading, cacheKey, value, nanos );
+		if( result instanceof Failed )
+		{
+			Throwable throwable = ( (Failed)result ).getThrowable();
+			if( throwable instanceof Error )
+				throw (Error)throwable;
+			if( throwable instanceof RuntimeException )
+				throw (RuntimeException)throwable;
+			throw new CacheException( "Unexpected checked exception", throwable );
+		}
+		return value;
+	}
+
+	/**
+	 * Waits for a load in progress by another thread.
+	 *
+	 * @param loading The entry being loaded.
+	 * @param cacheKey The key of the entry.
+	 * @return The result of the load.
+	 */
+	private CacheEntry waitFor( Loading loading, Object cacheKey )
+	{
+		try
+		{
+			return loading.getResult( cacheKey );
+		}
+		catch( CacheTimeoutException e )
+		{
+			this.statistics.timeouts.increment();
+			throw e;
+		}
+	}
+
+	/**
+	 * Call the asynchronous loader. The result is put in the cache when the loader calls back.
+	 *
+	 * @param loading The entry to load.
+	 * @param cacheKey The key of the entry to load.
+	 * @param loader The loader to use.
+	 */
+	private <T> void loadAsync( final Loading loading, final Object cacheKey, final AsyncLoader<T> loader )
+	{
+		if( loading instanceof Reloading )
+		{
+			final Reloading reloading = (Reloading)loading;
+			final Reloading refresh = findRefresh( reloading, cacheKey );
+			if( refresh != null )
+			{
+				___.debug( "joining early refresh [{}]", cacheKey );
+				refresh.getFuture().addListener( new CacheFuture.Listener<Object>()
+				{
+					public void completed( Object value )
+					{
+						refreshed( reloading, cacheKey, (Loaded)refresh.getResult( cacheKey ) );
+					}
+
+					public void failed( Throwable throwable )
+					{
+						callAsync( loading, cacheKey, loader );
+					}
+				} );
+				return;
+			}
+		}
+		callAsync( loading, cacheKey, loader );
+	}
+
+	private <T> void callAsync( final Loading loading, final Object cacheKey, AsyncLoader<T> loader )
+	{
+		final long start = System.nanoTime();
+		LoadCallback<T> callback = new LoadCallback<T>()
+		{
+			private boolean called;
+
+			synchronized private boolean call()
+			{
+				if( this.called )
+					return false;
+				this.called = true;
+				return true;
+			}
+
+			public void loaded( T value )
+			{
+				if( call() )
+				{
+					long nanos = System.nanoTime() - start;
+					ReadThroughCache.this.statistics.loaded( nanos, true );
+					ReadThroughCache.this.loaded( loading, cacheKey, value, nanos );
+				}
+			}
+
+			public void failed( Throwable throwable )
+			{
+				if( call() )
+				{
+					ReadThroughCache.this.statistics.loaded( System.nanoTime() - start, false );
+					loadFailed( loading, cacheKey, throwable );
+				}
+			}
+		};
+
+		try
+		{
+			loader.load( callback );
+		}
+		catch( Throwable throwable )
+		{
+			callback.failed( throwable );
+			if( throwable instanceof Error )
+				throw (Error)throwable;
+		}
+	}
+
+	/**
+	 * Puts the loaded value in the cache. When the weigher fails, the failure is put in the cache instead.
+	 *
+	 * @param loading The entry that was loading.
+	 * @param cacheKey The key of the entry.
+	 * @param value The value loaded.
+	 * @param loadNanos The time the load took.
+	 * @return The {@link Loaded} entry, or the {@link Failed} entry when the weigher failed.
+	 */
+	CacheEntry loaded( Loading loading, Object cacheKey, Object value, long loadNanos )
+	{
+		int weight;
+		try
+		{
+			weight = weigh( cacheKey, value );
+		}
+		catch( Throwable throwable )
+		{
+			return loadFailed( loading, cacheKey, throwable ); // The waiting threads must not be left hanging
+		}
+
+		long now = System.currentTimeMillis();
+		Loaded result = new Loaded( cacheKey, value, weight, now, expiration( now ), toMillis( loadNanos ) );
+		replace( cacheKey, loading, result ); // Put it in the cache first for all to find
+		loading.setResult( result ); // Notifies all waiting threads
+
+		___.debug( "load success [{}]", cacheKey );
+		return result;
+	}
+
+	/**
+	 * Puts the failure in the cache.
+	 *
+	 * @param loading The entry that was loading.
+	 * @param cacheKey The key of the entry.
+	 * @param throwable The cause of the failure.
+	 * @return The {@link Failed} entry.
+	 */
+	Failed loadFailed( Loading loading, Object cacheKey, Throwable throwable )
+	{
+		long now = System.currentTimeMillis();
+		Failed result = new Failed( cacheKey, throwable, now, expiration( now ) );
+		replace( cacheKey, loading, result ); // Put it in the cache first for all to find
+		loading.setResult( result ); // Notifies all waiting threads
+
+		___.debug( "load failed [{}]", cacheKey );
+		return result;
+	}
+
+	/**
+	 * Submits a reload to the refresh executor. When the reload can't be submitted, the old value is put back into the cache.
+	 *
+	 * @param reloading The entry to reload.
+	 * @param cacheKey The key of the entry to reload.
+	 * @param loader The loader to use.
+	 */
+	private void backgroundLoad( final Reloading reloading, final Object cacheKey, final Loader<?> loader )
+	{
+		if( this.refreshing.putIfAbsent( cacheKey, reloading ) != null )
+		{
+			final Reloading refresh = findRefresh( reloading, cacheKey );
+			if( refresh != null )
+			{
+				___.debug( "joining early refresh [{}]", cacheKey );
+				refresh.getFuture().addListener( new CacheFuture.Listener<Object>()
+				{
+					public void completed( Object value )
+					{
+						refreshed( reloading, cacheKey, (Loaded)refresh.getResult( cacheKey ) );
+					}
+
+					public void failed( Throwable throwable )
+					{
+						cancelBackgroundLoad( reloading, cacheKey );
+					}
+				} );
+				return;
+			}
+			___.debug( "background load already in progress [{}]", cacheKey );
+			cancelBackgroundLoad( reloading, cacheKey );
+			return;
+		}
+
+		if( this.pendingRefreshes.incrementAndGet() > this.maxPendingRefreshes )
+		{
+			backgroundLoadDone( reloading, cacheKey );
+			___.debug( "too many background loads [{}]", cacheKey );
+			cancelBackgroundLoad( reloading, cacheKey );
+			return;
+		}
+
+		try
+		{
+			getRefreshExecutor().execute( new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						load( reloading, cacheKey, loader );
+					}
+					catch( Throwable t )
+					{
+						// TODO Do not log ThreadDeath and ThreadInterrupted. Actually ThreadInterrupted will not be thrown here.
+						___.error( "", t );
+					}
+					finally
+					{
+						backgroundLoadDone( reloading, cacheKey );
+					}
+				}
+			} );
+			this.statistics.backgroundLoads.increment();
+		}
+		catch( RejectedExecutionException e )
+		{
+			backgroundLoadDone( reloading, cacheKey );
+			___.debug( "background load rejected [{}]", cacheKey );
+			cancelBackgroundLoad( reloading, cacheKey );
+		}
+	}
+
+	/**
+	 * Decides if a hit should refresh the value before it expires, and if so, submits a reload to the refresh executor.
+	 * Unlike a reload after expiration, the entry stays in the cache while it is being refreshed, so no caller ever waits
+	 * for an early refresh. When the refresh fails, the current value is kept until it expires.
+	 *
+	 * @param entry The entry that was hit.
+	 * @param cacheKey The key of the entry.
+	 * @param loader The loader to use.
+	 */
+	private void refreshEarly( final Loaded entry, final Object cacheKey, final Loader<?> loader )
+	{
+		long now = System.currentTimeMillis();
+		double window = entry.loadMillis * this.earlyRefreshBeta;
+		if( now + window * MAX_LOG_FACTOR < entry.getExpirationTime() )
+			return; // Too far from the expiration, no need for a random number
+		if( now - window * Math.log( random.nextDouble() ) < entry.getExpirationTime() )
+			return;
+
+		// The Reloading is not stored in the cache. It prevents concurrent refreshes of the same key, and lets a reload of
+		// the entry after it expired wait for the result of the refresh instead of loading the value again.
+		final Reloading reloading = new Reloading( entry, now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
+		if( this.refreshing.putIfAbsent( cacheKey, reloading ) != null )
+			return;
+		if( this.pendingRefreshes.incrementAndGet() > this.maxPendingRefreshes )
+		{
+			refreshDone( reloading, cacheKey, null );
+			return;
+		}
+
+		___.debug( "early refresh [{}]", cacheKey );
+		try
+		{
+			getRefreshExecutor().execute( new Runnable()
+			{
+				public void run()
+				{
+					CacheEntry result = null;
+					try
+					{
+						result = refresh( entry, cacheKey, loader );
+					}
+					finally
+					{
+						refreshDone( reloading, cacheKey, result );
+					}
+				}
+			} );
+			this.statistics.backgroundLoads.increment();
+		}
+		catch( RejectedExecutionException e )
+		{
+			refreshDone( reloading, cacheKey, null );
+		}
+	}
+
+	/**
+	 * Calls the loader and replaces the entry with the new value, if the entry is still in the cache. When the entry has
+	 * expired in the meantime, the reload that replaced it joins this refresh and puts the new value in the cache.
+	 *
+	 * @param entry The entry to refresh.
+	 * @param cacheKey The key of the entry.
+	 * @param loader The loader to use.
+	 * @return The new entry, or a {@link Failed} entry when the loader failed.
+	 */
+	CacheEntry refresh( Loaded entry, Object cacheKey, Loader<?> loader )
+	{
+		Object value;
+		long start = System.nanoTime();
+		try
+		{
+			value = loader.load();
+		}
+		catch( Throwable t )
+		{
+			this.statistics.loaded( System.nanoTime() - start, false );
+			___.error( "Early refresh failed [" + cacheKey + "]", t );
+			long now = System.currentTimeMillis();
+			return new Failed( cacheKey, t, now, now );
+		}
+		long nanos = System.nanoTime() - start;
+		this.statistics.loaded( nanos, true );
+
+		int weight;
+		try
+		{
+			weight = weigh( cacheKey, value );
+		}
+		catch( Throwable t )
+		{
+			___.error( "Early refresh failed [" + cacheKey + "]", t );
+			long now = System.currentTimeMillis();
+			return new Failed( cacheKey, t, now, now );
+		}
+
+		long now = System.currentTimeMillis();
+		Loaded result = new Loaded( cacheKey, value, weight, now, expiration( now ), toMillis( nanos ) );
+		if( this.cache.replace( cacheKey, entry, result ) ) // Does nothing when the entry has been replaced or purged already
+		{
+			removed( entry );
+			added( result );
+			___.debug( "refreshed [{}]", cacheKey );
+		}
+		return result;
+	}
+
+	/**
+	 * Ends an early refresh. The reloads that joined the refresh are notified.
+	 *
+	 * @param reloading The entry that represents the refresh.
+	 * @param cacheKey The key of the entry.
+	 * @param result The result of the refresh, or null when the refresh did not run.
+	 */
+	private void refreshDone( Reloading reloading, Object cacheKey, CacheEntry result )
+	{
+		backgroundLoadDone( reloading, cacheKey );
+		if( result == null )
+		{
+			long now = System.currentTimeMillis();
+			result = new Failed( cacheKey, new CacheException( "Early refresh did not run [" + cacheKey + "]", null ), now, now );
+		}
+		reloading.setResult( result ); // Notifies the joined reloads
+	}
+
+	/**
+	 * Returns the early refresh in progress of the entry that is being reloaded.
+	 *
+	 * @param reloading The reload of an expired entry.
+	 * @param cacheKey The key of the entry.
+	 * @return The early refresh of the same entry, or null if there is none.
+	 */
+	private Reloading findRefresh( Reloading reloading, Object cacheKey )
+	{
+		Reloading refresh = this.refreshing.get( cacheKey );
+		if( refresh == null || refresh == reloading || refresh.getOld() != reloading.getOld() )
+			return null;
+		return refresh;
+	}
+
+	/**
+	 * Puts the result of an early refresh in the cache in place of the reload that joined it.
+	 *
+	 * @param reloading The reload that joined the refresh.
+	 * @param cacheKey The key of the entry.
+	 * @param result The result of the refresh.
+	 */
+	void refreshed( Reloading reloading, Object cacheKey, Loaded result )
+	{
+		replace( cacheKey, reloading, result );
+		reloading.setResult( result ); // Notifies all waiting threads
+		___.debug( "refreshed [{}]", cacheKey );
+	}
+
+	/**
+	 * Returns the expiration time of a value stored now, with the jitter applied.
+	 *
+	 * @param now The now.
+	 * @return The expiration time.
+	 */
+	private long expiration( long now )
+	{
+		long expiration = this.expirationMillis;
+		double jitter = this.expirationJitter;
+		if( jitter > 0 )
+			expiration -= (long)( expiration * jitter * random.nextDouble() );
+		return now + expiration;
+	}
+
+	static private int toMillis( long nanos )
+	{
+		return (int)Math.min( Integer.MAX_VALUE, ( nanos + 999999 ) / 1000000 );
+	}
+
+	void backgroundLoadDone( Reloading reloading, Object cacheKey )
+	{
+		this.pendingRefreshes.decrementAndGet();
+		this.refreshing.remove( cacheKey, reloading );
+	}
+
+	/**
+	 * Puts the old value back into the cache. It is still expired, so the next access will try to reload it again.
+	 *
+	 * @param reloading The entry that could not be reloaded.
+	 * @param cacheKey The key of the entry.
+	 */
+	private void cancelBackgroundLoad( Reloading reloading, Object cacheKey )
+	{
+		Loaded old = reloading.getOld();
+		Loaded result = new Loaded( cacheKey, old.getValue(), old.weight, old.getStoredTime(), old.getExpirationTime(), old.loadMillis );
+		replace( cacheKey, reloading, result );
+		reloading.setResult( result ); // Notifies all waiting threads
+	}
+
+	/**
+	 * Purges entries from the cache which have aged a lot or can't be used anymore.
+	 */
+	private void purge()
+	{
+		___.debug( "Purging..." );
+
+		long now = System.currentTimeMillis();
+		for( Entry<Object, CacheEntry> entry : this.cache.entrySet() )
+			purge( entry.getKey(), entry.getValue(), now );
+		purgeOffHeap( now );
+	}
+
+	/**
+	 * Purges the values from the off-heap tier that have aged a lot or can't be used anymore.
+	 *
+	 * @param now The now.
+	 */
+	private void purgeOffHeap( long now )
+	{
+		OffHeapStore offHeap = this.offHeap;
+		if( offHeap != null )
+			this.statistics.purges.add( offHeap.purge( now - this.gracePeriodMillis, now - this.purgeAgeMillis ) );
+	}
+
+	/**
+	 * Purges a single entry. Loads that timed out or have aged a lot are replaced by a failure, so that the waiting
+	 * threads are notified. Other entries are removed when they have aged a lot or when they can't be used anymore.
+	 *
+	 * @param cacheKey The key of the entry.
+	 * @param entry The entry.
+	 * @param now The now.
+	 */
+	private void purge( Object cacheKey, CacheEntry entry, long now )
+	{
+		long then = now - this.purgeAgeMillis;
+
+		if( entry instanceof Loading )
+		{
+			if( now < entry.getExpirationTime() && entry.getStoredTime() >= then )
+				return;
+			Exception e = new IllegalStateException( "LoadingCacheEntry purged from cache [" + cacheKey + "]" );
+			Failed failed = new Failed( cacheKey, e, now, now + this.expirationMillis );
+			if( this.cache.replace( cacheKey, entry, failed ) ) // Only replace it when it has not been replaced in the meantime
+			{
+				added( failed );
+				( (Loading)entry ).setResult( failed ); // Notifies all waiting threads
+				___.warn( "purged loading [{}]", cacheKey );
+				this.statistics.timeouts.increment();
+			}
+			return;
+		}
+
+		long usable = entry.getExpirationTime();
+		if( entry instanceof Loaded )
+			usable += this.gracePeriodMillis;
+		if( ( entry.getStoredTime() < then || now >= usable ) && this.cache.remove( cacheKey, entry ) ) // Only remove it when it has not been replaced in the meantime
+		{
+			removed( (Resident)entry );
+			___.debug( "purged [{}]", cacheKey );
+			this.statistics.purges.increment();
+		}
+	}
+
+	/**
+	 * Called by the {@link CacheManager} when it starts or stops managing this cache.
+	 *
+	 * @param manager The cache manager, or null.
+	 */
+	synchronized void setManager( CacheManager manager )
+	{
+		if( manager != null && this.manager != null )
+			throw new IllegalStateException( "Cache [" + this.name + "] is already managed" );
+		this.manager = manager;
+	}
+
+	/**
+	 * Returns a sweeper which lets the {@link CacheManager} purge this cache in time slices.
+	 *
+	 * @return A sweeper for this cache.
+	 */
+	CacheManager.Sweeper<Object, CacheEntry> newSweeper()
+	{
+		return new CacheManager.Sweeper<Object, CacheEntry>()
+		{
+			@Override
+			Object getCache()
+			{
+				return ReadThroughCache.this;
+			}
+
+			@Override
+			long getTime()
+			{
+				return System.currentTimeMillis();
+			}
+
+			@Override
+			Iterator<Entry<Object, CacheEntry>> iterator()
+			{
+				return ReadThroughCache.this.cache.entrySet().iterator();
+			}
+
+			@Override
+			void sweep( Object cacheKey, CacheEntry entry, long now )
+			{
+				purge( cacheKey, entry, now );
+			}
+
+			@Override
+			void swept( long now )
+			{
+				purgeOffHeap( now );
+			}
+		};
+	}
+
+	/**
+	 * Serializes an evicted value into the off-heap tier, if there is one.
+	 *
+	 * @param victim The evicted entry.
+	 */
+	private void demote( Resident victim )
+	{
+		OffHeapStore offHeap = this.offHeap;
+		if( offHeap == null || !( victim instanceof Loaded ) )
+			return;
+		Object value = ( (Loaded)victim ).getValue();
+		if( !( value instanceof Serializable ) )
+			return;
+
+		byte[] data;
+		try
+		{
+			data = OffHeapStore.serialize( value );
+		}
+		catch( IOException e )
+		{
+			___.debug( "not serializable [{}]", victim.getKey(), e );
+			return;
+		}
+		if( offHeap.put( victim.getKey(), data, victim.getStoredTime(), victim.getExpirationTime(), ( (Loaded)victim ).loadMillis ) )
+			___.debug( "demoted [{}]", victim.getKey() );
+	}
+
+	/**
+	 * Takes a value out of the off-heap tier, if there is one.
+	 *
+	 * @param cacheKey The key of the value.
+	 * @param now The now.
+	 * @return The entry to put back into the cache, or null if the value was not found or can't be used anymore.
+	 */
+	private Loaded promote( Object cacheKey, long now )
+	{
+		OffHeapStore offHeap = this.offHeap;
+		if( offHeap == null )
+			return null;
+		OffHeapStore.Value value = offHeap.remove( cacheKey );
+		if( value == null || now >= value.expire + this.gracePeriodMillis )
+			return null;
+
+		Object result;
+		try
+		{
+			result = OffHeapStore.deserialize( value.data );
+		}
+		catch( Exception e )
+		{
+			___.warn( "Could not deserialize [" + cacheKey + "]", e );
+			return null;
+		}
+		return new Loaded( cacheKey, result, weigh( cacheKey, result ), value.stored, value.expire, value.loadMillis );
+	}
+
+	private int weigh( Object cacheKey, Object value )
+	{
+		Weigher weigher = this.weigher;
+		if( weigher == null || !this.bounded )
+			return 1;
+		int weight = weigher.weigh( cacheKey, value );
+		if( weight < 0 )
+			throw new IllegalStateException( "Weigher returned a negative weight [" + cacheKey + "]" );
+		return weight;
 	}
 
 	/**
-	 * Sets the blocking mode.
+	 * Records the access of an entry in the read buffer. When the buffer is half full it gets drained, but only if the
+	 * eviction lock is available. When the buffer is full, accesses are dropped.
 	 *
-	 * @param blockingMode The blocking mode.
+	 * @param entry The entry accessed.
 	 */
-	public void setBlockingMode( BlockingMode blockingMode )
+	private void accessed( Resident entry )
 	{
-		this.blockingMode = blockingMode;
+		int stripe = (int)Thread.currentThread().getId() & READ_BUFFER_STRIPES - 1;
+		int count = this.readCounts.getAndIncrement( stripe << 4 );
+		if( count < READ_BUFFER_SIZE )
+			this.readBuffer.set( stripe * READ_BUFFER_SIZE + count, entry );
+		if( count >= READ_BUFFER_SIZE / 2 && this.evictionLock.tryLock() )
+			try
+			{
+				drainReadBuffer();
+			}
+			finally
+			{
+				this.evictionLock.unlock();
+			}
 	}
 
-	// END ------ Getters & Setters
-
-
-
-	// ! No logging inside synchronized blocks !
-
-	// TODO get with blocking mode override
-	// TODO get without loader: 1 loader is configured and receives the key to determine what it should load
-	// TODO named parameters, key becomes: par1:dkjhdkjh;par2:dkjhdkjh, pars sorted
-
 	/**
-	 * Get a value from the cache. If the value is not found or the value is expired, the loader is called to get a new
-	 * value to store in the cache. During load, other threads that are trying to get the same value are blocked until
-	 * loading is finished.
+	 * Adds an entry that has just been stored in the cache to the eviction order, and evicts entries when needed.
 	 *
-	 * @param loader The loader to load values.
-	 * @param key The key into the cache.
-	 * @return The value belonging to the key.
+	 * @param entry The entry that has been stored in the cache.
 	 */
-	@SuppressWarnings( "unchecked" )
-	public <T> T get( final Loader<T> loader, Object... key )
+	private void added( Resident entry )
 	{
-		final String keyString = buildKey( key );
-
-		CacheEntry result;
-		Loading loading = null;
-		Failed failed = null;
+		if( !this.bounded )
+			return;
 
-		long now;
-
-		// Purge
-		boolean purge = false;
-		synchronized( this.nextPurgeMillisLock )
+		List<Resident> evicted;
+		this.evictionLock.lock();
+		try
 		{
-			now = System.currentTimeMillis(); // Get the time after entering the synchronized block
-			if( now >= this.nextPurgeMillis ) // A long is not thread safe!
+			drainReadBuffer();
+			if( entry.state == NEW ) // It could have been replaced already
 			{
-				this.nextPurgeMillis = now + this.purgeIntervalMillis;
-				purge = true;
+				if( this.evictionPolicy == EvictionPolicy.TINY_LFU )
+					sketch().increment( entry.getKey() );
+				link( entry );
+				entry.state = LINKED;
+				this.entryCount++;
+				this.totalWeight += entry.weight;
 			}
+			else
+				entry.state = RETIRED;
+			evicted = evictLocked( entry );
 		}
-		if( purge )
-			purge(); // TODO Separate thread? Depends on the speed, should not be needed.
-
-		// Read the cache, check for expiration and control (re)loading
-		String __ = null;
-		synchronized( this.cache )
+		finally
 		{
-			now = System.currentTimeMillis(); // Get the time after entering the synchronized block
-
-			result = this.cache.get( keyString );
-
-			if( result == null )
-			{
-				loading = new Loading( now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
-				this.cache.put( keyString, loading );
-				__ = "miss [{}]";
-			}
-			else if( now >= result.getExpirationTime() )
-			{
-				if( result instanceof Loaded )
-				{
-					if( now < result.getExpirationTime() + this.gracePeriodMillis )
-					{
-						loading = new Reloading( ( (Loaded)result ).getValue(), now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
-						__ = "expired grace [{}]";
-					}
-					else
-					{
-						loading = new Loading( now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
-						__ = "expired [{}]";
-					}
-					this.cache.put( keyString, loading );
-				}
-				else if( result instanceof Failed )
-				{
-					loading = new Loading( now, now + this.loadTimeoutMillis, this.waitTimeoutMillis );
-					this.cache.put( keyString, loading );
-					__ = "fail expired [{}]";
-				}
-				else
-				{
-					Exception e = new IllegalStateException( "LoadingCacheEntry expired in cache" );
-					failed = new Failed( e, now, now + this.expirationMillis );
-					this.cache.put( keyString, failed );
-				}
-			}
+			this.evictionLock.unlock();
 		}
 
-		if( failed != null )
+		for( Resident victim : evicted )
 		{
-			// Want to do this outside the synchronized block
-			( (Loading)result ).setResult( failed ); // Notifies all waiting threads
-			result = failed;
-			__ = "load expired [{}]";
+			___.debug( "evicted [{}]", victim.getKey() );
+			demote( victim );
 		}
+	}
 
-		if( __ != null )
-			___.debug( __, keyString );
-
-		// 1. result contains a CacheEntry or null
-		// 2. loading contains an entry we need to load and overrules result
+	/**
+	 * Removes an entry that has been replaced or purged from the eviction order.
+	 *
+	 * @param entry The entry that has been removed from the cache.
+	 */
+	private void removed( Resident entry )
+	{
+		if( !this.bounded )
+			return;
 
-		if( loading != null )
+		this.evictionLock.lock();
+		try
 		{
-			if( this.blockingMode == BlockingMode.NONE && loading instanceof Reloading )
+			if( entry.state == LINKED )
 			{
-				Reloading reloading = (Reloading)loading;
-				___.debug( "background load [" + keyString + "]" );
-				backgroundLoad( reloading, keyString, loader );
-				___.debug( "use old [" + keyString + "]" );
-				return (T)reloading.getOldValue();
+				unlink( entry );
+				this.entryCount--;
+				this.totalWeight -= entry.weight;
 			}
-
-			___.debug( "blocking load [" + keyString + "]" );
-			return load( loading, keyString, loader );
+			entry.state = RETIRED;
 		}
-
-		// 1. result contains a CacheEntry
-
-		if( result instanceof Loading )
+		finally
 		{
-			if( this.blockingMode != BlockingMode.ALL && result instanceof Reloading )
-			{
-				___.debug( "use old [" + keyString + "]" );
-				return (T)( (Reloading)result ).getOldValue();
-			}
-			___.debug( "waiting [" + keyString + "]" );
-			result = ( (Loading)result ).getResult( keyString ); // Blocking
-			___.debug( "ready [" + keyString + "]" );
+			this.evictionLock.unlock();
 		}
+	}
 
-		// 1. result contains a Loaded or a Failed
-
-		if( result instanceof Loaded )
+	private void evict()
+	{
+		List<Resident> evicted;
+		this.evictionLock.lock();
+		try
 		{
-			___.debug( "hit [" + keyString + "]" );
-			return (T)( (Loaded)result ).getValue();
+			evicted = evictLocked( null );
+		}
+		finally
+		{
+			this.evictionLock.unlock();
 		}
 
-		// Wrap because we wouldn't want to rethrow ThreadDeath or ThreadInterrupted, which would cause this thread to kill itself too
-		throw new CacheException( "Previous load failed", ( (Failed)result ).getThrowable() );
-	}
-
-	private void replace( String keyString, CacheEntry original, CacheEntry replacement )
-	{
-		synchronized( this.cache )
+		for( Resident victim : evicted )
 		{
-			CacheEntry e = this.cache.get( keyString );
-			if( e != original )
-				return;
-			this.cache.put( keyString, replacement );
+			___.debug( "evicted [{}]", victim.getKey() );
+			demote( victim );
 		}
 	}
 
 	/**
-	 * Call the loader and put the result in the cache.
+	 * Evicts entries until the cache is within its bounds. Must be called while holding the eviction lock.
 	 *
-	 * @param loading The entry to load.
-	 * @param keyString The key of the entry to load.
-	 * @param loader The loader to use.
-	 * @return The value loaded.
+	 * @param candidate The entry that has just been added, or null.
+	 * @return The evicted entries.
 	 */
-	<T> T load( Loading loading, String keyString, Loader<T> loader )
+	private List<Resident> evictLocked( Resident candidate )
 	{
-		T value;
+		List<Resident> evicted = new ArrayList<Resident>( 0 );
+		int maxEntries = this.maxEntries;
+		long maxWeight = this.maxWeight;
+		boolean tinyLfu = this.evictionPolicy == EvictionPolicy.TINY_LFU;
 
-		try
-		{
-			value = loader.load();
-		}
-		catch( Throwable throwable )
+		while( this.head != null && ( maxEntries > 0 && this.entryCount > maxEntries || maxWeight > 0 && this.totalWeight > maxWeight ) )
 		{
-			long now = System.currentTimeMillis();
-			CacheEntry result = new Failed( throwable, now, now + this.expirationMillis );
-			replace( keyString, loading, result ); // Put it in the cache first for all to find
-			loading.setResult( result ); // Notifies all waiting threads
-
-			___.debug( "load failed [" + keyString + "]" );
+			Resident victim = this.head;
+			if( tinyLfu && candidate != null && candidate != victim && candidate.state == LINKED )
+			{
+				FrequencySketch sketch = sketch();
+				if( sketch.frequency( candidate.getKey() ) < sketch.frequency( victim.getKey() ) )
+					victim = candidate; // The candidate is not admitted
+			}
+			candidate = null;
 
-			if( throwable instanceof Error )
-				throw (Error)throwable;
-			if( throwable instanceof RuntimeException )
-				throw (RuntimeException)throwable;
-			throw new CacheException( "Unexpected checked exception", throwable );
+			unlink( victim );
+			victim.state = RETIRED;
+			this.entryCount--;
+			this.totalWeight -= victim.weight;
+			if( this.cache.remove( victim.getKey(), victim ) ) // Does nothing when the entry has been replaced in the meantime
+			{
+				evicted.add( victim );
+				this.statistics.evictions.increment();
+			}
 		}
 
-		long now = System.currentTimeMillis();
-		CacheEntry result = new Loaded( value, now, now + this.expirationMillis );
-		replace( keyString, loading, result ); // Put it in the cache first for all to find
-		loading.setResult( result ); // Notifies all waiting threads
-
-		___.debug( "load success [" + keyString + "]" );
-
-		return value;
+		return evicted;
 	}
 
-	private void backgroundLoad( final Loading loading, final String keyString, final Loader<?> loader )
+	/**
+	 * Applies the recorded accesses to the eviction order. Must be called while holding the eviction lock.
+	 */
+	private void drainReadBuffer()
 	{
-		new Thread() // TODO Should this thread be managed?
+		boolean tinyLfu = this.evictionPolicy == EvictionPolicy.TINY_LFU;
+		for( int stripe = 0; stripe < READ_BUFFER_STRIPES; stripe++ )
 		{
-			@Override
-			public void run()
+			int count = this.readCounts.get( stripe << 4 );
+			if( count == 0 )
+				continue;
+			if( count > READ_BUFFER_SIZE )
+				count = READ_BUFFER_SIZE;
+			int start = stripe * READ_BUFFER_SIZE;
+			for( int i = start; i < start + count; i++ )
 			{
-				try
-				{
-					load( loading, keyString, loader );
-				}
-				catch( Throwable t )
+				Resident entry = this.readBuffer.getAndSet( i, null );
+				if( entry != null && entry.state == LINKED )
 				{
-					// TODO Do not log ThreadDeath and ThreadInterrupted. Actually ThreadInterrupted will not be thrown here.
-					___.error( "", t );
+					if( tinyLfu )
+						sketch().increment( entry.getKey() );
+					if( entry != this.tail )
+					{
+						unlink( entry );
+						link( entry );
+					}
 				}
 			}
-		}.start();
+			this.readCounts.set( stripe << 4, 0 ); // Accesses recorded in the meantime may get lost
+		}
+	}
+
+	private FrequencySketch sketch()
+	{
+		int capacity = this.maxEntries > 0 ? this.maxEntries : this.entryCount;
+		if( this.sketch == null )
+			this.sketch = new FrequencySketch( capacity );
+		else
+			this.sketch.ensureCapacity( capacity );
+		return this.sketch;
+	}
+
+	private void link( Resident entry )
+	{
+		entry.prev = this.tail;
+		entry.next = null;
+		if( this.tail != null )
+			this.tail.next = entry;
+		else
+			this.head = entry;
+		this.tail = entry;
+	}
+
+	private void unlink( Resident entry )
+	{
+		if( entry.prev != null )
+			entry.prev.next = entry.next;
+		else
+			this.head = entry.next;
+		if( entry.next != null )
+			entry.next.prev = entry.prev;
+		else
+			this.tail = entry.prev;
+		entry.prev = entry.next = null;
 	}
 
 	/**
-	 * Purges entries from the cache which have aged a lot.
+	 * Creates an executor that starts a virtual thread for each background reload. Virtual threads are available from Java
+	 * 21 onwards.
 	 *
-	 * @param now The now.
+	 * @return An executor that starts a virtual thread for each task.
+	 * @throws UnsupportedOperationException When the JVM does not support virtual threads.
 	 */
-	// TODO What about a collector that runs more frequent to collect load timeouts?
-	// TODO And what about a separate thread for the collector? But we do not want 1000 threads when someone creates 1000 different caches. So we need a cache manager.
-	private void purge()
+	static public Executor newVirtualThreadExecutor()
 	{
-		___.debug( "Purging..." );
-
-		long now = System.currentTimeMillis();
-		long then = now - this.purgeAgeMillis;
-		List<Map.Entry<String, CacheEntry>> purged = new ArrayList<Map.Entry<String, CacheEntry>>();
-
-		synchronized( this.cache )
+		Method method;
+		try
 		{
-			for( Iterator<Map.Entry<String, CacheEntry>> iter = this.cache.entrySet().iterator(); iter.hasNext(); )
-			{
-				Entry<String, CacheEntry> entry = iter.next();
-				CacheEntry e = entry.getValue();
-				if( e.getStoredTime() < then )
-				{
-					iter.remove();
-					purged.add( entry );
-				}
-			}
+			method = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+		}
+		catch( NoSuchMethodException e )
+		{
+			throw new UnsupportedOperationException( "Virtual threads are not supported by this JVM" );
+		}
+		try
+		{
+			return (Executor)method.invoke( null );
+		}
+		catch( IllegalAccessException e )
+		{
+			throw new SystemException( e );
+		}
+		catch( InvocationTargetException e )
+		{
+			throw new SystemException( e.getCause() );
 		}
-
-		for( Entry<String, CacheEntry> entry : purged )
-			if( entry.getValue() instanceof Loading )
-			{
-				___.warn( "purged loading [{}]", entry.getKey() );
-				Exception ex = new IllegalStateException( "LoadingCacheEntry purged from cache [" + entry.getKey() + "]" );
-				CacheEntry failed = new Failed( ex, now, now + this.expirationMillis );
-				( (Loading)entry.getValue() ).setResult( failed );
-			}
-			else
-				___.debug( "purged [{}]", entry.getKey() );
 	}
 
 	/**
@@ -611,7 +2350,9 @@ public class ReadThroughCache
 	 *
 	 * @param objects The array of objects.
 	 * @return The resulting key.
+	 * @deprecated The cache does not use string keys anymore, see {@link CacheKey}.
 	 */
+	@Deprecated
 	static public String buildKey( Object... objects )
 	{
 		StringBuilder result = new StringBuilder( 32 );
@@ -648,6 +2389,20 @@ public class ReadThroughCache
 	}
 
 
+	/**
+	 * Holds the default refresh executor, which is created when it is needed for the first time.
+	 */
+	static private class DefaultRefreshExecutor
+	{
+		static final Executor INSTANCE;
+		static
+		{
+			int threads = Math.max( 4, Runtime.getRuntime().availableProcessors() );
+			INSTANCE = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory( "ReadThroughCache-refresh" ) );
+		}
+	}
+
+
 	// ---------- Here are the cache entry types
 
 	/**
@@ -686,11 +2441,14 @@ public class ReadThroughCache
 
 	/**
 	 * Cache entry representing a load in progress. Has one mutable field where the result is stored. All access to this field is synchronized.
+	 * The first caller that claims this entry is responsible for loading it.
 	 */
 	static private class Loading extends CacheEntry
 	{
 		private CacheEntry result;
 		private int waitTimeoutMillis;
+		private boolean claimed;
+		private CacheFuture<Object> future;
 
 		Loading( long stored, long expiration, int waitTimeoutMillis )
 		{
@@ -704,7 +2462,7 @@ public class ReadThroughCache
 		 * @param key The key of the entry, only used for logging.
 		 * @return The result of the load. This could be a {@link Loaded} or a {@link Failed} cache entry.
 		 */
-		synchronized public CacheEntry getResult( String key ) // TODO Don't like this parameter
+		synchronized public CacheEntry getResult( Object key ) // TODO Don't like this parameter
 		{
 			// Don't wait if loading has finished already, we won't get a notify then
 			if( this.result != null )
@@ -741,14 +2499,59 @@ public class ReadThroughCache
 			return this.result;
 		}
 
-		synchronized public void setResult( CacheEntry result )
+		public void setResult( CacheEntry result )
 		{
-			// TODO 2 messages, one if Failed already, and one if not Failed
-			if( this.result != null )
-				throw new IllegalStateException( "result is already filled, the (re)load probably took too long" );
+			CacheFuture<Object> future;
+			synchronized( this )
+			{
+				// TODO 2 messages, one if Failed already, and one if not Failed
+				if( this.result != null )
+					throw new IllegalStateException( "result is already filled, the (re)load probably took too long" );
+
+				this.result = result;
+				notifyAll();
+				future = this.future;
+			}
+
+			if( future != null )
+				complete( future, result );
+		}
 
-			this.result = result;
-			notifyAll();
+		/**
+		 * Claims this entry. Only the first call returns true.
+		 *
+		 * @return True if the caller is now responsible for loading this entry, false otherwise.
+		 */
+		synchronized public boolean claim()
+		{
+			if( this.claimed )
+				return false;
+			this.claimed = true;
+			return true;
+		}
+
+		/**
+		 * Returns the future that completes when the result is set. All callers get the same future.
+		 *
+		 * @return The future that completes when the result is set.
+		 */
+		synchronized public CacheFuture<Object> getFuture()
+		{
+			if( this.future == null )
+			{
+				this.future = new CacheFuture<Object>();
+				if( this.result != null )
+					complete( this.future, this.result ); // Nobody is listening yet
+			}
+			return this.future;
+		}
+
+		static private void complete( CacheFuture<Object> future, CacheEntry result )
+		{
+			if( result instanceof Loaded )
+				future.complete( ( (Loaded)result ).getValue() );
+			else
+				future.fail( ( (Failed)result ).getThrowable() );
 		}
 	}
 
@@ -758,12 +2561,12 @@ public class ReadThroughCache
 	 */
 	static private class Reloading extends Loading
 	{
-		private Object oldValue;
+		private Loaded old;
 
-		Reloading( Object oldValue, long stored, long expiration, int waitTimeoutMillis )
+		Reloading( Loaded old, long stored, long expiration, int waitTimeoutMillis )
 		{
 			super( stored, expiration, waitTimeoutMillis );
-			this.oldValue = oldValue;
+			this.old = old;
 		}
 
 		/**
@@ -773,21 +2576,62 @@ public class ReadThroughCache
 		 */
 		public Object getOldValue()
 		{
-			return this.oldValue;
+			return this.old.getValue();
+		}
+
+		/**
+		 * Returns the cache entry that is being reloaded.
+		 *
+		 * @return The cache entry that is being reloaded.
+		 */
+		public Loaded getOld()
+		{
+			return this.old;
+		}
+	}
+
+	/**
+	 * A cache entry that takes part in the eviction order. Apart from the key and the weight, all fields are only
+	 * accessed while holding the eviction lock.
+	 */
+	static abstract private class Resident extends CacheEntry
+	{
+		private Object key;
+		int weight;
+		int state = NEW;
+		Resident prev, next;
+
+		protected Resident( Object key, int weight, long stored, long expiration )
+		{
+			super( stored, expiration );
+			this.key = key;
+			this.weight = weight;
+		}
+
+		/**
+		 * Returns the key of this cache entry.
+		 *
+		 * @return The key of this cache entry.
+		 */
+		public Object getKey()
+		{
+			return this.key;
 		}
 	}
 
 	/**
 	 * Represents a loaded cache entry. This is an immutable object.
 	 */
-	static private class Loaded extends CacheEntry
+	static private class Loaded extends Resident
 	{
 		private Object value;
+		private int loadMillis;
 
-		Loaded( Object value, long stored, long expiration )
+		Loaded( Object key, Object value, int weight, long stored, long expiration, int loadMillis )
 		{
-			super( stored, expiration );
+			super( key, weight, stored, expiration );
 			this.value = value;
+			this.loadMillis = loadMillis;
 		}
 
 		/**
@@ -804,13 +2648,13 @@ public class ReadThroughCache
 	/**
 	 * Represents a cache entry that failed to load. This is an immutable object.
 	 */
-	static private class Failed extends CacheEntry
+	static private class Failed extends Resident
 	{
 		private Throwable throwable;
 
-		Failed( Throwable throwable, long stored, long expiration )
+		Failed( Object key, Throwable throwable, long stored, long expiration )
 		{
-			super( stored, expiration );
+			super( key, 0, stored, expiration );
 			this.throwable = throwable;
 		}
 
@@ -820,6 +2664,21 @@ public class ReadThroughCache
 		}
 	}
 
+	/**
+	 * Determines the weight of a value in the cache.
+	 */
+	static public interface Weigher
+	{
+		/**
+		 * Determines the weight of a value.
+		 *
+		 * @param key The key of the value.
+		 * @param value The value, can be null.
+		 * @return The weight of the value, must not be negative.
+		 */
+		int weigh( Object key, Object value );
+	}
+
 	/**
 	 * Interface used to load something.
 	 *
@@ -834,4 +2693,59 @@ public class ReadThroughCache
 		 */
 		T load();
 	}
+
+	/**
+	 * Interface used to load multiple things at once.
+	 *
+	 * @param <K> The type of the keys.
+	 * @param <T> The type of that which is going to be loaded.
+	 */
+	static public interface BulkLoader<K, T>
+	{
+		/**
+		 * Load the values belonging to the given keys.
+		 *
+		 * @param keys The keys to load the values for.
+		 * @return The values by key. Keys that have no value may be left out.
+		 */
+		Map<K, T> load( Set<K> keys );
+	}
+
+	/**
+	 * Interface used to load something without blocking the caller.
+	 *
+	 * @param <T> The type of that which is going to be loaded.
+	 */
+	static public interface AsyncLoader<T>
+	{
+		/**
+		 * Start loading something. This method should not block. When loading is done, the callback must be called exactly
+		 * once, from any thread.
+		 *
+		 * @param callback The callback to call when loading is done.
+		 */
+		void load( LoadCallback<T> callback );
+	}
+
+	/**
+	 * Called by an {@link AsyncLoader} when loading is done.
+	 *
+	 * @param <T> The type of that which has been loaded.
+	 */
+	static public interface LoadCallback<T>
+	{
+		/**
+		 * Loading succeeded.
+		 *
+		 * @param value That which has been loaded.
+		 */
+		void loaded( T value );
+
+		/**
+		 * Loading failed.
+		 *
+		 * @param throwable The cause of the failure.
+		 */
+		void failed( Throwable throwable );
+	}
 }
@@ -16,12 +16,11 @@
 
 package solidstack.cache;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +36,8 @@ import org.slf4j.LoggerFactory;
  * busy refreshing a specific value, but this should not pose any problem.</li>
  * <li>This cache does not care about memory. It will hold on to every value that gets stored in it. Each hour however,
  * all values that are not refreshed within the last hour will be purged.</li>
- * <li>No extra threads are used. Everything is done in the calling thread.</li>
+ * <li>No extra threads are used. Everything is done in the calling thread. Unless the cache is managed by a
+ * {@link CacheManager}, then the purging is done in the background by the cache manager.</li>
  * </ul>
  *
  * @author Ren de Bloois
@@ -72,10 +72,15 @@ public class SimpleCache
 	 */
 	static private final SimpleCache defaultCache = new SimpleCache();
 
+	/**
+	 * The name of the cache.
+	 */
+	private String name;
+
 	/**
 	 * The cache.
 	 */
-	private Map<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+	private ConcurrentMap<Object, CacheEntry> cache = new ConcurrentHashMap<Object, CacheEntry>();
 
 	/**
 	 * Current expiration interval.
@@ -100,7 +105,24 @@ public class SimpleCache
 	/**
 	 * The next purge moment.
 	 */
-	private long nextPurgeMillis;
+	private AtomicLong nextPurgeMillis;
+
+	/**
+	 * The cache manager that purges this cache, or null.
+	 */
+	private volatile CacheManager manager;
+
+	/**
+	 * The statistics.
+	 */
+	private final CacheStatistics statistics = new CacheStatistics()
+	{
+		@Override
+		public int getSize()
+		{
+			return size();
+		}
+	};
 
 
 	/**
@@ -114,7 +136,18 @@ public class SimpleCache
 		this.purgePeriodMillis = DEFAULT_PURGE_INTERVAL_MILLIS;
 		this.purgeAgeMillis = DEFAULT_PURGE_AGE_MILLIS;
 
-		this.nextPurgeMillis = getTime() + this.purgePeriodMillis;
+		this.nextPurgeMillis = new AtomicLong( getTime() + this.purgePeriodMillis );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name The name of the cache.
+	 */
+	public SimpleCache( String name )
+	{
+		this();
+		this.name = name;
 	}
 
 	/**
@@ -127,6 +160,16 @@ public class SimpleCache
 		return defaultCache;
 	}
 
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return The name of the cache, can be null.
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
 	/**
 	 * Returns the current time in milliseconds. This method could be overridden in a subclass to simulate time in a unit test.
 	 *
@@ -147,26 +190,38 @@ public class SimpleCache
 	 * @return The cache entry in which the value is stored.
 	 */
 	public CacheEntry put( Object value, Object... key )
+	{
+		return put( value, CacheKey.toKey( key ) );
+	}
+
+	/**
+	 * Store a value with a single object as the key. The key object must implement equals() and hashCode(), and must not
+	 * change while it is in the cache. See also {@link CacheKey}.
+	 *
+	 * @param key The key used to store the value in the cache.
+	 * @param value The value that should be stored in the cache.
+	 * @return The cache entry in which the value is stored.
+	 * @see #put(Object, Object...)
+	 */
+	public CacheEntry put( Object value, Object key )
 	{
 		long now = getTime();
 
-		String keyString = buildKey( key );
+		Object cacheKey = CacheKey.toKey( key );
 		CacheEntry entry = new CacheEntry( value, now, now + this.expirationMillis );
 
-		synchronized( this.cache )
-		{
-			this.cache.put( keyString, entry );
+		this.cache.put( cacheKey, entry );
 
-			if( now >= this.nextPurgeMillis ) // A long is not thread safe! So we need to do this in the same synchronized block.
-			{
-				// A CHANCE TO PURGE EVERY SO OFTEN
-				this.nextPurgeMillis = now + this.purgePeriodMillis;
+		log.debug( "cached [{}]", cacheKey );
+
+		// A CHANCE TO PURGE EVERY SO OFTEN, only the thread that succeeds in moving the purge moment forward will purge
+		if( this.manager == null )
+		{
+			long nextPurge = this.nextPurgeMillis.get();
+			if( now >= nextPurge && this.nextPurgeMillis.compareAndSet( nextPurge, now + this.purgePeriodMillis ) )
 				purge( now );
-			}
 		}
 
-		log.debug( "cached [" + keyString + "]" ); // Logging outside the synchronized block!
-
 		return entry;
 	}
 
@@ -179,8 +234,20 @@ public class SimpleCache
 	 * @param key The key of the value that should be retrieved.
 	 * @return The value with the specified key, or null if not found or expired.
 	 */
-	@SuppressWarnings( "unchecked" )
 	public <T> T get( Object... key )
+	{
+		return this.<T>get( CacheKey.toKey( key ) );
+	}
+
+	/**
+	 * Retrieve a value with a single object as the key.
+	 *
+	 * @param key The key of the value that should be retrieved.
+	 * @return The value with the specified key, or null if not found or expired.
+	 * @see #get(Object...)
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <T> T get( Object key )
 	{
 		CacheEntry entry = getEntry( key );
 		if( entry == null )
@@ -201,36 +268,51 @@ public class SimpleCache
 	 */
 	public CacheEntry getEntry( Object... key )
 	{
-		String keyString = buildKey( key );
+		return getEntry( CacheKey.toKey( key ) );
+	}
+
+	/**
+	 * Retrieve a cache entry with a single object as the key.
+	 *
+	 * @param key The key of the value that should be retrieved.
+	 * @return the cache entry with the specified key, or null if not found or expired.
+	 * @see #getEntry(Object...)
+	 */
+	public CacheEntry getEntry( Object key )
+	{
+		Object cacheKey = CacheKey.toKey( key );
 
 		long now = getTime();
 		boolean expired = false;
 
-		CacheEntry entry;
-		synchronized( this.cache )
-		{
-			entry = this.cache.get( keyString );
-			if( entry != null && now >= entry.getExpirationTime() )
+		CacheEntry entry = this.cache.get( cacheKey );
+		if( entry != null )
+			synchronized( entry ) // Only the first thread that finds the entry expired gets null
 			{
-				entry.setExpirationTime( now + this.extendMillis );
-				expired = true;
-				entry = null;
+				if( now >= entry.getExpirationTime() )
+				{
+					entry.setExpirationTime( now + this.extendMillis );
+					expired = true;
+					entry = null;
+				}
 			}
-		}
 
 		if( entry != null )
 		{
-			log.debug( "cache hit [" + keyString + "]" );
+			log.debug( "cache hit [{}]", cacheKey );
+			this.statistics.hits.increment();
 			return entry;
 		}
 
+		this.statistics.misses.increment();
+
 		if( expired )
 		{
-			log.debug( "cache expired [" + keyString + "]" );
+			log.debug( "cache expired [{}]", cacheKey );
 			return null;
 		}
 
-		log.debug( "cache misssss [" + keyString + "]" );
+		log.debug( "cache misssss [{}]", cacheKey );
 		return null;
 	}
 
@@ -243,26 +325,91 @@ public class SimpleCache
 	{
 		log.debug( "Purging..." );
 
-		long then = now - this.purgeAgeMillis;
-		boolean debug = log.isDebugEnabled();
-		List<String> keys = new ArrayList<String>();
+		for( Entry<Object, CacheEntry> entry : this.cache.entrySet() )
+			purge( entry.getKey(), entry.getValue(), now );
+	}
 
-		synchronized( this.cache )
+	/**
+	 * Purges the entry if it is expired.
+	 *
+	 * @param cacheKey The key of the entry.
+	 * @param entry The entry.
+	 * @param now The now.
+	 */
+	void purge( Object cacheKey, CacheEntry entry, long now )
+	{
+		if( entry.getExpirationTime() < now - this.purgeAgeMillis && this.cache.remove( cacheKey, entry ) ) // Only remove it when it has not been replaced in the meantime
 		{
-			for( Iterator<Map.Entry<String, CacheEntry>> iter = this.cache.entrySet().iterator(); iter.hasNext(); )
+			log.debug( "purged [{}]", cacheKey );
+			this.statistics.purges.increment();
+		}
+	}
+
+	/**
+	 * Called by the {@link CacheManager} when it starts or stops managing this cache.
+	 *
+	 * @param manager The cache manager, or null.
+	 */
+	synchronized void setManager( CacheManager manager )
+	{
+		if( manager != null && this.manager != null )
+			throw new IllegalStateException( "Cache [" + this.name + "] is already managed" );
+		this.manager = manager;
+	}
+
+	/**
+	 * Returns a sweeper which lets the {@link CacheManager} purge this cache in time slices.
+	 *
+	 * @return A sweeper for this cache.
+	 */
+	CacheManager.Sweeper<Object, CacheEntry> newSweeper()
+	{
+		return new CacheManager.Sweeper<Object, CacheEntry>()
+		{
+			@Override
+			Object getCache()
 			{
-				Entry<String, CacheEntry> entry = iter.next();
-				if( entry.getValue().getExpirationTime() < then )
-				{
-					iter.remove();
-					if( debug )
-						keys.add( entry.getKey() );
-				}
+				return SimpleCache.this;
 			}
-		}
 
-		for( String key : keys )
-			log.debug( "purged [" + key + "]" );
+			@Override
+			long getTime()
+			{
+				return SimpleCache.this.getTime();
+			}
+
+			@Override
+			Iterator<Entry<Object, CacheEntry>> iterator()
+			{
+				return SimpleCache.this.cache.entrySet().iterator();
+			}
+
+			@Override
+			void sweep( Object key, CacheEntry entry, long now )
+			{
+				purge( key, entry, now );
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 *
+	 * @return The number of entries in the cache.
+	 */
+	public int size()
+	{
+		return this.cache.size();
+	}
+
+	/**
+	 * Returns the statistics of this cache.
+	 *
+	 * @return The statistics of this cache.
+	 */
+	public CacheStatistics getStatistics()
+	{
+		return this.statistics;
 	}
 
 	/**
@@ -360,7 +507,9 @@ public class SimpleCache
 	 *
 	 * @param objects The array of objects.
 	 * @return The resulting key.
+	 * @deprecated The cache does not use string keys anymore, see {@link CacheKey}.
 	 */
+	@Deprecated
 	static public String buildKey( Object... objects )
 	{
 		StringBuilder result = new StringBuilder();
@@ -381,7 +530,8 @@ public class SimpleCache
 	 */
 	static public class CacheEntry
 	{
-		private long stored, expire;
+		private long stored;
+		private volatile long expire;
 		private Object value;
 
 		/**
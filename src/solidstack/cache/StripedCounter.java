@@ -0,0 +1,78 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that is spread over multiple cells, so that threads updating the counter at the same time do not contend on
+ * the same cache line. Reading the counter sums the cells, so it is not an atomic snapshot.
+ *
+ * @author Ren de Bloois
+ */
+class StripedCounter
+{
+	/**
+	 * Number of stripes, a power of 2.
+	 */
+	static private final int STRIPES;
+	static
+	{
+		int stripes = 1;
+		while( stripes < Runtime.getRuntime().availableProcessors() && stripes < 64 )
+			stripes <<= 1;
+		STRIPES = stripes;
+	}
+
+	/**
+	 * The cells. Padded to let each stripe have its own cache line.
+	 */
+	private final AtomicLongArray cells = new AtomicLongArray( STRIPES * 8 );
+
+	/**
+	 * Adds one to the counter.
+	 */
+	void increment()
+	{
+		add( 1 );
+	}
+
+	/**
+	 * Adds the given amount to the counter.
+	 *
+	 * @param amount The amount to add.
+	 */
+	void add( long amount )
+	{
+		int stripe = (int)Thread.currentThread().getId() & STRIPES - 1;
+		this.cells.addAndGet( stripe << 3, amount );
+	}
+
+	/**
+	 * Returns the sum of all the cells.
+	 *
+	 * @return The value of the counter.
+	 */
+	long get()
+	{
+		long result = 0;
+		for( int stripe = 0; stripe < STRIPES; stripe++ )
+			result += this.cells.get( stripe << 3 );
+		return result;
+	}
+}
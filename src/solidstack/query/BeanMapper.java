@@ -0,0 +1,401 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import solidstack.lang.SystemException;
+
+
+/**
+ * Maps the rows of a {@link ResultSet} onto JavaBeans. A column is mapped onto the setter or the field of the bean with
+ * the same name, ignoring case and underscores, so FIRST_NAME maps onto setFirstName() or firstName. Setters are
+ * preferred over fields. Columns without a matching property are ignored. Numbers are converted to the numeric type of
+ * the property, and strings to enums. A number that does not fit in the type of the property without loss causes a
+ * {@link QueryException}.
+ *
+ * <p>
+ * The setters and fields of a class are looked up once. For each different set of column labels, a plan with the
+ * property of each column is made once and cached, so mapping a row is only a series of calls to the cached setters.
+ * </p>
+ *
+ * @author Ren de Bloois
+ * @param <T> The type of the beans.
+ */
+public class BeanMapper< T >
+{
+	static private final ConcurrentMap< Class< ? >, BeanMapper< ? > > mappers = new ConcurrentHashMap< Class< ? >, BeanMapper< ? > >();
+
+	private Constructor< T > constructor;
+	private Map< String, Property > properties = new HashMap< String, Property >();
+	private ConcurrentMap< List< String >, Property[] > plans = new ConcurrentHashMap< List< String >, Property[] >();
+
+
+	/**
+	 * Returns the mapper for the given class. Mappers are cached.
+	 *
+	 * @param type The class of the beans.
+	 * @return The mapper for the given class.
+	 */
+	@SuppressWarnings( "unchecked" )
+	static public < T > BeanMapper< T > get( Class< T > type )
+	{
+		BeanMapper< T > result = (BeanMapper< T >)mappers.get( type );
+		if( result == null )
+		{
+			result = new BeanMapper< T >( type );
+			BeanMapper< T > existing = (BeanMapper< T >)mappers.putIfAbsent( type, result );
+			if( existing != null )
+				result = existing;
+		}
+		return result;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param type The class of the beans.
+	 */
+	private BeanMapper( Class< T > type )
+	{
+		try
+		{
+			this.constructor = type.getDeclaredConstructor();
+		}
+		catch( NoSuchMethodException e )
+		{
+			throw new QueryException( type.getName() + " has no default constructor" );
+		}
+		this.constructor.setAccessible( true );
+
+		// Fields first, so that setters replace them
+		for( Class< ? > cls = type; cls != null && cls != Object.class; cls = cls.getSuperclass() )
+			for( Field field : cls.getDeclaredFields() )
+			{
+				int modifiers = field.getModifiers();
+				if( Modifier.isStatic( modifiers ) || Modifier.isFinal( modifiers ) )
+					continue;
+				String name = normalize( field.getName() );
+				if( !this.properties.containsKey( name ) ) // Subclasses hide the fields of superclasses
+				{
+					field.setAccessible( true );
+					this.properties.put( name, new FieldProperty( field ) );
+				}
+			}
+
+		for( Method method : type.getMethods() )
+		{
+			String name = method.getName();
+			if( name.length() > 3 && name.startsWith( "set" ) && method.getParameterTypes().length == 1 && !Modifier.isStatic( method.getModifiers() ) )
+			{
+				method.setAccessible( true ); // The class itself may not be public
+				this.properties.put( normalize( name.substring( 3 ) ), new MethodProperty( method ) );
+			}
+		}
+	}
+
+	static private String normalize( String name )
+	{
+		return name.replace( "_", "" ).toLowerCase( Locale.ENGLISH );
+	}
+
+	/**
+	 * Maps all rows of the result set onto beans. The result set is not closed.
+	 *
+	 * @param resultSet The result set.
+	 * @return The beans.
+	 */
+	public List< T > list( ResultSet resultSet )
+	{
+		try
+		{
+			Property[] plan = getPlan( resultSet.getMetaData() );
+			List< T > result = new ArrayList< T >();
+			while( resultSet.next() )
+				result.add( map( resultSet, plan ) );
+			return result;
+		}
+		catch( SQLException e )
+		{
+			throw new QuerySQLException( e );
+		}
+	}
+
+	private Property[] getPlan( ResultSetMetaData metaData ) throws SQLException
+	{
+		int count = metaData.getColumnCount();
+		String[] labels = new String[ count ];
+		for( int i = 0; i < count; i++ )
+			labels[ i ] = metaData.getColumnLabel( i + 1 );
+		List< String > key = Arrays.asList( labels ); // Labels may contain any character, even when quoted
+
+		Property[] result = this.plans.get( key );
+		if( result == null )
+		{
+			result = new Property[ count ];
+			for( int i = 0; i < count; i++ )
+				result[ i ] = this.properties.get( normalize( labels[ i ] ) );
+			this.plans.put( key, result );
+		}
+		return result;
+	}
+
+	private T map( ResultSet resultSet, Property[] plan ) throws SQLException
+	{
+		T bean;
+		try
+		{
+			bean = this.constructor.newInstance();
+		}
+		catch( InstantiationException e )
+		{
+			throw new SystemException( e );
+		}
+		catch( IllegalAccessException e )
+		{
+			throw new SystemException( e );
+		}
+		catch( InvocationTargetException e )
+		{
+			throw new SystemException( e.getCause() );
+		}
+
+		for( int i = 0; i < plan.length; i++ )
+		{
+			Property property = plan[ i ];
+			if( property != null )
+			{
+				Object value = convert( resultSet.getObject( i + 1 ), property.type, property );
+				if( value != null || !property.type.isPrimitive() )
+					property.set( bean, value );
+			}
+		}
+		return bean;
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	static private Object convert( Object value, Class< ? > type, Property property )
+	{
+		if( value == null || type.isInstance( value ) )
+			return value;
+
+		if( value instanceof Number )
+		{
+			Number number = (Number)value;
+			if( type == int.class || type == Integer.class )
+				return (int)exact( number, Integer.MIN_VALUE, Integer.MAX_VALUE, type, property );
+			if( type == long.class || type == Long.class )
+				return exact( number, Long.MIN_VALUE, Long.MAX_VALUE, type, property );
+			if( type == double.class || type == Double.class )
+				return number.doubleValue();
+			if( type == float.class || type == Float.class )
+				return number.floatValue();
+			if( type == short.class || type == Short.class )
+				return (short)exact( number, Short.MIN_VALUE, Short.MAX_VALUE, type, property );
+			if( type == byte.class || type == Byte.class )
+				return (byte)exact( number, Byte.MIN_VALUE, Byte.MAX_VALUE, type, property );
+			if( type == boolean.class || type == Boolean.class )
+				return toBigDecimal( number, type, property ).signum() != 0;
+			if( type == BigDecimal.class )
+				return toBigDecimal( number, type, property );
+			if( type == BigInteger.class )
+				try
+				{
+					return toBigDecimal( number, type, property ).toBigIntegerExact();
+				}
+				catch( ArithmeticException e )
+				{
+					throw lossy( number, type, property );
+				}
+		}
+		else if( value instanceof Boolean )
+		{
+			if( type == boolean.class )
+				return value;
+		}
+		else if( value instanceof Character )
+		{
+			if( type == char.class )
+				return value;
+		}
+		else if( value instanceof String )
+		{
+			String string = (String)value;
+			if( type.isEnum() )
+				return Enum.valueOf( (Class)type, string );
+			if( ( type == char.class || type == Character.class ) && string.length() == 1 )
+				return string.charAt( 0 );
+		}
+		if( type == String.class )
+			return value.toString();
+
+		throw new QueryException( "Can't convert " + value.getClass().getName() + " to " + type.getName() + " for " + property );
+	}
+
+	/**
+	 * Converts a number to a long, checking that nothing gets lost.
+	 *
+	 * @param number The number.
+	 * @param min The minimum value of the type of the property.
+	 * @param max The maximum value of the type of the property.
+	 * @param type The type of the property.
+	 * @param property The property.
+	 * @return The number as a long.
+	 * @throws QueryException When the number has a fraction or does not fit between min and max.
+	 */
+	static private long exact( Number number, long min, long max, Class< ? > type, Property property )
+	{
+		long result;
+		if( number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte )
+			result = number.longValue();
+		else
+			try
+			{
+				result = toBigDecimal( number, type, property ).longValueExact();
+			}
+			catch( ArithmeticException e )
+			{
+				throw lossy( number, type, property );
+			}
+		if( result < min || result > max )
+			throw lossy( number, type, property );
+		return result;
+	}
+
+	static private BigDecimal toBigDecimal( Number number, Class< ? > type, Property property )
+	{
+		if( number instanceof BigDecimal )
+			return (BigDecimal)number;
+		if( number instanceof BigInteger )
+			return new BigDecimal( (BigInteger)number );
+		try
+		{
+			return new BigDecimal( number.toString() );
+		}
+		catch( NumberFormatException e )
+		{
+			throw lossy( number, type, property ); // NaN or infinity
+		}
+	}
+
+	static private QueryException lossy( Number number, Class< ? > type, Property property )
+	{
+		return new QueryException( "Can't convert " + number + " to " + type.getName() + " without loss for " + property );
+	}
+
+	/**
+	 * A property of a bean.
+	 */
+	static abstract private class Property
+	{
+		Class< ? > type;
+
+		Property( Class< ? > type )
+		{
+			this.type = type;
+		}
+
+		abstract void set( Object bean, Object value );
+	}
+
+	/**
+	 * A property which is set with a setter.
+	 */
+	static private class MethodProperty extends Property
+	{
+		private Method method;
+
+		MethodProperty( Method method )
+		{
+			super( method.getParameterTypes()[ 0 ] );
+			this.method = method;
+		}
+
+		@Override
+		void set( Object bean, Object value )
+		{
+			try
+			{
+				this.method.invoke( bean, value );
+			}
+			catch( IllegalAccessException e )
+			{
+				throw new SystemException( e );
+			}
+			catch( InvocationTargetException e )
+			{
+				throw new SystemException( e.getCause() );
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.method.toString();
+		}
+	}
+
+	/**
+	 * A property which is a field.
+	 */
+	static private class FieldProperty extends Property
+	{
+		private Field field;
+
+		FieldProperty( Field field )
+		{
+			super( field.getType() );
+			this.field = field;
+		}
+
+		@Override
+		void set( Object bean, Object value )
+		{
+			try
+			{
+				this.field.set( bean, value );
+			}
+			catch( IllegalAccessException e )
+			{
+				throw new SystemException( e );
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.field.toString();
+		}
+	}
+}
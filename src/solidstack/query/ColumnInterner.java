@@ -0,0 +1,186 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Deduplicates the values of one column of a query result, so that equal values are stored in memory only once.
+ *
+ * <ul>
+ * <li>Integral numbers are looked up in a map with primitive long keys, other values in a {@link HashMap}.</li>
+ * <li>A value equal to the previous value of the column is recognized without a lookup.</li>
+ * <li>The first {@value #SAMPLE_SIZE} values are a sample. When less than {@value #MIN_DUPLICATES_PERCENT} percent of
+ * them are duplicates, deduplication of the column stops, because it would cost more than it saves.</li>
+ * <li>The dictionary stops growing at {@value #MAX_SIZE} values. Values that are already in it are still deduplicated.</li>
+ * </ul>
+ *
+ * This class is NOT threadsafe.
+ *
+ * @author Ren de Bloois
+ */
+public class ColumnInterner
+{
+	static private final int SAMPLE_SIZE = 256;
+	static private final int MIN_DUPLICATES_PERCENT = 10;
+	static private final int MAX_SIZE = 65536;
+
+	private Map< Object, Object > objects;
+	private LongDictionary numbers;
+	private Object previous;
+	private int count;
+	private int duplicates;
+	private boolean disabled;
+
+
+	/**
+	 * Reduces the memory footprint of the given list of object arrays, by deduplicating the values per column.
+	 *
+	 * @param list The list of object arrays. Null arrays are skipped.
+	 */
+	static public void internAll( List< Object[] > list )
+	{
+		ColumnInterner[] interners = new ColumnInterner[ 0 ];
+		for( Object[] objects : list )
+			if( objects != null )
+			{
+				int len = objects.length;
+				if( len > interners.length )
+				{
+					ColumnInterner[] temp = new ColumnInterner[ len ];
+					System.arraycopy( interners, 0, temp, 0, interners.length );
+					for( int i = interners.length; i < len; i++ )
+						temp[ i ] = new ColumnInterner();
+					interners = temp;
+				}
+				for( int i = 0; i < len; i++ )
+					objects[ i ] = interners[ i ].intern( objects[ i ] );
+			}
+	}
+
+	/**
+	 * Returns the value that is equal to the given value and that has been returned before, or the given value itself.
+	 *
+	 * @param value The value.
+	 * @return The deduplicated value.
+	 */
+	public Object intern( Object value )
+	{
+		if( value == null || this.disabled )
+			return value;
+
+		Object result;
+		if( value == this.previous || value.equals( this.previous ) )
+			result = this.previous;
+		else if( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte )
+		{
+			if( this.numbers == null )
+				this.numbers = new LongDictionary();
+			result = this.numbers.intern( ( (Number)value ).longValue(), value );
+		}
+		else
+		{
+			if( this.objects == null )
+				this.objects = new HashMap< Object, Object >();
+			result = this.objects.get( value );
+			if( result == null )
+			{
+				if( this.objects.size() < MAX_SIZE )
+					this.objects.put( value, value );
+				result = value;
+			}
+		}
+
+		if( this.count < SAMPLE_SIZE )
+		{
+			if( result != value )
+				this.duplicates++;
+			if( ++this.count == SAMPLE_SIZE && this.duplicates * 100 < SAMPLE_SIZE * MIN_DUPLICATES_PERCENT )
+			{
+				this.disabled = true;
+				this.objects = null;
+				this.numbers = null;
+				this.previous = null;
+				return result;
+			}
+		}
+
+		this.previous = result;
+		return result;
+	}
+
+	/**
+	 * An open addressing hash map with primitive long keys, used to deduplicate integral numbers.
+	 */
+	static private class LongDictionary
+	{
+		private long[] keys = new long[ 64 ];
+		private Object[] values = new Object[ 64 ];
+		private int size;
+
+		Object intern( long key, Object value )
+		{
+			int mask = this.values.length - 1;
+			int i = hash( key ) & mask;
+			while( true )
+			{
+				Object existing = this.values[ i ];
+				if( existing == null )
+				{
+					if( this.size < MAX_SIZE )
+					{
+						this.keys[ i ] = key;
+						this.values[ i ] = value;
+						if( ++this.size * 2 > this.values.length )
+							grow();
+					}
+					return value;
+				}
+				if( this.keys[ i ] == key )
+					return existing.getClass() == value.getClass() ? existing : value;
+				i = i + 1 & mask;
+			}
+		}
+
+		private void grow()
+		{
+			long[] keys = this.keys;
+			Object[] values = this.values;
+			this.keys = new long[ keys.length * 2 ];
+			this.values = new Object[ values.length * 2 ];
+			int mask = this.values.length - 1;
+			for( int j = 0; j < values.length; j++ )
+				if( values[ j ] != null )
+				{
+					int i = hash( keys[ j ] ) & mask;
+					while( this.values[ i ] != null )
+						i = i + 1 & mask;
+					this.keys[ i ] = keys[ j ];
+					this.values[ i ] = values[ j ];
+				}
+		}
+
+		static private int hash( long key )
+		{
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int)( h >>> 32 );
+		}
+	}
+}
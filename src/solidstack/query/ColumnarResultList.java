@@ -0,0 +1,482 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+
+/**
+ * A read-only list of rows which stores the values per column instead of per row. Integer, long and double columns are
+ * stored in primitive arrays, string columns are stored as indexes into a dictionary of the distinct strings. This takes
+ * a lot less memory than a list of arrays with boxed values. The rows are returned as light weight maps which read the
+ * values from the columns, like {@link ValuesMap} does from an array.
+ *
+ * @author Ren de Bloois
+ */
+public class ColumnarResultList extends AbstractList< Map< String, Object > > implements RandomAccess, Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private Map< String, Integer > names;
+	private Column[] columns;
+	private int size;
+
+
+	/**
+	 * Reads all rows from the result set. The type of storage of each column is determined by the column class name in
+	 * the meta data of the result set. The result set is not closed.
+	 *
+	 * @param resultSet The result set.
+	 */
+	public ColumnarResultList( ResultSet resultSet )
+	{
+		try
+		{
+			ResultSetMetaData metaData = resultSet.getMetaData();
+			this.names = Query.getColumnLabelMap( metaData );
+
+			int count = metaData.getColumnCount();
+			this.columns = new Column[ count ];
+			for( int i = 0; i < count; i++ )
+				this.columns[ i ] = newColumn( metaData.getColumnClassName( i + 1 ) );
+
+			while( resultSet.next() )
+			{
+				for( int i = 0; i < count; i++ )
+					this.columns[ i ].add( this.size, resultSet, i + 1 );
+				this.size++;
+			}
+
+			for( Column column : this.columns )
+				column.trim( this.size );
+		}
+		catch( SQLException e )
+		{
+			throw new QuerySQLException( e );
+		}
+	}
+
+	static private Column newColumn( String className )
+	{
+		if( Integer.class.getName().equals( className ) )
+			return new IntColumn();
+		if( Long.class.getName().equals( className ) )
+			return new LongColumn();
+		if( Double.class.getName().equals( className ) )
+			return new DoubleColumn();
+		if( String.class.getName().equals( className ) )
+			return new StringColumn();
+		return new ObjectColumn();
+	}
+
+	@Override
+	public Map< String, Object > get( int index )
+	{
+		if( index < 0 || index >= this.size )
+			throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + this.size );
+		return new Row( index );
+	}
+
+	@Override
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Returns the value of a cell.
+	 *
+	 * @param row The index of the row.
+	 * @param column The index of the column.
+	 * @return The value of the cell.
+	 */
+	public Object get( int row, int column )
+	{
+		return this.columns[ column ].get( row );
+	}
+
+	/**
+	 * A row, reading its values from the columns.
+	 */
+	private class Row extends AbstractMap< String, Object >
+	{
+		private int row;
+
+		Row( int row )
+		{
+			this.row = row;
+		}
+
+		@Override
+		public int size()
+		{
+			return ColumnarResultList.this.columns.length;
+		}
+
+		@Override
+		public boolean containsKey( Object key )
+		{
+			if( !( key instanceof String ) )
+				throw new IllegalArgumentException( "Expecting a string" );
+			return ColumnarResultList.this.names.containsKey( ( (String)key ).toLowerCase() );
+		}
+
+		@Override
+		public Object get( Object key )
+		{
+			if( !( key instanceof String ) )
+				throw new IllegalArgumentException( "Expecting a string" );
+			Integer index = ColumnarResultList.this.names.get( ( (String)key ).toLowerCase() );
+			if( index == null )
+				throw new IllegalArgumentException( "Unknown column name: " + key );
+			return ColumnarResultList.this.columns[ index ].get( this.row );
+		}
+
+		@Override
+		public Set< String > keySet()
+		{
+			return ColumnarResultList.this.names.keySet();
+		}
+
+		@Override
+		public Set< Map.Entry< String, Object > > entrySet()
+		{
+			return new AbstractSet< Map.Entry< String, Object > >()
+			{
+				@Override
+				public int size()
+				{
+					return ColumnarResultList.this.names.size();
+				}
+
+				@Override
+				public Iterator< Map.Entry< String, Object > > iterator()
+				{
+					final Iterator< Map.Entry< String, Integer > > names = ColumnarResultList.this.names.entrySet().iterator();
+					return new Iterator< Map.Entry< String, Object > >()
+					{
+						public boolean hasNext()
+						{
+							return names.hasNext();
+						}
+
+						public Map.Entry< String, Object > next()
+						{
+							Map.Entry< String, Integer > name = names.next();
+							return new ColumnEntry( name.getKey(), ColumnarResultList.this.columns[ name.getValue() ].get( Row.this.row ) );
+						}
+
+						public void remove()
+						{
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/**
+	 * An immutable map entry. AbstractMap.SimpleImmutableEntry needs Java 6.
+	 */
+	static private class ColumnEntry implements Map.Entry< String, Object >
+	{
+		private String key;
+		private Object value;
+
+		ColumnEntry( String key, Object value )
+		{
+			this.key = key;
+			this.value = value;
+		}
+
+		public String getKey()
+		{
+			return this.key;
+		}
+
+		public Object getValue()
+		{
+			return this.value;
+		}
+
+		public Object setValue( Object value )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals( Object other )
+		{
+			if( !( other instanceof Map.Entry< ?, ? > ) )
+				return false;
+			Map.Entry< ?, ? > entry = (Map.Entry< ?, ? >)other;
+			return this.key.equals( entry.getKey() ) && ( this.value == null ? entry.getValue() == null : this.value.equals( entry.getValue() ) );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.key.hashCode() ^ ( this.value == null ? 0 : this.value.hashCode() );
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.key + "=" + this.value;
+		}
+	}
+
+	static private int grow( int length, int needed )
+	{
+		int result = length < 16 ? 16 : length + ( length >> 1 );
+		return result < needed ? needed : result;
+	}
+
+	/**
+	 * The values of a column.
+	 */
+	static abstract private class Column implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		abstract void add( int row, ResultSet resultSet, int column ) throws SQLException;
+		abstract Object get( int row );
+		abstract void trim( int size );
+	}
+
+	/**
+	 * A column with int values. Null values are marked in a bit set.
+	 */
+	static private class IntColumn extends Column
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int[] values = new int[ 0 ];
+		private BitSet nulls = new BitSet();
+
+		@Override
+		void add( int row, ResultSet resultSet, int column ) throws SQLException
+		{
+			if( row >= this.values.length )
+			{
+				int[] values = new int[ grow( this.values.length, row + 1 ) ];
+				System.arraycopy( this.values, 0, values, 0, this.values.length );
+				this.values = values;
+			}
+			this.values[ row ] = resultSet.getInt( column );
+			if( resultSet.wasNull() )
+				this.nulls.set( row );
+		}
+
+		@Override
+		Object get( int row )
+		{
+			return this.nulls.get( row ) ? null : Integer.valueOf( this.values[ row ] );
+		}
+
+		@Override
+		void trim( int size )
+		{
+			int[] values = new int[ size ];
+			System.arraycopy( this.values, 0, values, 0, size );
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A column with long values. Null values are marked in a bit set.
+	 */
+	static private class LongColumn extends Column
+	{
+		private static final long serialVersionUID = 1L;
+
+		private long[] values = new long[ 0 ];
+		private BitSet nulls = new BitSet();
+
+		@Override
+		void add( int row, ResultSet resultSet, int column ) throws SQLException
+		{
+			if( row >= this.values.length )
+			{
+				long[] values = new long[ grow( this.values.length, row + 1 ) ];
+				System.arraycopy( this.values, 0, values, 0, this.values.length );
+				this.values = values;
+			}
+			this.values[ row ] = resultSet.getLong( column );
+			if( resultSet.wasNull() )
+				this.nulls.set( row );
+		}
+
+		@Override
+		Object get( int row )
+		{
+			return this.nulls.get( row ) ? null : Long.valueOf( this.values[ row ] );
+		}
+
+		@Override
+		void trim( int size )
+		{
+			long[] values = new long[ size ];
+			System.arraycopy( this.values, 0, values, 0, size );
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A column with double values. Null values are marked in a bit set.
+	 */
+	static private class DoubleColumn extends Column
+	{
+		private static final long serialVersionUID = 1L;
+
+		private double[] values = new double[ 0 ];
+		private BitSet nulls = new BitSet();
+
+		@Override
+		void add( int row, ResultSet resultSet, int column ) throws SQLException
+		{
+			if( row >= this.values.length )
+			{
+				double[] values = new double[ grow( this.values.length, row + 1 ) ];
+				System.arraycopy( this.values, 0, values, 0, this.values.length );
+				this.values = values;
+			}
+			this.values[ row ] = resultSet.getDouble( column );
+			if( resultSet.wasNull() )
+				this.nulls.set( row );
+		}
+
+		@Override
+		Object get( int row )
+		{
+			return this.nulls.get( row ) ? null : Double.valueOf( this.values[ row ] );
+		}
+
+		@Override
+		void trim( int size )
+		{
+			double[] values = new double[ size ];
+			System.arraycopy( this.values, 0, values, 0, size );
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A column with string values, stored as indexes into a dictionary of the distinct strings. Index 0 is null.
+	 */
+	static private class StringColumn extends Column
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int[] codes = new int[ 0 ];
+		private ArrayList< String > dictionary = new ArrayList< String >();
+		private transient Map< String, Integer > index = new HashMap< String, Integer >();
+
+		StringColumn()
+		{
+			this.dictionary.add( null );
+		}
+
+		@Override
+		void add( int row, ResultSet resultSet, int column ) throws SQLException
+		{
+			if( row >= this.codes.length )
+			{
+				int[] codes = new int[ grow( this.codes.length, row + 1 ) ];
+				System.arraycopy( this.codes, 0, codes, 0, this.codes.length );
+				this.codes = codes;
+			}
+			String value = resultSet.getString( column );
+			if( value == null )
+				return; // The array is initialized with 0
+			Integer code = this.index.get( value );
+			if( code == null )
+			{
+				code = this.dictionary.size();
+				this.dictionary.add( value );
+				this.index.put( value, code );
+			}
+			this.codes[ row ] = code;
+		}
+
+		@Override
+		Object get( int row )
+		{
+			return this.dictionary.get( this.codes[ row ] );
+		}
+
+		@Override
+		void trim( int size )
+		{
+			int[] codes = new int[ size ];
+			System.arraycopy( this.codes, 0, codes, 0, size );
+			this.codes = codes;
+			this.dictionary.trimToSize();
+			this.index = null; // Only needed while adding
+		}
+	}
+
+	/**
+	 * A column with values of any other type.
+	 */
+	static private class ObjectColumn extends Column
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Object[] values = new Object[ 0 ];
+
+		@Override
+		void add( int row, ResultSet resultSet, int column ) throws SQLException
+		{
+			if( row >= this.values.length )
+			{
+				Object[] values = new Object[ grow( this.values.length, row + 1 ) ];
+				System.arraycopy( this.values, 0, values, 0, this.values.length );
+				this.values = values;
+			}
+			this.values[ row ] = resultSet.getObject( column );
+		}
+
+		@Override
+		Object get( int row )
+		{
+			return this.values[ row ];
+		}
+
+		@Override
+		void trim( int size )
+		{
+			Object[] values = new Object[ size ];
+			System.arraycopy( this.values, 0, values, 0, size );
+			this.values = values;
+		}
+	}
+}
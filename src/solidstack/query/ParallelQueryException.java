@@ -0,0 +1,70 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * One or more of the queries executed by a {@link ParallelQueryExecutor} failed or timed out. The results of the
+ * queries that succeeded are still available.
+ *
+ * @author Ren de Bloois
+ */
+public class ParallelQueryException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	private Map< Integer, Throwable > failures;
+	private List< List< Map< String, Object > > > results;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param failures The indexes of the failed queries mapped to the causes of the failures.
+	 * @param results The results of all queries, null for the queries that failed.
+	 */
+	public ParallelQueryException( Map< Integer, Throwable > failures, List< List< Map< String, Object > > > results )
+	{
+		super( failures.size() + " of " + results.size() + " queries failed", failures.values().iterator().next() );
+		this.failures = failures;
+		this.results = results;
+	}
+
+	/**
+	 * Returns the indexes of the failed queries mapped to the causes of the failures. A query that timed out has a
+	 * {@link java.util.concurrent.TimeoutException} as cause.
+	 *
+	 * @return The indexes of the failed queries mapped to the causes of the failures.
+	 */
+	public Map< Integer, Throwable > getFailures()
+	{
+		return this.failures;
+	}
+
+	/**
+	 * Returns the results of all queries, in the order the queries were given. The result of a query that failed is null.
+	 *
+	 * @return The results of all queries.
+	 */
+	public List< List< Map< String, Object > > > getResults()
+	{
+		return this.results;
+	}
+}
@@ -0,0 +1,229 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sql.DataSource;
+
+
+/**
+ * Executes independent queries concurrently, each on its own connection from a {@link DataSource}. When a timeout has
+ * been set, the queries that have not completed in time are cancelled with {@link java.sql.Statement#cancel()}.
+ *
+ * @author Ren de Bloois
+ */
+public class ParallelQueryExecutor
+{
+	private DataSource dataSource;
+	private ExecutorService executor;
+	private long timeoutNanos;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dataSource The data source that provides the connections.
+	 * @param executor The executor that executes the queries. Should have at least as many threads as there are queries executed together.
+	 */
+	public ParallelQueryExecutor( DataSource dataSource, ExecutorService executor )
+	{
+		this.dataSource = dataSource;
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the maximum time to wait for all queries together. 0 (the default) waits indefinitely.
+	 *
+	 * @param timeout The timeout.
+	 * @param unit The unit of the timeout.
+	 */
+	public void setTimeout( long timeout, TimeUnit unit )
+	{
+		this.timeoutNanos = unit.toNanos( timeout );
+	}
+
+	/**
+	 * Executes the given queries concurrently and returns their results as lists of maps, like
+	 * {@link Query#listOfMaps(Connection, Object)}.
+	 *
+	 * @param tasks The queries with their arguments.
+	 * @return The results of the queries, in the same order as the queries.
+	 * @throws ParallelQueryException When one or more queries failed or timed out.
+	 */
+	public List< List< Map< String, Object > > > listOfMaps( List< Task > tasks )
+	{
+		long start = System.nanoTime();
+
+		List< Future< List< Map< String, Object > > > > futures = new ArrayList< Future< List< Map< String, Object > > > >( tasks.size() );
+		for( Task task : tasks )
+			futures.add( this.executor.submit( task ) );
+
+		List< List< Map< String, Object > > > results = new ArrayList< List< Map< String, Object > > >( tasks.size() );
+		Map< Integer, Throwable > failures = new TreeMap< Integer, Throwable >();
+		boolean timedOut = false;
+		for( int i = 0; i < futures.size(); i++ )
+		{
+			Future< List< Map< String, Object > > > future = futures.get( i );
+			List< Map< String, Object > > result = null;
+			try
+			{
+				if( timedOut )
+				{
+					if( future.isDone() )
+						result = future.get();
+					else
+						throw new TimeoutException();
+				}
+				else if( this.timeoutNanos > 0 )
+					result = future.get( this.timeoutNanos - ( System.nanoTime() - start ), TimeUnit.NANOSECONDS );
+				else
+					result = future.get();
+			}
+			catch( ExecutionException e )
+			{
+				failures.put( i, e.getCause() );
+			}
+			catch( TimeoutException e )
+			{
+				timedOut = true;
+				tasks.get( i ).cancel();
+				future.cancel( false );
+				failures.put( i, new TimeoutException( "Query " + i + " timed out" ) );
+			}
+			catch( InterruptedException e )
+			{
+				for( int j = i; j < futures.size(); j++ )
+				{
+					tasks.get( j ).cancel();
+					futures.get( j ).cancel( false );
+				}
+				Thread.currentThread().interrupt();
+				throw new QueryException( "Interrupted while waiting for the queries" );
+			}
+			results.add( result );
+		}
+
+		if( !failures.isEmpty() )
+			throw new ParallelQueryException( failures, results );
+		return results;
+	}
+
+	/**
+	 * Creates a task for the given query and arguments.
+	 *
+	 * @param query The query.
+	 * @param args The arguments to the query.
+	 * @return The task.
+	 */
+	public Task newTask( Query query, Object args )
+	{
+		return new Task( query, args );
+	}
+
+	/**
+	 * A query with its arguments, executed on its own connection.
+	 */
+	public class Task implements Callable< List< Map< String, Object > > >
+	{
+		private Query query;
+		private Object args;
+		private PreparedStatement statement;
+		private boolean cancelled;
+
+		Task( Query query, Object args )
+		{
+			this.query = query;
+			this.args = args;
+		}
+
+		public List< Map< String, Object > > call() throws SQLException
+		{
+			Connection connection = ParallelQueryExecutor.this.dataSource.getConnection();
+			QueryStatistics.Execution execution = this.query.startExecution();
+			try
+			{
+				PreparedStatement statement = this.query.getPreparedStatement( connection, this.args );
+				execution.prepared();
+				try
+				{
+					synchronized( this )
+					{
+						if( this.cancelled )
+							throw new SQLException( "Query cancelled" );
+						this.statement = statement;
+					}
+					ResultSet resultSet = statement.executeQuery();
+					execution.executed();
+					try
+					{
+						List< Map< String, Object > > result = Query.listOfMaps( resultSet, this.query.isFlyWeight() );
+						execution.succeeded( result.size() );
+						return result;
+					}
+					finally
+					{
+						resultSet.close();
+					}
+				}
+				finally
+				{
+					synchronized( this )
+					{
+						this.statement = null;
+					}
+					this.query.release( statement );
+				}
+			}
+			finally
+			{
+				execution.end();
+				connection.close();
+			}
+		}
+
+		/**
+		 * Cancels the query. When it is executing, the statement is cancelled.
+		 */
+		synchronized void cancel()
+		{
+			this.cancelled = true;
+			if( this.statement != null )
+				try
+				{
+					this.statement.cancel();
+				}
+				catch( SQLException e )
+				{
+					Loggers.execution.warn( "Could not cancel the query", e );
+				}
+		}
+	}
+}
@@ -22,14 +22,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import solidstack.lang.Assert;
 import solidstack.lang.SystemException;
@@ -67,9 +71,24 @@ public class Query
 		HQL
 	}
 
+	/**
+	 * The maximum number of SQL shapes that are cached. When this is exceeded, the cache is cleared.
+	 */
+	static private final int MAX_SHAPES = 1000;
+
+	/**
+	 * The prepared SQL strings by shape, so that queries that are executed repeatedly share the same SQL string instead of
+	 * building it again every time.
+	 */
+	static private final ConcurrentMap< Shape, String > shapes = new ConcurrentHashMap< Shape, String >();
+
 	private Template template;
 	private boolean flyWeight = true;
 	private Language language;
+	private int statementCacheSize;
+	private int fetchSize;
+	private long slowQueryMillis;
+	private QueryStatistics statistics;
 
 
 	/**
@@ -79,6 +98,7 @@ public class Query
 	public Query( Template template )
 	{
 		this.template = template;
+		this.statistics = new QueryStatistics( template.getPath() );
 
 		Directive languageDirective = template.getDirective( "query", "language" );
 		if( languageDirective != null )
@@ -157,7 +177,95 @@ public class Query
 	}
 
 	/**
-	 * Retrieves a {@link ResultSet} from the given {@link Connection}.
+	 * @return The maximum number of prepared statements cached per connection, 0 if statements are not cached.
+	 */
+	public int getStatementCacheSize()
+	{
+		return this.statementCacheSize;
+	}
+
+	/**
+	 * Enables caching of prepared statements per connection. The same statement is then reused for each execution on
+	 * the same connection, which also means that a {@link ResultSet} is closed when the same query is executed again on
+	 * the same connection. Statements returned by {@link #getPreparedStatement(Connection, Object)} must not be closed
+	 * when caching is enabled.
+	 *
+	 * @param size The maximum number of prepared statements cached per connection, 0 (the default) to disable caching.
+	 * @see StatementCache
+	 */
+	public void setStatementCacheSize( int size )
+	{
+		this.statementCacheSize = size;
+	}
+
+	/**
+	 * @return The number of rows to fetch from the database at once, 0 if the driver decides.
+	 */
+	public int getFetchSize()
+	{
+		return this.fetchSize;
+	}
+
+	/**
+	 * Sets the number of rows to fetch from the database at once. Useful together with {@link #rowIterator(Connection, Object)}
+	 * and {@link #forEach(Connection, Object, RowHandler)}, because some drivers read all rows in memory by default.
+	 *
+	 * @param fetchSize The number of rows to fetch from the database at once, 0 (the default) to let the driver decide.
+	 */
+	public void setFetchSize( int fetchSize )
+	{
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * @return The threshold in milliseconds above which executions are logged as slow queries, 0 if slow queries are not logged.
+	 */
+	public long getSlowQueryMillis()
+	{
+		return this.slowQueryMillis;
+	}
+
+	/**
+	 * Sets the threshold above which executions are logged as a warning to {@link Loggers#execution}, including the time
+	 * of each phase and the number of rows.
+	 *
+	 * @param millis The threshold in milliseconds, 0 (the default) to not log slow queries.
+	 * @see QueryStatistics
+	 */
+	public void setSlowQueryMillis( long millis )
+	{
+		this.slowQueryMillis = millis;
+	}
+
+	/**
+	 * Returns the execution statistics of the query. Queries returned by the {@link QueryLoader} share the statistics of
+	 * their path.
+	 *
+	 * @return The execution statistics of the query.
+	 */
+	public QueryStatistics getStatistics()
+	{
+		return this.statistics;
+	}
+
+	void setStatistics( QueryStatistics statistics )
+	{
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Starts recording an execution of this query.
+	 *
+	 * @return The execution.
+	 */
+	QueryStatistics.Execution startExecution()
+	{
+		return this.statistics.start( this.slowQueryMillis * 1000000 );
+	}
+
+	/**
+	 * Retrieves a {@link ResultSet} from the given {@link Connection}. When statement caching is not enabled, the
+	 * statement of the result set should be closed after use.
 	 *
 	 * @param connection The {@link Connection} to use.
 	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
@@ -187,14 +295,132 @@ public class Query
 	 */
 	public List< Object[] > listOfArrays( Connection connection, Object args )
 	{
-		ResultSet resultSet = resultSet( connection, args );
+		return query( connection, args, new Fetcher< List< Object[] > >()
+		{
+			public List< Object[] > fetch( ResultSet resultSet )
+			{
+				return listOfArrays( resultSet, Query.this.flyWeight );
+			}
+		} );
+	}
+
+	/**
+	 * Executes the query and fetches the result with the given fetcher, while recording the execution in the statistics.
+	 */
+	private < T extends List< ? > > T query( Connection connection, Object args, Fetcher< T > fetcher )
+	{
+		QueryStatistics.Execution execution = startExecution();
 		try
 		{
-			return listOfArrays( resultSet, this.flyWeight );
+			PreparedStatement statement = getPreparedStatement( connection, args );
+			execution.prepared();
+			try
+			{
+				ResultSet resultSet = statement.executeQuery();
+				execution.executed();
+				try
+				{
+					T result = fetcher.fetch( resultSet );
+					execution.succeeded( result.size() );
+					return result;
+				}
+				finally
+				{
+					close( resultSet );
+				}
+			}
+			catch( SQLException e )
+			{
+				throw new QuerySQLException( e );
+			}
+			finally
+			{
+				release( statement );
+			}
 		}
 		finally
 		{
-			close( resultSet );
+			execution.end();
+		}
+	}
+
+	/**
+	 * Closes the statement, unless it is cached.
+	 */
+	void release( PreparedStatement statement )
+	{
+		if( this.statementCacheSize > 0 )
+			return;
+		try
+		{
+			statement.close();
+		}
+		catch( SQLException e )
+		{
+			throw new QuerySQLException( e );
+		}
+	}
+
+	/**
+	 * Returns an iterator over the rows of the query. The rows are read from the database while iterating, so they don't
+	 * need to fit in memory. The iterator must be closed when it is not read until the end.
+	 *
+	 * @param connection The {@link Connection} to use.
+	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
+	 * @return An iterator over the rows of the query.
+	 * @see #setFetchSize(int)
+	 */
+	public RowIterator rowIterator( Connection connection, Object args )
+	{
+		QueryStatistics.Execution execution = startExecution();
+		try
+		{
+			PreparedStatement statement = getPreparedStatement( connection, args );
+			execution.prepared();
+			ResultSet resultSet;
+			try
+			{
+				resultSet = statement.executeQuery();
+			}
+			catch( SQLException e )
+			{
+				release( statement );
+				throw new QuerySQLException( e );
+			}
+			execution.executed();
+			return new RowIterator( resultSet, this.statementCacheSize > 0 ? null : statement, execution );
+		}
+		catch( RuntimeException e )
+		{
+			execution.end();
+			throw e;
+		}
+	}
+
+	/**
+	 * Passes the rows of the query to the given handler one at a time. The rows are read from the database while they are
+	 * handled, so they don't need to fit in memory.
+	 *
+	 * @param connection The {@link Connection} to use.
+	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
+	 * @param handler The handler of the rows.
+	 * @see #setFetchSize(int)
+	 */
+	public void forEach( Connection connection, Object args, RowHandler handler )
+	{
+		RowIterator rows = rowIterator( connection, args );
+		boolean success = false;
+		try
+		{
+			while( rows.hasNext() )
+				handler.handleRow( rows.next() );
+			success = true;
+		}
+		finally
+		{
+			if( !success )
+				rows.failed();
+			rows.close();
 		}
 	}
 
@@ -230,25 +456,14 @@ public class Query
 			{
 				// THIS CAN REDUCE MEMORY USAGE WITH 90 TO 95 PERCENT, PERFORMANCE IMPACT IS ONLY 5 PERCENT
 
-				Map< Object, Object > dictionary = new HashMap< Object, Object >();
+				ColumnInterner[] interners = new ColumnInterner[ columnCount ];
+				for( int col = 0; col < columnCount; col++ )
+					interners[ col ] = new ColumnInterner();
 				while( resultSet.next() )
 				{
 					Object[] line = new Object[ columnCount ];
 					for( int col = 1; col <= columnCount; col++ )
-					{
-						Object object = resultSet.getObject( col );
-						if( object != null )
-						{
-							Object temp = dictionary.get( object );
-							if( temp != null )
-								line[ col - 1 ] = temp;
-							else
-							{
-								dictionary.put( object, object );
-								line[ col - 1 ] = object;
-							}
-						}
-					}
+						line[ col - 1 ] = interners[ col - 1 ].intern( resultSet.getObject( col ) );
 					result.add( line );
 				}
 			}
@@ -283,15 +498,13 @@ public class Query
 	 */
 	public List< Map< String, Object > > listOfMaps( Connection connection, Object args )
 	{
-		ResultSet resultSet = resultSet( connection, args );
-		try
+		return query( connection, args, new Fetcher< List< Map< String, Object > > >()
 		{
-			return listOfMaps( resultSet, this.flyWeight );
-		}
-		finally
-		{
-			close( resultSet );
-		}
+			public List< Map< String, Object > > fetch( ResultSet resultSet )
+			{
+				return listOfMaps( resultSet, Query.this.flyWeight );
+			}
+		} );
 	}
 
 	/**
@@ -317,6 +530,47 @@ public class Query
 		}
 	}
 
+	/**
+	 * Retrieves a {@link List} of JavaBeans from the given {@link Connection}. The columns are mapped onto the properties
+	 * of the beans by a {@link BeanMapper}.
+	 *
+	 * @param connection The {@link Connection} to use.
+	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
+	 * @param type The class of the beans.
+	 * @return A {@link List} of JavaBeans.
+	 */
+	public < T > List< T > list( Connection connection, Object args, Class< T > type )
+	{
+		final BeanMapper< T > mapper = BeanMapper.get( type );
+		return query( connection, args, new Fetcher< List< T > >()
+		{
+			public List< T > fetch( ResultSet resultSet )
+			{
+				return mapper.list( resultSet );
+			}
+		} );
+	}
+
+	/**
+	 * Retrieve a {@link ColumnarResultList} from the given {@link Connection}. This is a {@link List} of {@link Map}s like
+	 * {@link #listOfMaps(Connection, Object)} returns, but the values are stored per column, which takes a lot less memory
+	 * for large results. The fly weight setting is not used, string columns are always stored in a dictionary.
+	 *
+	 * @param connection The {@link Connection} to use.
+	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
+	 * @return A {@link ColumnarResultList}.
+	 */
+	public ColumnarResultList columnarListOfMaps( Connection connection, Object args )
+	{
+		return query( connection, args, new Fetcher< ColumnarResultList >()
+		{
+			public ColumnarResultList fetch( ResultSet resultSet )
+			{
+				return new ColumnarResultList( resultSet );
+			}
+		} );
+	}
+
 	static public Map< String, Integer > getColumnLabelMap( ResultSetMetaData metaData )
 	{
 		try
@@ -345,7 +599,27 @@ public class Query
 	 */
 	public int updateChecked( Connection connection, Object args ) throws SQLException
 	{
-		return getPreparedStatement( connection, args ).executeUpdate();
+		QueryStatistics.Execution execution = startExecution();
+		try
+		{
+			PreparedStatement statement = getPreparedStatement( connection, args );
+			execution.prepared();
+			try
+			{
+				int result = statement.executeUpdate();
+				execution.succeeded( result );
+				return result;
+			}
+			finally
+			{
+				if( this.statementCacheSize <= 0 )
+					statement.close();
+			}
+		}
+		finally
+		{
+			execution.end();
+		}
 	}
 
 	/**
@@ -368,35 +642,142 @@ public class Query
 	}
 
 	/**
-	 * Returns a {@link PreparedStatement} for the query.
+	 * Executes an update (DML) query for each of the given argument sets, using JDBC batches. Consecutive argument sets
+	 * that result in the same SQL are executed together in batches of at most the given size. The order of the argument
+	 * sets is kept, so a change in the SQL ends the current batch.
 	 *
 	 * @param connection The {@link Connection} to use.
-	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
-	 * @return a {@link PreparedStatement} for the query.
+	 * @param argsList The argument sets. Each is a map or an object, like the arguments of {@link #update(Connection, Object)}.
+	 * @param batchSize The maximum number of statements in one batch.
+	 * @return The row counts, one for each argument set. Can be {@link Statement#SUCCESS_NO_INFO} for drivers that don't report the row counts of batches.
+	 * @throws SQLException Whenever the query caused an {@link SQLException}.
 	 */
-	public PreparedStatement getPreparedStatement( Connection connection, Object args )
+	public int[] updateBatchChecked( Connection connection, Iterable< ? > argsList, int batchSize ) throws SQLException
 	{
-		PreparedSQL preparedSql = getPreparedSQL( args );
-		List< Object > pars = preparedSql.getParameters();
+		if( batchSize <= 0 )
+			throw new IllegalArgumentException( "batchSize must be greater than 0" );
 
+		QueryStatistics.Execution execution = startExecution();
 		try
 		{
-			PreparedStatement statement = connection.prepareStatement( preparedSql.getSQL() );
-			int i = 0;
-			for( Object par : pars )
+			int[] result = executeBatches( connection, argsList, batchSize );
+			long rows = 0;
+			for( int count : result )
+				if( count > 0 )
+					rows += count;
+			execution.succeeded( rows );
+			return result;
+		}
+		finally
+		{
+			execution.end();
+		}
+	}
+
+	private int[] executeBatches( Connection connection, Iterable< ? > argsList, int batchSize ) throws SQLException
+	{
+		List< int[] > counts = new ArrayList< int[] >();
+		int total = 0;
+
+		PreparedStatement statement = null;
+		String sql = null;
+		int batched = 0;
+		boolean success = false;
+		try
+		{
+			for( Object args : argsList )
 			{
-				if( par == null )
+				PreparedSQL preparedSql = getPreparedSQL( args );
+				boolean same = preparedSql.getSQL().equals( sql );
+				if( batched > 0 && ( !same || batched >= batchSize ) )
 				{
-					// Tested in Oracle with an INSERT
-					statement.setNull( ++i, Types.NULL );
+					int[] result = statement.executeBatch();
+					counts.add( result );
+					total += result.length;
+					batched = 0;
 				}
-				else
+				if( !same )
 				{
-					Assert.isFalse( par instanceof Collection );
-					Assert.isFalse( par.getClass().isArray() );
-					statement.setObject( ++i, par );
+					if( statement != null )
+					{
+						if( this.statementCacheSize <= 0 )
+							statement.close();
+						statement = null;
+					}
+					sql = preparedSql.getSQL();
+					statement = prepareStatement( connection, sql );
 				}
+				setParameters( statement, preparedSql.getParameters() );
+				statement.addBatch();
+				batched++;
+			}
+			if( batched > 0 )
+			{
+				int[] result = statement.executeBatch();
+				counts.add( result );
+				total += result.length;
 			}
+			success = true;
+		}
+		finally
+		{
+			if( statement != null )
+				if( this.statementCacheSize <= 0 )
+					statement.close();
+				else if( !success )
+					statement.clearBatch(); // The cached statement will be reused
+		}
+
+		int[] result = new int[ total ];
+		int pos = 0;
+		for( int[] count : counts )
+		{
+			System.arraycopy( count, 0, result, pos, count.length );
+			pos += count.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Executes an update (DML) query for each of the given argument sets, using JDBC batches. {@link SQLException}s are
+	 * wrapped in a {@link QueryException}.
+	 *
+	 * @param connection The {@link Connection} to use.
+	 * @param argsList The argument sets. Each is a map or an object, like the arguments of {@link #update(Connection, Object)}.
+	 * @param batchSize The maximum number of statements in one batch.
+	 * @return The row counts, one for each argument set.
+	 * @see #updateBatchChecked(Connection, Iterable, int)
+	 */
+	public int[] updateBatch( Connection connection, Iterable< ? > argsList, int batchSize )
+	{
+		try
+		{
+			return updateBatchChecked( connection, argsList, batchSize );
+		}
+		catch( SQLException e )
+		{
+			throw new QuerySQLException( e );
+		}
+	}
+
+	/**
+	 * Returns a {@link PreparedStatement} for the query. When statement caching is enabled, the statement comes from the
+	 * cache of the connection and must not be closed.
+	 *
+	 * @param connection The {@link Connection} to use.
+	 * @param args The arguments to the query. When a map, then the contents of the map. When an Object, then the JavaBean properties.
+	 * @return a {@link PreparedStatement} for the query.
+	 */
+	public PreparedStatement getPreparedStatement( Connection connection, Object args )
+	{
+		PreparedSQL preparedSql = getPreparedSQL( args );
+
+		try
+		{
+			PreparedStatement statement = prepareStatement( connection, preparedSql.getSQL() );
+			if( this.fetchSize > 0 )
+				statement.setFetchSize( this.fetchSize );
+			setParameters( statement, preparedSql.getParameters() );
 			return statement;
 		}
 		catch( SQLException e )
@@ -405,9 +786,39 @@ public class Query
 		}
 	}
 
-	static private void appendParameter( Object object, String name, StringBuilder buildSql, List< Object > pars )
+	private PreparedStatement prepareStatement( Connection connection, String sql ) throws SQLException
+	{
+		if( this.statementCacheSize > 0 )
+			return StatementCache.prepareStatement( connection, sql, this.statementCacheSize );
+		return connection.prepareStatement( sql );
+	}
+
+	static private void setParameters( PreparedStatement statement, List< Object > pars ) throws SQLException
+	{
+		int i = 0;
+		for( Object par : pars )
+		{
+			if( par == null )
+			{
+				// Tested in Oracle with an INSERT
+				statement.setNull( ++i, Types.NULL );
+			}
+			else
+			{
+				Assert.isFalse( par instanceof Collection );
+				Assert.isFalse( par.getClass().isArray() );
+				statement.setObject( ++i, par );
+			}
+		}
+	}
+
+	/**
+	 * Adds the parameter to the parameter list. Collections and arrays are expanded into separate parameters.
+	 *
+	 * @return The number of parameters added, which is also the number of question marks needed in the SQL.
+	 */
+	static private int addParameter( Object object, String name, List< Object > pars )
 	{
-		buildSql.append( '?' );
 		if( object instanceof Collection<?> )
 		{
 			Collection<?> collection = (Collection<?>)object;
@@ -415,18 +826,18 @@ public class Query
 			Assert.isTrue( size > 0, "Parameter [" + name + "] is empty collection" );
 			for( Object object2 : collection )
 				pars.add( object2 );
-			appendExtraQuestionMarks( buildSql, size - 1 );
+			return size;
 		}
-		else if( object != null && object.getClass().isArray() )
+		if( object != null && object.getClass().isArray() )
 		{
 			int size = Array.getLength( object );
 			Assert.isTrue( size > 0, "Parameter [" + name + "] is empty array" );
 			for( int j = 0; j < size; j++ )
 				pars.add( Array.get( object, j ) );
-			appendExtraQuestionMarks( buildSql, size - 1 );
+			return size;
 		}
-		else
-			pars.add( object );
+		pars.add( object );
+		return 1;
 	}
 
 	/**
@@ -441,17 +852,31 @@ public class Query
 		this.template.apply( args, gsql );
 
 		List< Object > pars = new ArrayList< Object >();
-		StringBuilder result = new StringBuilder();
 
 		List< Object > values = gsql.getValues();
 		BitSet isValue = gsql.getIsValue();
 		int len = values.size();
 
+		// Only the parameters are collected, the SQL is built only when its shape has not been seen before
+		String[] fragments = new String[ len ];
+		int[] sizes = new int[ len ];
 		for( int i = 0; i < len; i++ )
 			if( isValue.get( i ) )
-				appendParameter( values.get( i ), "unknown", result, pars );
+				sizes[ i ] = addParameter( values.get( i ), "unknown", pars );
 			else
-				result.append( (String)values.get( i ) );
+				fragments[ i ] = (String)values.get( i );
+
+		Shape shape = new Shape( fragments, sizes );
+		String result = shapes.get( shape );
+		if( result == null )
+		{
+			result = shape.toSQL();
+			if( shapes.size() >= MAX_SHAPES )
+				shapes.clear(); // Protects against templates that generate different SQL every time
+			String existing = shapes.putIfAbsent( shape, result );
+			if( existing != null )
+				result = existing;
+		}
 
 		if( Loggers.execution.isDebugEnabled() )
 		{
@@ -493,7 +918,7 @@ public class Query
 				Loggers.execution.debug( debug.toString() );
 		}
 
-		return new PreparedSQL( result.toString(), pars );
+		return new PreparedSQL( result, pars );
 	}
 
 	static private void appendExtraQuestionMarks( StringBuilder s, int count )
@@ -505,6 +930,70 @@ public class Query
 		}
 	}
 
+	/**
+	 * Reads the result of a query.
+	 *
+	 * @param <T> The type of the result.
+	 */
+	static private interface Fetcher< T >
+	{
+		T fetch( ResultSet resultSet );
+	}
+
+	/**
+	 * The shape of the SQL generated by a template: the SQL fragments together with the number of question marks for each
+	 * parameter. SQL with the same shape is the same SQL. The fragments are usually constants of the compiled template, so
+	 * their hash codes are cached and comparing them is cheap.
+	 */
+	static private class Shape
+	{
+		private String[] fragments;
+		private int[] sizes;
+		private int hash;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param fragments The SQL fragments, null for the parameters.
+		 * @param sizes The number of question marks for the parameters, 0 for the SQL fragments.
+		 */
+		Shape( String[] fragments, int[] sizes )
+		{
+			this.fragments = fragments;
+			this.sizes = sizes;
+			this.hash = Arrays.hashCode( fragments ) * 31 + Arrays.hashCode( sizes );
+		}
+
+		String toSQL()
+		{
+			StringBuilder result = new StringBuilder();
+			for( int i = 0; i < this.fragments.length; i++ )
+				if( this.fragments[ i ] != null )
+					result.append( this.fragments[ i ] );
+				else
+				{
+					result.append( '?' );
+					appendExtraQuestionMarks( result, this.sizes[ i ] - 1 );
+				}
+			return result.toString();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals( Object other )
+		{
+			if( !( other instanceof Shape ) )
+				return false;
+			Shape shape = (Shape)other;
+			return this.hash == shape.hash && Arrays.equals( this.sizes, shape.sizes ) && Arrays.equals( this.fragments, shape.fragments );
+		}
+	}
+
 	/**
 	 * Prepared SQL combined with a parameter list.
 	 *
@@ -16,6 +16,18 @@
 
 package solidstack.query;
 
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import solidstack.template.TemplateLoader;
 
 
@@ -28,6 +40,11 @@ public class QueryLoader
 {
 	private TemplateLoader templateLoader;
 	private boolean locked;
+	private int statementCacheSize;
+	private long slowQueryMillis;
+	private ConcurrentMap< String, QueryStatistics > statistics = new ConcurrentHashMap< String, QueryStatistics >();
+	private boolean jmxEnabled;
+	private Map< String, ObjectName > mbeans = new HashMap< String, ObjectName >();
 
 
 	/**
@@ -84,14 +101,162 @@ public class QueryLoader
 	}
 
 	/**
-	 * Returns a {@link Query}.
+	 * Sets the statement cache size of the queries returned by {@link #getQuery(String)}.
+	 *
+	 * @param size The maximum number of prepared statements cached per connection, 0 (the default) to disable caching.
+	 * @see Query#setStatementCacheSize(int)
+	 */
+	public void setStatementCacheSize( int size )
+	{
+		this.statementCacheSize = size;
+	}
+
+	/**
+	 * Sets the slow query threshold of the queries returned by {@link #getQuery(String)}.
+	 *
+	 * @param millis The threshold in milliseconds, 0 (the default) to not log slow queries.
+	 * @see Query#setSlowQueryMillis(long)
+	 */
+	public void setSlowQueryMillis( long millis )
+	{
+		this.slowQueryMillis = millis;
+	}
+
+	/**
+	 * Returns a {@link Query}. The queries returned for the same path share their {@link QueryStatistics}.
 	 *
 	 * @param path The path of the query relative to the configured root package.
 	 * @return The {@link Query}.
 	 */
 	public Query getQuery( String path )
 	{
-		return new Query( this.templateLoader.getTemplate( path ) );
+		Query query = new Query( this.templateLoader.getTemplate( path ) );
+		query.setStatementCacheSize( this.statementCacheSize );
+		query.setSlowQueryMillis( this.slowQueryMillis );
+		query.setStatistics( statistics( path ) );
+		return query;
+	}
+
+	private QueryStatistics statistics( String path )
+	{
+		QueryStatistics result = this.statistics.get( path );
+		if( result != null )
+			return result;
+		result = new QueryStatistics( path );
+		QueryStatistics existing = this.statistics.putIfAbsent( path, result );
+		if( existing != null )
+			return existing;
+		synchronized( this )
+		{
+			if( this.jmxEnabled )
+				registerMBean( path );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the execution statistics of the query with the given path.
+	 *
+	 * @param path The path of the query relative to the configured root package.
+	 * @return The execution statistics of the query, or null when the query has not been requested yet.
+	 */
+	public QueryStatistics getStatistics( String path )
+	{
+		return this.statistics.get( path );
+	}
+
+	/**
+	 * Returns the execution statistics of all the queries that have been requested.
+	 *
+	 * @return The execution statistics of all the queries that have been requested.
+	 */
+	public Collection< QueryStatistics > getStatistics()
+	{
+		return Collections.unmodifiableCollection( this.statistics.values() );
+	}
+
+	/**
+	 * @return True if the statistics of the queries are registered with JMX.
+	 */
+	synchronized public boolean isJmxEnabled()
+	{
+		return this.jmxEnabled;
+	}
+
+	/**
+	 * Enables or disables the registration of the statistics of the queries with the platform MBean server. The
+	 * statistics of a query are registered as "solidstack.query:type=Query,name=[path of the query]".
+	 *
+	 * @param jmxEnabled True to register the statistics of the queries with JMX.
+	 */
+	synchronized public void setJmxEnabled( boolean jmxEnabled )
+	{
+		if( jmxEnabled == this.jmxEnabled )
+			return;
+		this.jmxEnabled = jmxEnabled;
+		for( String path : this.statistics.keySet() )
+			if( jmxEnabled )
+				registerMBean( path );
+			else
+				unregisterMBean( path );
+	}
+
+	synchronized private void registerMBean( String path )
+	{
+		if( this.mbeans.containsKey( path ) )
+			return;
+		try
+		{
+			ObjectName objectName = new ObjectName( "solidstack.query:type=Query,name=" + ObjectName.quote( path ) );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( this.statistics.get( path ), objectName );
+			this.mbeans.put( path, objectName );
+		}
+		catch( JMException e )
+		{
+			Loggers.execution.warn( "Could not register the statistics of query [" + path + "] with JMX", e );
+		}
+	}
+
+	synchronized private void unregisterMBean( String path )
+	{
+		ObjectName objectName = this.mbeans.remove( path );
+		if( objectName == null )
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+		}
+		catch( JMException e )
+		{
+			Loggers.execution.warn( "Could not unregister the statistics of query [" + path + "] from JMX", e );
+		}
+	}
+
+	/**
+	 * Compiles all queries in the template path, so that they don't need to be compiled when they are requested for the
+	 * first time.
+	 *
+	 * @return The paths of the queries that failed to compile, mapped to the cause of the failure. Empty when all queries
+	 *         compiled successfully.
+	 * @see TemplateLoader#precompileAll()
+	 */
+	public Map< String, Throwable > precompileAll()
+	{
+		return this.templateLoader.precompileAll();
+	}
+
+	/**
+	 * Compiles all queries in the template path with the given executor, so that they don't need to be compiled when
+	 * they are requested for the first time.
+	 *
+	 * @param executor The executor that compiles the queries.
+	 * @return The paths of the queries that failed to compile, mapped to the cause of the failure. Empty when all queries
+	 *         compiled successfully.
+	 * @see TemplateLoader#precompileAll(ExecutorService)
+	 */
+	public Map< String, Throwable > precompileAll( ExecutorService executor )
+	{
+		return this.templateLoader.precompileAll( executor );
 	}
 
 	private void checkLock()
@@ -0,0 +1,329 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The execution statistics of a query. An execution is split in three phases: prepare (generating the SQL and preparing
+ * the statement), execute (executing the statement) and fetch (reading the result set). The time of each phase is
+ * recorded in a histogram with buckets of increasing size. The upper limit of each bucket is twice the upper limit of
+ * the previous bucket, see {@link #getTimeBucketLimitsMicros()}. The percentiles are computed from these histograms,
+ * so they are upper limits, not exact values.
+ *
+ * <p>
+ * Executions that take longer than the slow query threshold of the {@link Query} are logged as a warning to
+ * {@link Loggers#execution}. Nothing is formatted for executions that are not slow.
+ * </p>
+ *
+ * <p>
+ * The statements returned by {@link Query#getPreparedStatement(java.sql.Connection, Object)} and the result sets returned by
+ * {@link Query#resultSet(java.sql.Connection, Object)} are executed by the caller, so they are not recorded. The statistics can be
+ * registered with JMX through the {@link QueryLoader}.
+ * </p>
+ *
+ * @author Ren de Bloois
+ */
+public class QueryStatistics implements QueryStatisticsMBean
+{
+	/**
+	 * Number of buckets in the time histograms. The last bucket has no upper limit.
+	 */
+	static private final int BUCKETS = 26;
+
+	private String path;
+
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong slowQueries = new AtomicLong();
+
+	private final Histogram prepareTimes = new Histogram();
+	private final Histogram executeTimes = new Histogram();
+	private final Histogram fetchTimes = new Histogram();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param path The path of the query.
+	 */
+	QueryStatistics( String path )
+	{
+		this.path = path;
+	}
+
+	/**
+	 * Starts recording an execution.
+	 *
+	 * @param slowQueryNanos The threshold above which the execution is logged as a slow query, 0 for no threshold.
+	 * @return The execution.
+	 */
+	Execution start( long slowQueryNanos )
+	{
+		return new Execution( this, slowQueryNanos );
+	}
+
+	/**
+	 * Returns the exclusive upper limits of the buckets of the time histograms in microseconds. The last bucket has
+	 * {@link Long#MAX_VALUE} as its upper limit.
+	 *
+	 * @return The upper limits of the buckets of the time histograms.
+	 */
+	static public long[] getTimeBucketLimitsMicros()
+	{
+		long[] result = new long[ BUCKETS ];
+		for( int i = 0; i < BUCKETS - 1; i++ )
+			result[ i ] = 1L << i;
+		result[ BUCKETS - 1 ] = Long.MAX_VALUE;
+		return result;
+	}
+
+	public String getPath()
+	{
+		return this.path;
+	}
+
+	public long getExecutionCount()
+	{
+		return this.executions.get();
+	}
+
+	public long getFailureCount()
+	{
+		return this.failures.get();
+	}
+
+	public long getRowCount()
+	{
+		return this.rows.get();
+	}
+
+	public long getSlowQueryCount()
+	{
+		return this.slowQueries.get();
+	}
+
+	public double getAveragePrepareTimeMillis()
+	{
+		return this.prepareTimes.getAverageMillis();
+	}
+
+	public double getAverageExecuteTimeMillis()
+	{
+		return this.executeTimes.getAverageMillis();
+	}
+
+	public double getAverageFetchTimeMillis()
+	{
+		return this.fetchTimes.getAverageMillis();
+	}
+
+	public long getPrepareTimePercentileMicros( double percentile )
+	{
+		return this.prepareTimes.getPercentileMicros( percentile );
+	}
+
+	public long getExecuteTimePercentileMicros( double percentile )
+	{
+		return this.executeTimes.getPercentileMicros( percentile );
+	}
+
+	public long getFetchTimePercentileMicros( double percentile )
+	{
+		return this.fetchTimes.getPercentileMicros( percentile );
+	}
+
+	public long[] getPrepareTimeHistogram()
+	{
+		return this.prepareTimes.get();
+	}
+
+	public long[] getExecuteTimeHistogram()
+	{
+		return this.executeTimes.get();
+	}
+
+	public long[] getFetchTimeHistogram()
+	{
+		return this.fetchTimes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "path=" + this.path + ", executions=" + getExecutionCount() + ", failures=" + getFailureCount()
+				+ ", rows=" + getRowCount() + ", slowQueries=" + getSlowQueryCount();
+	}
+
+	/**
+	 * A histogram of times, together with their total.
+	 */
+	static private class Histogram
+	{
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+
+		Histogram()
+		{
+			// Only used by the statistics
+		}
+
+		void record( long nanos )
+		{
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet( nanos );
+			int bucket = 64 - Long.numberOfLeadingZeros( nanos / 1000 );
+			this.buckets.incrementAndGet( bucket < BUCKETS ? bucket : BUCKETS - 1 );
+		}
+
+		double getAverageMillis()
+		{
+			long count = this.count.get();
+			return count == 0 ? 0 : this.totalNanos.get() / 1000000d / count;
+		}
+
+		long getPercentileMicros( double percentile )
+		{
+			if( percentile < 0 || percentile > 100 )
+				throw new IllegalArgumentException( "percentile must be between 0 and 100" );
+			long[] buckets = get();
+			long count = 0;
+			for( long bucket : buckets )
+				count += bucket;
+			if( count == 0 )
+				return 0;
+			long rank = (long)Math.ceil( count * percentile / 100 );
+			for( int i = 0; i < BUCKETS - 1; i++ )
+			{
+				rank -= buckets[ i ];
+				if( rank <= 0 )
+					return 1L << i;
+			}
+			return Long.MAX_VALUE;
+		}
+
+		long[] get()
+		{
+			long[] result = new long[ BUCKETS ];
+			for( int i = 0; i < BUCKETS; i++ )
+				result[ i ] = this.buckets.get( i );
+			return result;
+		}
+	}
+
+	/**
+	 * Records the phases of one execution of a query. Phases that are not marked are not recorded, an update for example
+	 * has no fetch phase. This class is NOT threadsafe.
+	 */
+	static class Execution
+	{
+		private QueryStatistics statistics;
+		private long slowQueryNanos;
+		private long start;
+		private long prepared;
+		private long executed;
+		private boolean ended;
+
+		Execution( QueryStatistics statistics, long slowQueryNanos )
+		{
+			this.statistics = statistics;
+			this.slowQueryNanos = slowQueryNanos;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Marks the end of the prepare phase.
+		 */
+		void prepared()
+		{
+			this.prepared = System.nanoTime();
+		}
+
+		/**
+		 * Marks the end of the execute phase. The fetch phase follows.
+		 */
+		void executed()
+		{
+			this.executed = System.nanoTime();
+		}
+
+		/**
+		 * Ends the execution successfully. Does nothing when the execution has ended already.
+		 *
+		 * @param rows The number of rows returned or changed.
+		 */
+		void succeeded( long rows )
+		{
+			end( rows, true );
+		}
+
+		/**
+		 * Ends the execution as failed, unless it has ended already. Meant to be called in a finally block.
+		 */
+		void end()
+		{
+			end( 0, false );
+		}
+
+		private void end( long rows, boolean success )
+		{
+			if( this.ended )
+				return;
+			this.ended = true;
+
+			long now = System.nanoTime();
+			QueryStatistics statistics = this.statistics;
+			statistics.executions.incrementAndGet();
+			if( success )
+				statistics.rows.addAndGet( rows );
+			else
+				statistics.failures.incrementAndGet();
+
+			long prepareNanos = 0, executeNanos, fetchNanos = 0;
+			long executeStart = this.start;
+			if( this.prepared != 0 )
+			{
+				prepareNanos = this.prepared - this.start;
+				statistics.prepareTimes.record( prepareNanos );
+				executeStart = this.prepared;
+			}
+			if( this.executed != 0 )
+			{
+				executeNanos = this.executed - executeStart;
+				fetchNanos = now - this.executed;
+				if( success )
+					statistics.fetchTimes.record( fetchNanos );
+			}
+			else
+				executeNanos = now - executeStart;
+			if( success || this.executed != 0 )
+				statistics.executeTimes.record( executeNanos );
+
+			if( this.slowQueryNanos > 0 && now - this.start >= this.slowQueryNanos )
+			{
+				statistics.slowQueries.incrementAndGet();
+				Loggers.execution.warn( "Slow query [{}]: {} ms (prepare {} ms, execute {} ms, fetch {} ms), {} rows{}", new Object[] {
+						statistics.path, ( now - this.start ) / 1000000, prepareNanos / 1000000, executeNanos / 1000000,
+						fetchNanos / 1000000, rows, success ? "" : ", failed" } );
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+
+/**
+ * The JMX management interface of the {@link QueryStatistics}.
+ *
+ * @author Ren de Bloois
+ */
+public interface QueryStatisticsMBean
+{
+	/**
+	 * @return The path of the query.
+	 */
+	String getPath();
+
+	/**
+	 * @return The number of executions, including the failed ones.
+	 */
+	long getExecutionCount();
+
+	/**
+	 * @return The number of failed executions.
+	 */
+	long getFailureCount();
+
+	/**
+	 * @return The number of rows returned by the queries or changed by the updates.
+	 */
+	long getRowCount();
+
+	/**
+	 * @return The number of executions that took longer than the slow query threshold.
+	 */
+	long getSlowQueryCount();
+
+	/**
+	 * @return The average time in milliseconds to generate the SQL and prepare the statement.
+	 */
+	double getAveragePrepareTimeMillis();
+
+	/**
+	 * @return The average time in milliseconds to execute the statement.
+	 */
+	double getAverageExecuteTimeMillis();
+
+	/**
+	 * @return The average time in milliseconds to read the result set.
+	 */
+	double getAverageFetchTimeMillis();
+
+	/**
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The upper limit in microseconds of the prepare time of the given percentile of the executions.
+	 */
+	long getPrepareTimePercentileMicros( double percentile );
+
+	/**
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The upper limit in microseconds of the execute time of the given percentile of the executions.
+	 */
+	long getExecuteTimePercentileMicros( double percentile );
+
+	/**
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The upper limit in microseconds of the fetch time of the given percentile of the executions.
+	 */
+	long getFetchTimePercentileMicros( double percentile );
+
+	/**
+	 * @return The number of executions per prepare time bucket, see {@link QueryStatistics#getTimeBucketLimitsMicros()}.
+	 */
+	long[] getPrepareTimeHistogram();
+
+	/**
+	 * @return The number of executions per execute time bucket, see {@link QueryStatistics#getTimeBucketLimitsMicros()}.
+	 */
+	long[] getExecuteTimeHistogram();
+
+	/**
+	 * @return The number of executions per fetch time bucket, see {@link QueryStatistics#getTimeBucketLimitsMicros()}.
+	 */
+	long[] getFetchTimeHistogram();
+}
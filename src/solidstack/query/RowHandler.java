@@ -0,0 +1,34 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+
+/**
+ * Handles the rows of a query one at a time.
+ *
+ * @author Ren de Bloois
+ * @see Query#forEach(java.sql.Connection, Object, RowHandler)
+ */
+public interface RowHandler
+{
+	/**
+	 * Handles a row.
+	 *
+	 * @param row The values of the columns of the row.
+	 */
+	void handleRow( Object[] row );
+}
@@ -0,0 +1,181 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Iterates over the rows of a {@link ResultSet} without reading all of them in memory. The result set is closed when
+ * the last row has been read or when {@link #close()} is called. An iterator that is not read until the end must be
+ * closed.
+ *
+ * @author Ren de Bloois
+ */
+public class RowIterator implements Iterator< Object[] >, Closeable
+{
+	private ResultSet resultSet;
+	private Statement statement;
+	private Map< String, Integer > names;
+	private int columnCount;
+	private Object[] next;
+	private boolean closed;
+	private QueryStatistics.Execution execution;
+	private int count;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param resultSet The result set to iterate over.
+	 * @param statement The statement to close together with the result set, or null.
+	 */
+	public RowIterator( ResultSet resultSet, Statement statement )
+	{
+		this( resultSet, statement, null );
+	}
+
+	/**
+	 * Constructor. The execution ends when the iterator is closed, so the fetch time includes the time spent handling the
+	 * rows.
+	 *
+	 * @param resultSet The result set to iterate over.
+	 * @param statement The statement to close together with the result set, or null.
+	 * @param execution The execution of the query to record, or null.
+	 */
+	RowIterator( ResultSet resultSet, Statement statement, QueryStatistics.Execution execution )
+	{
+		this.resultSet = resultSet;
+		this.statement = statement;
+		this.execution = execution;
+		try
+		{
+			this.columnCount = resultSet.getMetaData().getColumnCount();
+		}
+		catch( SQLException e )
+		{
+			failed();
+			close();
+			throw new QuerySQLException( e );
+		}
+	}
+
+	/**
+	 * Returns the lower case column labels mapped to the column indexes, to be used with {@link ValuesMap}.
+	 *
+	 * @return The column labels mapped to the column indexes.
+	 */
+	public Map< String, Integer > getColumnLabelMap()
+	{
+		if( this.names == null )
+			try
+			{
+				this.names = Query.getColumnLabelMap( this.resultSet.getMetaData() );
+			}
+			catch( SQLException e )
+			{
+				throw new QuerySQLException( e );
+			}
+		return this.names;
+	}
+
+	public boolean hasNext()
+	{
+		if( this.next != null )
+			return true;
+		if( this.closed )
+			return false;
+
+		try
+		{
+			if( !this.resultSet.next() )
+			{
+				close();
+				return false;
+			}
+			Object[] row = new Object[ this.columnCount ];
+			for( int col = 0; col < this.columnCount; col++ )
+				row[ col ] = this.resultSet.getObject( col + 1 );
+			this.next = row;
+			this.count++;
+			return true;
+		}
+		catch( SQLException e )
+		{
+			failed();
+			close();
+			throw new QuerySQLException( e );
+		}
+	}
+
+	public Object[] next()
+	{
+		if( !hasNext() )
+			throw new NoSuchElementException();
+		Object[] result = this.next;
+		this.next = null;
+		return result;
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Records the execution of the query as failed. Closing the iterator afterwards does not change that.
+	 */
+	void failed()
+	{
+		if( this.execution != null )
+			this.execution.end();
+	}
+
+	/**
+	 * Closes the result set, and the statement if it was given to the constructor. Can be called more than once.
+	 */
+	public void close()
+	{
+		if( this.closed )
+			return;
+		this.closed = true;
+		if( this.execution != null )
+			this.execution.succeeded( this.count );
+		try
+		{
+			try
+			{
+				this.resultSet.close();
+			}
+			finally
+			{
+				if( this.statement != null )
+					this.statement.close();
+			}
+		}
+		catch( SQLException e )
+		{
+			throw new QuerySQLException( e );
+		}
+	}
+}
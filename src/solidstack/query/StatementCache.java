@@ -0,0 +1,199 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Caches prepared statements per connection, so that a query that is executed repeatedly on the same connection is
+ * prepared only once. When the cache of a connection is full, the least recently used statement is closed. The cached
+ * statements of a connection are closed and forgotten when {@link #release(Connection)} is called. Connections that
+ * have been closed without a release are looked for at most once a minute, when a new connection comes along.
+ *
+ * <p>
+ * Enabled with {@link Query#setStatementCacheSize(int)} or {@link QueryLoader#setStatementCacheSize(int)}.
+ * </p>
+ *
+ * @author Ren de Bloois
+ */
+public class StatementCache
+{
+	static private final long CLEANUP_INTERVAL_MILLIS = 60000;
+
+	static private final ConcurrentMap< ConnectionKey, StatementCache > caches = new ConcurrentHashMap< ConnectionKey, StatementCache >();
+	static private final AtomicLong nextCleanupMillis = new AtomicLong();
+
+	private int maxSize;
+	private Map< String, PreparedStatement > statements = new LinkedHashMap< String, PreparedStatement >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry< String, PreparedStatement > eldest )
+		{
+			if( size() <= StatementCache.this.maxSize )
+				return false;
+			close( eldest.getValue() );
+			return true;
+		}
+	};
+
+
+	/**
+	 * Returns a prepared statement for the given SQL from the cache of the connection. The statement is prepared and
+	 * added to the cache when it is not in the cache yet. The returned statement must not be closed.
+	 *
+	 * @param connection The connection.
+	 * @param sql The SQL.
+	 * @param maxSize The maximum number of statements to cache for the connection.
+	 * @return The prepared statement.
+	 * @throws SQLException When the statement could not be prepared.
+	 */
+	static PreparedStatement prepareStatement( Connection connection, String sql, int maxSize ) throws SQLException
+	{
+		ConnectionKey key = new ConnectionKey( connection );
+		StatementCache cache = caches.get( key );
+		if( cache == null )
+		{
+			// A good moment, new connections come and go with old ones. Only the thread that moves the time forward cleans up.
+			long now = System.currentTimeMillis();
+			long next = nextCleanupMillis.get();
+			if( now >= next && nextCleanupMillis.compareAndSet( next, now + CLEANUP_INTERVAL_MILLIS ) )
+				removeClosed();
+
+			cache = new StatementCache();
+			StatementCache existing = caches.putIfAbsent( key, cache );
+			if( existing != null )
+				cache = existing;
+		}
+		return cache.prepare( connection, sql, maxSize );
+	}
+
+	/**
+	 * Closes and forgets the cached statements of the given connection. Call this before closing a connection or
+	 * returning it to a pool when the statements should not stay open.
+	 *
+	 * @param connection The connection.
+	 */
+	static public void release( Connection connection )
+	{
+		StatementCache cache = caches.remove( new ConnectionKey( connection ) );
+		if( cache != null )
+			cache.clear();
+	}
+
+	/**
+	 * Returns the number of statements in the cache of the given connection.
+	 *
+	 * @param connection The connection.
+	 * @return The number of statements in the cache of the connection.
+	 */
+	static public int size( Connection connection )
+	{
+		StatementCache cache = caches.get( new ConnectionKey( connection ) );
+		if( cache == null )
+			return 0;
+		synchronized( cache )
+		{
+			return cache.statements.size();
+		}
+	}
+
+	static private void removeClosed()
+	{
+		for( Iterator< Map.Entry< ConnectionKey, StatementCache > > i = caches.entrySet().iterator(); i.hasNext(); )
+		{
+			Map.Entry< ConnectionKey, StatementCache > entry = i.next();
+			boolean isClosed;
+			try
+			{
+				isClosed = entry.getKey().connection.isClosed();
+			}
+			catch( SQLException e )
+			{
+				isClosed = true;
+			}
+			if( isClosed && caches.remove( entry.getKey(), entry.getValue() ) )
+				entry.getValue().clear();
+		}
+	}
+
+	synchronized private PreparedStatement prepare( Connection connection, String sql, int maxSize ) throws SQLException
+	{
+		this.maxSize = maxSize;
+		PreparedStatement statement = this.statements.get( sql );
+		if( statement == null )
+		{
+			statement = connection.prepareStatement( sql );
+			this.statements.put( sql, statement );
+		}
+		return statement;
+	}
+
+	synchronized private void clear()
+	{
+		for( PreparedStatement statement : this.statements.values() )
+			close( statement );
+		this.statements.clear();
+	}
+
+	static private void close( PreparedStatement statement )
+	{
+		try
+		{
+			statement.close();
+		}
+		catch( SQLException e )
+		{
+			Loggers.execution.warn( "Could not close cached statement", e );
+		}
+	}
+
+	/**
+	 * Identifies a connection by identity. Connections may implement equals() differently, pool proxies for example.
+	 */
+	static private class ConnectionKey
+	{
+		final Connection connection;
+
+		ConnectionKey( Connection connection )
+		{
+			this.connection = connection;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode( this.connection );
+		}
+
+		@Override
+		public boolean equals( Object other )
+		{
+			return other instanceof ConnectionKey && ( (ConnectionKey)other ).connection == this.connection;
+		}
+	}
+}
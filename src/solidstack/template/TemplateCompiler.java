@@ -110,6 +110,9 @@ public class TemplateCompiler
 	 */
 	public void compile( TemplateCompilerContext context )
 	{
+		if( context.getClassCacheFolder() == null && this.loader != null )
+			context.setClassCacheFolder( this.loader.getClassCacheFolder() );
+
 		createReader( context );
 		try
 		{
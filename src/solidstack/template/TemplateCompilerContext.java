@@ -16,6 +16,7 @@
 
 package solidstack.template;
 
+import java.io.File;
 import java.util.List;
 
 import solidstack.io.Resource;
@@ -38,6 +39,7 @@ public class TemplateCompilerContext
 	private String charSet;
 	private StringBuilder script;
 	private Template template;
+	private File classCacheFolder;
 
 	public void setResource( Resource resource )
 	{
@@ -153,4 +155,14 @@ public class TemplateCompilerContext
 	{
 		return this.template;
 	}
+
+	public void setClassCacheFolder( File classCacheFolder )
+	{
+		this.classCacheFolder = classCacheFolder;
+	}
+
+	public File getClassCacheFolder()
+	{
+		return this.classCacheFolder;
+	}
 }
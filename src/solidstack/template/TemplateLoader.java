@@ -16,11 +16,36 @@
 
 package solidstack.template;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 
+import solidstack.io.FatalIOException;
+import solidstack.io.FatalURISyntaxException;
 import solidstack.io.Resource;
 import solidstack.io.Resources;
 import solidstack.lang.Assert;
@@ -38,13 +63,32 @@ public class TemplateLoader
 {
 	static private final Pattern XML_MIME_TYPE_PATTERN = Pattern.compile( "^[a-z]+/.+\\+xml" ); // TODO http://www.iana.org/assignments/media-types/index.html
 
+	/**
+	 * The default number of milliseconds that a template that is not found is remembered.
+	 */
+	static public final long DEFAULT_NOT_FOUND_MILLIS = 10000;
+
+	/**
+	 * The default maximum number of templates that are remembered as not found.
+	 */
+	static public final int DEFAULT_MAX_NOT_FOUND = 1000;
+
 	private Resource templatePath;
-	private boolean reloading;
+	private volatile boolean reloading;
+	private volatile long reloadInterval;
+	private TimerTask reloadTask;
 	private String defaultLanguage;
+	private File classCacheFolder;
 
-	private Map< String, Template > templates = new HashMap< String, Template >();
+	private ConcurrentMap< String, Template > templates = new ConcurrentHashMap< String, Template >();
+	private ConcurrentMap< String, Compilation > compiling = new ConcurrentHashMap< String, Compilation >();
 	private Map< String, Object > mimeTypeMap = new HashMap< String, Object >();
 
+	private volatile long notFoundMillis = DEFAULT_NOT_FOUND_MILLIS;
+	private volatile int maxNotFound = DEFAULT_MAX_NOT_FOUND;
+	static private Timer reloadTimer;
+	private ConcurrentMap< String, NotFound > notFound = new ConcurrentHashMap< String, NotFound >();
+
 
 	/**
 	 * Constructor.
@@ -111,6 +155,52 @@ public class TemplateLoader
 		this.reloading = reloading;
 	}
 
+	/**
+	 * Sets the interval at which a background thread checks if the files of the templates have been changed. Changed
+	 * templates are removed from the cache and are recompiled when they are requested again, so that
+	 * {@link #getTemplate(String)} does not need to check the file on every request. This only has effect when reloading
+	 * is enabled. 0, the default, disables the background thread and checks the file on every request instead.
+	 *
+	 * @param millis The interval in milliseconds.
+	 */
+	synchronized public void setReloadInterval( long millis )
+	{
+		Loggers.loader.info( "reloadInterval = [{}]", millis );
+		if( this.reloadTask != null )
+		{
+			this.reloadTask.cancel();
+			this.reloadTask = null;
+		}
+		this.reloadInterval = millis;
+		if( millis > 0 )
+		{
+			this.reloadTask = new ReloadTask( this );
+			getReloadTimer().schedule( this.reloadTask, millis, millis );
+		}
+	}
+
+	/**
+	 * Returns the interval at which a background thread checks if the files of the templates have been changed.
+	 *
+	 * @return The interval in milliseconds, 0 if there is no background thread.
+	 */
+	public long getReloadInterval()
+	{
+		return this.reloadInterval;
+	}
+
+	/**
+	 * Returns the timer that checks for changed templates for all template loaders. Created when needed.
+	 *
+	 * @return The timer.
+	 */
+	synchronized static private Timer getReloadTimer()
+	{
+		if( reloadTimer == null )
+			reloadTimer = new Timer( "TemplateLoader-reload", true );
+		return reloadTimer;
+	}
+
 	/**
 	 * Sets the default scripting language of the templates. This is used when the "language" directive is missing in the template.
 	 *
@@ -132,6 +222,130 @@ public class TemplateLoader
 		return this.defaultLanguage;
 	}
 
+	/**
+	 * Sets the folder where the classes that are generated for Groovy templates are cached. On the next start, a
+	 * template that has not been changed is loaded from this folder without compiling it with Groovy. The files in the
+	 * folder are named after the template paths, so a folder should not be shared by TemplateLoaders with the same paths
+	 * but different template files. The default is null, which disables the cache.
+	 *
+	 * @param folder The folder where the classes are cached.
+	 */
+	public void setClassCacheFolder( File folder )
+	{
+		Loggers.loader.info( "classCacheFolder = [{}]", folder );
+		this.classCacheFolder = folder;
+	}
+
+	/**
+	 * Returns the folder where the classes that are generated for Groovy templates are cached.
+	 *
+	 * @return The folder where the classes are cached, or null if there is no cache.
+	 */
+	public File getClassCacheFolder()
+	{
+		return this.classCacheFolder;
+	}
+
+	/**
+	 * Sets the number of milliseconds that a template that is not found is remembered. Until then, requests for the
+	 * template fail immediately without looking for the template file again. 0 disables this. The default is
+	 * {@value #DEFAULT_NOT_FOUND_MILLIS}.
+	 *
+	 * @param millis The number of milliseconds that a template that is not found is remembered.
+	 */
+	public void setNotFoundMillis( long millis )
+	{
+		Loggers.loader.info( "notFoundMillis = [{}]", millis );
+		this.notFoundMillis = millis;
+		if( millis <= 0 )
+			clearNotFound();
+	}
+
+	/**
+	 * Returns the number of milliseconds that a template that is not found is remembered.
+	 *
+	 * @return The number of milliseconds that a template that is not found is remembered.
+	 */
+	public long getNotFoundMillis()
+	{
+		return this.notFoundMillis;
+	}
+
+	/**
+	 * Sets the maximum number of templates that are remembered as not found. When more templates are not found, the
+	 * expired ones and then the oldest ones are forgotten. The default is {@value #DEFAULT_MAX_NOT_FOUND}.
+	 *
+	 * @param max The maximum number of templates that are remembered as not found.
+	 */
+	public void setMaxNotFound( int max )
+	{
+		Loggers.loader.info( "maxNotFound = [{}]", max );
+		this.maxNotFound = max;
+		trimNotFound( max );
+	}
+
+	/**
+	 * Returns the maximum number of templates that are remembered as not found.
+	 *
+	 * @return The maximum number of templates that are remembered as not found.
+	 */
+	public int getMaxNotFound()
+	{
+		return this.maxNotFound;
+	}
+
+	/**
+	 * Forgets all templates that are remembered as not found.
+	 */
+	public void clearNotFound()
+	{
+		this.notFound.clear();
+	}
+
+	/**
+	 * Remembers that the template with the given path was not found. Makes room when the maximum is reached.
+	 *
+	 * @param path The path of the template.
+	 * @param message The message of the {@link TemplateNotFoundException}.
+	 * @param millis The number of milliseconds to remember the template.
+	 */
+	private void notFound( String path, String message, long millis )
+	{
+		int max = this.maxNotFound;
+		if( max <= 0 )
+			return;
+		trimNotFound( max - 1 );
+		this.notFound.put( path, new NotFound( message, System.currentTimeMillis() + millis ) );
+	}
+
+	/**
+	 * Forgets the expired templates that are remembered as not found, and then the oldest ones until no more than the
+	 * given number are left. Only called when a template is not found, so this does not slow down the normal requests.
+	 *
+	 * @param max The maximum number of templates to keep.
+	 */
+	private void trimNotFound( int max )
+	{
+		if( this.notFound.size() <= max )
+			return;
+
+		long now = System.currentTimeMillis();
+		for( Iterator< NotFound > i = this.notFound.values().iterator(); i.hasNext(); )
+			if( now >= i.next().expire )
+				i.remove();
+
+		while( this.notFound.size() > max )
+		{
+			Map.Entry< String, NotFound > oldest = null;
+			for( Map.Entry< String, NotFound > entry : this.notFound.entrySet() )
+				if( oldest == null || entry.getValue().expire < oldest.getValue().expire )
+					oldest = entry;
+			if( oldest == null )
+				break;
+			this.notFound.remove( oldest.getKey(), oldest.getValue() );
+		}
+	}
+
 	/**
 	 * Returns the compiled {@link Template} with the given path. Compiled templates are cached in memory. When
 	 * {@link #setReloading(boolean)} has been enabled, file change detection will cause the templates to be reloaded
@@ -140,7 +354,6 @@ public class TemplateLoader
 	 * @param path The path of the template.
 	 * @return The {@link Template}.
 	 */
-	// TODO Also cache that a template is not found?
 	// TODO Normalize the path, otherwise you may get two or more cached instances
 	public Template getTemplate( String path )
 	{
@@ -149,44 +362,277 @@ public class TemplateLoader
 			path = path.substring( 1 );
 		// FIXME So / becomes always relative from the search path. How can we override that? Adding the scheme?
 
-		synchronized( this.templates )
+		Template template = this.templates.get( path );
+		if( template != null )
 		{
+			if( !( this.reloading && this.reloadInterval <= 0 && isModified( template ) ) )
+				return template;
+		}
+		else if( this.notFoundMillis > 0 )
+		{
+			// Templates that were not found a short while ago are not looked for again
+			NotFound notFound = this.notFound.get( path );
+			if( notFound != null )
+			{
+				if( System.currentTimeMillis() < notFound.expire )
+					throw new TemplateNotFoundException( notFound.message );
+				this.notFound.remove( path, notFound );
+			}
+		}
+
+		return compile( path, template );
+	}
+
+	/**
+	 * Checks if the file of the template has been changed since it was compiled.
+	 *
+	 * @param template The template.
+	 * @return True if the file of the template has been changed, false otherwise.
+	 */
+	private boolean isModified( Template template )
+	{
+		if( template.getLastModified() <= 0 )
+			return false;
+		Resource resource = template.getResource();
+		if( resource.unwrap().getLastModified() <= template.getLastModified() )
+			return false;
+		Loggers.loader.info( "{} changed, reloading", resource );
+		return true;
+	}
+
+	/**
+	 * Removes the templates from the cache of which the file has been changed. Called by the background thread.
+	 */
+	void removeModified()
+	{
+		if( !this.reloading )
+			return;
+		for( Map.Entry< String, Template > entry : this.templates.entrySet() )
+		{
+			Template template = entry.getValue();
+			try
+			{
+				if( isModified( template ) )
+					this.templates.remove( entry.getKey(), template );
+			}
+			catch( RuntimeException e )
+			{
+				Loggers.loader.warn( "Could not check " + template.getResource() + " for changes", e );
+			}
+		}
+	}
+
+	/**
+	 * Compiles the template with the given path. Only one thread compiles a specific template, other threads requesting
+	 * the same template wait for that compilation to complete. Different templates are compiled in parallel.
+	 *
+	 * @param path The path of the template.
+	 * @param stale The template that needs to be replaced, or null if there is none.
+	 * @return The {@link Template}.
+	 */
+	private Template compile( String path, Template stale )
+	{
+		Compilation compilation = new Compilation();
+		Compilation existing = this.compiling.putIfAbsent( path, compilation );
+		if( existing != null )
+			return existing.getResult();
+
+		try
+		{
+			// Another thread may have compiled the template just before we started the compilation
 			Template template = this.templates.get( path );
+			if( template == stale )
+				template = load( path, stale );
+			compilation.completed( template );
+			return template;
+		}
+		catch( RuntimeException e )
+		{
+			compilation.failed( e );
+			throw e;
+		}
+		catch( Error e )
+		{
+			compilation.failed( e );
+			throw e;
+		}
+		finally
+		{
+			this.compiling.remove( path, compilation );
+		}
+	}
+
+	/**
+	 * Reads and compiles the template with the given path, and puts it in the cache.
+	 *
+	 * @param path The path of the template.
+	 * @param stale The template that needs to be replaced, or null if there is none.
+	 * @return The {@link Template}.
+	 */
+	private Template load( String path, Template stale )
+	{
+		Resource resource;
+		if( stale != null )
+			resource = stale.getResource();
+		else
+			resource = this.templatePath.resolve( path + ".slt" );
+		long modified = resource.unwrap().getLastModified();
+		Loggers.loader.debug( "{}, lastModified: {} ({})", new Object[] { resource, new Date( modified ), modified } );
+
+		if( !resource.exists() )
+		{
+			String message = resource.getNormalized() + " not found";
+			long millis = this.notFoundMillis;
+			if( millis > 0 )
+				notFound( path, message, millis );
+			throw new TemplateNotFoundException( message );
+		}
 
-			Resource resource = null;
-			long modified = 0;
-			if( this.reloading && template != null && template.getLastModified() > 0 )
+		Template template = new TemplateCompiler( this ).compile( resource, path ); // TODO Is this enough for a class name?
+		template.setResource( resource );
+		template.setLastModified( modified );
+		template.setLoader( this );
+		this.templates.put( path, template );
+		return template;
+	}
+
+	/**
+	 * Compiles all templates in the template path, so that they don't need to be compiled when they are requested for
+	 * the first time. The templates are compiled in parallel by as many threads as there are processors. Templates
+	 * that have been compiled already are not compiled again.
+	 *
+	 * @return The paths of the templates that failed to compile, mapped to the cause of the failure. Empty when all
+	 *         templates compiled successfully.
+	 */
+	public Map< String, Throwable > precompileAll()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			return precompileAll( executor );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Compiles all templates in the template path with the given executor, so that they don't need to be compiled when
+	 * they are requested for the first time. Templates that have been compiled already are not compiled again. The
+	 * template path must be a folder in the file system or in a jar, possibly through the class path.
+	 *
+	 * @param executor The executor that compiles the templates.
+	 * @return The paths of the templates that failed to compile, mapped to the cause of the failure. Empty when all
+	 *         templates compiled successfully.
+	 */
+	public Map< String, Throwable > precompileAll( ExecutorService executor )
+	{
+		List< String > paths = findTemplates();
+		Loggers.loader.info( "Precompiling {} templates in {}", paths.size(), this.templatePath );
+
+		Map< String, Future< Template > > futures = new LinkedHashMap< String, Future< Template > >();
+		for( final String path : paths )
+			futures.put( path, executor.submit( new Callable< Template >()
 			{
-				resource = template.getResource();
-				modified = resource.unwrap().getLastModified();
-				if( modified > template.getLastModified() )
+				public Template call()
 				{
-					template = null;
-					Loggers.loader.info( "{} changed, reloading", resource );
+					return getTemplate( path );
 				}
-			}
+			} ) );
 
-			// Compile the query if needed
-			if( template == null )
-			{
-				if( resource == null )
+		Map< String, Throwable > result = new LinkedHashMap< String, Throwable >();
+		try
+		{
+			for( Map.Entry< String, Future< Template > > entry : futures.entrySet() )
+				try
 				{
-					resource = this.templatePath.resolve( path + ".slt" );
-					modified = resource.unwrap().getLastModified();
-					Loggers.loader.debug( "{}, lastModified: {} ({})", new Object[] { resource, new Date( modified ), modified } );
+					entry.getValue().get();
 				}
+				catch( ExecutionException e )
+				{
+					Loggers.loader.error( "Template " + entry.getKey() + " failed to compile", e.getCause() );
+					result.put( entry.getKey(), e.getCause() );
+				}
+		}
+		catch( InterruptedException e )
+		{
+			for( Future< Template > future : futures.values() )
+				future.cancel( false );
+			Thread.currentThread().interrupt();
+			throw new TemplateException( "Interrupted while precompiling the templates" );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the paths of all templates in the template path, sorted.
+	 *
+	 * @return The paths of all templates in the template path.
+	 */
+	private List< String > findTemplates()
+	{
+		URL url = this.templatePath.getURL();
+		List< String > result = new ArrayList< String >();
+		try
+		{
+			if( url.getProtocol().equals( "file" ) )
+				findTemplates( new File( url.toURI() ), "", result );
+			else if( url.getProtocol().equals( "jar" ) )
+				findTemplates( (JarURLConnection)url.openConnection(), result );
+			else
+				throw new UnsupportedOperationException( "Can't list the templates in " + this.templatePath );
+		}
+		catch( URISyntaxException e )
+		{
+			throw new FatalURISyntaxException( e );
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+		Collections.sort( result );
+		return result;
+	}
 
-				if( !resource.exists() )
-					throw new TemplateNotFoundException( resource.getNormalized() + " not found" );
+	static private void findTemplates( File folder, String prefix, List< String > result )
+	{
+		File[] files = folder.listFiles();
+		if( files == null )
+			return;
+		for( File file : files )
+		{
+			String name = file.getName();
+			if( file.isDirectory() )
+				findTemplates( file, prefix + name + "/", result );
+			else if( name.endsWith( ".slt" ) )
+				result.add( prefix + name.substring( 0, name.length() - 4 ) );
+		}
+	}
 
-				template = new TemplateCompiler( this ).compile( resource, path ); // TODO Is this enough for a class name?
-				template.setResource( resource );
-				template.setLastModified( modified );
-				template.setLoader( this );
-				this.templates.put( path, template );
-			}
+	static private void findTemplates( JarURLConnection connection, List< String > result ) throws IOException
+	{
+		connection.setUseCaches( false );
+		String prefix = connection.getEntryName();
+		if( prefix == null )
+			prefix = "";
+		else if( !prefix.endsWith( "/" ) )
+			prefix += "/";
 
-			return template;
+		JarFile jar = connection.getJarFile();
+		try
+		{
+			Enumeration< JarEntry > entries = jar.entries();
+			while( entries.hasMoreElements() )
+			{
+				String name = entries.nextElement().getName();
+				if( name.startsWith( prefix ) && name.endsWith( ".slt" ) )
+					result.add( name.substring( prefix.length(), name.length() - 4 ) );
+			}
+		}
+		finally
+		{
+			jar.close();
 		}
 	}
 
@@ -209,10 +655,8 @@ public class TemplateLoader
 		// TODO Fixed already?: Reloading does not work, because the path has nothing to do with the resource.
 		// TODO Fixed already?: I think we need to store the URI in the template, if it has one
 
-		synchronized( this.templates )
-		{
-			this.templates.put( path, template );
-		}
+		this.templates.put( path, template );
+		this.notFound.remove( path );
 	}
 
 	/**
@@ -238,4 +682,99 @@ public class TemplateLoader
 
 		return null;
 	}
+
+	/**
+	 * A template that was not found.
+	 */
+	static private class NotFound
+	{
+		final String message;
+		final long expire;
+
+		NotFound( String message, long expire )
+		{
+			this.message = message;
+			this.expire = expire;
+		}
+	}
+
+	/**
+	 * A compilation of a template that is in progress. Threads requesting the same template wait for it to complete.
+	 */
+	static private class Compilation
+	{
+		private boolean done;
+		private Template template;
+		private Throwable throwable;
+
+		synchronized void completed( Template template )
+		{
+			this.template = template;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized void failed( Throwable throwable )
+		{
+			this.throwable = throwable;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized Template getResult()
+		{
+			boolean interrupted = false;
+			while( !this.done )
+				try
+				{
+					wait();
+				}
+				catch( InterruptedException e )
+				{
+					interrupted = true;
+				}
+			if( interrupted )
+				Thread.currentThread().interrupt();
+
+			if( this.throwable instanceof RuntimeException )
+				throw (RuntimeException)this.throwable;
+			if( this.throwable instanceof Error )
+				throw (Error)this.throwable;
+			return this.template;
+		}
+	}
+
+	/**
+	 * Checks periodically if the files of the templates of a template loader have been changed. Does not keep the
+	 * template loader from being garbage collected.
+	 */
+	static private class ReloadTask extends TimerTask
+	{
+		private WeakReference< TemplateLoader > loader;
+
+		ReloadTask( TemplateLoader loader )
+		{
+			this.loader = new WeakReference< TemplateLoader >( loader );
+		}
+
+		@Override
+		public void run()
+		{
+			TemplateLoader loader = this.loader.get();
+			if( loader == null )
+			{
+				cancel();
+				return;
+			}
+			try
+			{
+				loader.removeModified();
+			}
+			catch( Throwable t )
+			{
+				// The timer is shared by all loaders and stops for good when a task throws
+				Loggers.loader.error( "Could not check the templates for changes", t );
+			}
+		}
+	}
 }
@@ -0,0 +1,232 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.template.groovy;
+
+import groovy.lang.GroovySystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import solidstack.template.Loggers;
+
+
+/**
+ * Stores the classes generated by Groovy for a template in a file, so that the template does not need to be compiled by
+ * Groovy again after a restart. The name of the file contains a hash of the template path, the generated Groovy script
+ * and the Groovy version, so a changed template or another Groovy version never uses old classes.
+ *
+ * @author Ren de Bloois
+ */
+class GroovyClassCache
+{
+	static private final int MAGIC = 0x53534743;
+	static private final String EXTENSION = ".classes";
+	static private final int HASH_LENGTH = 40;
+	static private final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private File file;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param folder The folder that contains the cache files.
+	 * @param path The path of the template.
+	 * @param script The generated Groovy script of the template.
+	 */
+	GroovyClassCache( File folder, String path, CharSequence script )
+	{
+		this.file = new File( folder, getPrefix( path ) + hash( path, script ) + EXTENSION );
+	}
+
+	/**
+	 * Returns the start of the names of the cache files of the given template path. Characters other than letters,
+	 * digits and dots are escaped as an underscore followed by 4 hexadecimal digits, so that different paths never get
+	 * the same prefix and never delete each other's cache files.
+	 */
+	static private String getPrefix( String path )
+	{
+		StringBuilder result = new StringBuilder( path.length() + 16 );
+		for( int i = 0; i < path.length(); i++ )
+		{
+			char c = path.charAt( i );
+			if( c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' )
+				result.append( c );
+			else
+				result.append( '_' ).append( HEX[ c >> 12 & 0x0F ] ).append( HEX[ c >> 8 & 0x0F ] ).append( HEX[ c >> 4 & 0x0F ] ).append( HEX[ c & 0x0F ] );
+		}
+		return result.append( '-' ).toString();
+	}
+
+	static private String hash( String path, CharSequence script )
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			digest.update( path.getBytes( "UTF-8" ) );
+			digest.update( (byte)0 );
+			digest.update( GroovySystem.getVersion().getBytes( "UTF-8" ) );
+			digest.update( (byte)0 );
+			digest.update( script.toString().getBytes( "UTF-8" ) );
+
+			StringBuilder result = new StringBuilder( HASH_LENGTH );
+			for( byte b : digest.digest() )
+				result.append( HEX[ b >> 4 & 0x0F ] ).append( HEX[ b & 0x0F ] );
+			return result.toString();
+		}
+		catch( NoSuchAlgorithmException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		catch( UnsupportedEncodingException e )
+		{
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Reads the classes from the cache file. A damaged cache file is deleted.
+	 *
+	 * @return The class names mapped to the class bytes, in the order they were written, or null if there is no usable cache file.
+	 */
+	Map< String, byte[] > read()
+	{
+		if( !this.file.isFile() )
+			return null;
+
+		long length = this.file.length();
+		try
+		{
+			DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( this.file ) ) );
+			try
+			{
+				if( in.readInt() != MAGIC )
+				{
+					Loggers.compiler.warn( "{} is not a class cache file", this.file );
+					return null;
+				}
+				int count = in.readInt();
+				if( count < 0 || count > length / 6 ) // A name and a length take at least 6 bytes
+					throw new IOException( "Invalid class count " + count );
+				Map< String, byte[] > result = new LinkedHashMap< String, byte[] >();
+				for( int i = 0; i < count; i++ )
+				{
+					String name = in.readUTF();
+					int size = in.readInt();
+					if( size < 0 || size > length )
+						throw new IOException( "Invalid class length " + size );
+					byte[] bytes = new byte[ size ];
+					in.readFully( bytes );
+					result.put( name, bytes );
+				}
+				Loggers.compiler.debug( "Read {} classes from {}", count, this.file );
+				return result;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch( IOException e )
+		{
+			delete( e );
+			return null;
+		}
+		catch( RuntimeException e )
+		{
+			delete( e );
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the cache file because it could not be read or contains classes that could not be defined. The next
+	 * compilation writes a new one.
+	 *
+	 * @param cause The cause.
+	 */
+	void delete( Throwable cause )
+	{
+		Loggers.compiler.warn( "Ignoring damaged class cache file " + this.file, cause );
+		this.file.delete();
+	}
+
+	/**
+	 * Writes the classes to the cache file, and deletes the old cache files of the same template. Failures are logged
+	 * only, the cache is just an optimization.
+	 *
+	 * @param classes The class names mapped to the class bytes.
+	 */
+	void write( Map< String, byte[] > classes )
+	{
+		File folder = this.file.getParentFile();
+		folder.mkdirs();
+		File temp = new File( folder, this.file.getName() + ".tmp" + Thread.currentThread().getId() );
+		try
+		{
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+			try
+			{
+				out.writeInt( MAGIC );
+				out.writeInt( classes.size() );
+				for( Map.Entry< String, byte[] > entry : classes.entrySet() )
+				{
+					out.writeUTF( entry.getKey() );
+					out.writeInt( entry.getValue().length );
+					out.write( entry.getValue() );
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			this.file.delete();
+			if( !temp.renameTo( this.file ) )
+				throw new IOException( "Could not rename " + temp + " to " + this.file );
+		}
+		catch( IOException e )
+		{
+			temp.delete();
+			Loggers.compiler.warn( "Could not write " + this.file, e );
+			return;
+		}
+
+		// Remove the files of older versions of the template
+		String name = this.file.getName();
+		String prefix = name.substring( 0, name.length() - HASH_LENGTH - EXTENSION.length() );
+		int length = name.length();
+		File[] files = folder.listFiles();
+		if( files != null )
+			for( File file : files )
+			{
+				String other = file.getName();
+				if( other.length() == length && other.startsWith( prefix ) && other.endsWith( EXTENSION ) && !other.equals( name ) )
+					file.delete();
+			}
+	}
+}
@@ -19,7 +19,10 @@ package solidstack.template.groovy;
 import groovy.lang.Closure;
 import groovy.lang.GroovyObject;
 
+import java.io.File;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -127,22 +130,50 @@ public class GroovyTemplateCompiler
 	}
 
 	/**
-	 * Compiles the Groovy script.
+	 * Compiles the Groovy script. When the context has a class cache folder, the classes are read from the cache if the
+	 * template has not been changed, and written to it otherwise. When the cached classes can't be used, the script is
+	 * compiled as if there was no cache.
 	 *
 	 * @param context The compilation context.
 	 */
 	public void compileScript( TemplateCompilerContext context )
 	{
-		// Compile to bytes
-		CompilationUnit unit = new CompilationUnit();
-		unit.addSource( context.getPath(), context.getScript().toString() );
-		unit.compile( Phases.CLASS_GENERATION );
-
-		// Results
-		@SuppressWarnings( "unchecked" )
-		List< GroovyClass > classes = unit.getClasses();
-		Assert.isTrue( classes.size() > 0, "Expecting 1 or more classes" );
+		File folder = context.getClassCacheFolder();
+		if( folder != null )
+		{
+			GroovyClassCache cache = new GroovyClassCache( folder, context.getPath(), context.getScript() );
+			Map< String, byte[] > classes = cache.read();
+			if( classes != null )
+				try
+				{
+					context.setTemplate( define( classes ) );
+					return;
+				}
+				catch( RuntimeException e )
+				{
+					cache.delete( e );
+				}
+				catch( LinkageError e )
+				{
+					cache.delete( e );
+				}
+
+			classes = compile( context );
+			cache.write( classes );
+			context.setTemplate( define( classes ) );
+		}
+		else
+			context.setTemplate( define( compile( context ) ) );
+	}
 
+	/**
+	 * Defines the classes and instantiates the template.
+	 *
+	 * @param classes The class names mapped to the class bytes.
+	 * @return The template.
+	 */
+	private GroovyTemplate define( Map< String, byte[] > classes )
+	{
 		ClassLoader parent = Thread.currentThread().getContextClassLoader();
 		if( parent == null )
 			parent = GroovyTemplateCompiler.class.getClassLoader();
@@ -151,9 +182,9 @@ public class GroovyTemplateCompiler
 		// TODO Configurable class loader
 		DefiningClassLoader classLoader = new DefiningClassLoader( parent );
 		Class< ? > first = null;
-		for( GroovyClass cls : classes )
+		for( Map.Entry< String, byte[] > cls : classes.entrySet() )
 		{
-			Class< ? > clas = classLoader.defineClass( cls.getName(), cls.getBytes() );
+			Class< ? > clas = classLoader.defineClass( cls.getKey(), cls.getValue() );
 			if( first == null )
 				first = clas; // TODO Are we sure that the first one is always the right one?
 		}
@@ -165,7 +196,29 @@ public class GroovyTemplateCompiler
 		// The old way:
 //		Class< GroovyObject > groovyClass = new GroovyClassLoader().parseClass( new GroovyCodeSource( getSource(), getName(), "x" ) );
 
-		context.setTemplate( new GroovyTemplate( closure ) );
+		return new GroovyTemplate( closure );
+	}
+
+	/**
+	 * Compiles the Groovy script to bytes.
+	 *
+	 * @param context The compilation context.
+	 * @return The class names mapped to the class bytes, in the order Groovy generated them.
+	 */
+	private Map< String, byte[] > compile( TemplateCompilerContext context )
+	{
+		CompilationUnit unit = new CompilationUnit();
+		unit.addSource( context.getPath(), context.getScript().toString() );
+		unit.compile( Phases.CLASS_GENERATION );
+
+		@SuppressWarnings( "unchecked" )
+		List< GroovyClass > classes = unit.getClasses();
+		Assert.isTrue( classes.size() > 0, "Expecting 1 or more classes" );
+
+		Map< String, byte[] > result = new LinkedHashMap< String, byte[] >();
+		for( GroovyClass cls : classes )
+			result.put( cls.getName(), cls.getBytes() );
+		return result;
 	}
 
 	// TODO Any other characters?
@@ -16,19 +16,41 @@
 
 package solidstack.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import solidstack.cache.ReadThroughCache.AsyncLoader;
 import solidstack.cache.ReadThroughCache.BlockingMode;
+import solidstack.cache.ReadThroughCache.BulkLoader;
+import solidstack.cache.ReadThroughCache.LoadCallback;
 import solidstack.cache.ReadThroughCache.Loader;
+import solidstack.io.FatalIOException;
 import solidstack.lang.SystemException;
 import solidstack.lang.ThreadInterrupted;
 
@@ -195,6 +217,694 @@ public class CacheTests
 	}
 
 	@Test
+	static public void testConcurrentLoad() throws InterruptedException
+	{
+		final ReadThroughCache cache = new ReadThroughCache();
+		final AtomicInteger loads = new AtomicInteger();
+		final AtomicInteger hits = new AtomicInteger();
+
+		final Loader<String> loader = new Loader<String>()
+		{
+			public String load()
+			{
+				loads.incrementAndGet();
+				try
+				{
+					Thread.sleep( 200 );
+				}
+				catch( InterruptedException e )
+				{
+					throw new ThreadInterrupted();
+				}
+				return "value";
+			}
+		};
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int i = 0; i < 20; i++ )
+		{
+			Thread thread = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for( int j = 0; j < 100; j++ )
+						if( "value".equals( cache.get( loader, "key" ) ) )
+							hits.incrementAndGet();
+				}
+			};
+			thread.start();
+			threads.add( thread );
+		}
+		for( Thread thread : threads )
+			thread.join();
+
+		Assert.assertEquals( loads.get(), 1 );
+		Assert.assertEquals( hits.get(), 2000 );
+	}
+
+	static private class CountingLoader implements Loader<String>
+	{
+		private String value;
+		int loads;
+
+		CountingLoader( String value )
+		{
+			this.value = value;
+		}
+
+		public String load()
+		{
+			this.loads++;
+			return this.value;
+		}
+	}
+
+	@Test
+	static public void testLRU()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setMaxEntries( 3 );
+
+		CountingLoader a = new CountingLoader( "a" );
+		CountingLoader b = new CountingLoader( "b" );
+		cache.get( a, "a" );
+		cache.get( b, "b" );
+		cache.get( new CountingLoader( "c" ), "c" );
+		cache.get( a, "a" );
+		cache.get( new CountingLoader( "d" ), "d" );
+		Assert.assertEquals( cache.size(), 3 );
+
+		cache.get( a, "a" );
+		Assert.assertEquals( a.loads, 1 );
+		cache.get( b, "b" );
+		Assert.assertEquals( b.loads, 2 ); // b was the least recently used
+		Assert.assertEquals( cache.size(), 3 );
+	}
+
+	@Test
+	static public void testMaxWeight()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setWeigher( new ReadThroughCache.Weigher()
+		{
+			public int weigh( Object key, Object value )
+			{
+				return ( (String)value ).length();
+			}
+		} );
+		cache.setMaxWeight( 10 );
+
+		for( int i = 0; i < 10; i++ )
+			cache.get( new CountingLoader( "xxxx" ), i );
+		Assert.assertEquals( cache.size(), 2 );
+	}
+
+	@Test
+	static public void testFailingWeigher()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setWeigher( new ReadThroughCache.Weigher()
+		{
+			public int weigh( Object key, Object value )
+			{
+				if( "negative".equals( value ) )
+					return -1;
+				if( "fail".equals( value ) )
+					throw new IllegalArgumentException( "fail" );
+				return 1;
+			}
+		} );
+		cache.setMaxWeight( 10 );
+		cache.setWaitTimeoutMillis( 10000 );
+
+		for( String value : new String[] { "negative", "fail" } )
+		{
+			try
+			{
+				cache.get( new CountingLoader( value ), value );
+				Assert.fail( "Expected the weigher to fail" );
+			}
+			catch( RuntimeException e )
+			{
+				Assert.assertFalse( e instanceof CacheException );
+			}
+			// The failure is in the cache, nobody waits for a load that never completes
+			try
+			{
+				cache.get( new CountingLoader( value ), value );
+				Assert.fail( "Expected a CacheException" );
+			}
+			catch( CacheException e )
+			{
+				Assert.assertEquals( e.getMessage(), "Previous load failed" );
+			}
+		}
+
+		try
+		{
+			cache.getAll( new BulkLoader<String, String>()
+			{
+				public Map<String, String> load( Set<String> keys )
+				{
+					Map<String, String> result = new HashMap<String, String>();
+					for( String key : keys )
+						result.put( key, key );
+					return result;
+				}
+			}, Arrays.asList( "a", "fail", "b" ) );
+			Assert.fail( "Expected a CacheException" );
+		}
+		catch( CacheException e )
+		{
+			Assert.assertEquals( e.getCause().getMessage(), "fail" );
+		}
+		CountingLoader loader = new CountingLoader( "other" );
+		Assert.assertEquals( cache.get( loader, "a" ), "a" );
+		Assert.assertEquals( cache.get( loader, "b" ), "b" );
+		Assert.assertEquals( loader.loads, 0 );
+	}
+
+	@Test
+	static public void testTinyLFU()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setMaxEntries( 2 );
+		cache.setEvictionPolicy( ReadThroughCache.EvictionPolicy.TINY_LFU );
+
+		CountingLoader a = new CountingLoader( "a" );
+		CountingLoader b = new CountingLoader( "b" );
+		for( int i = 0; i < 5; i++ )
+		{
+			cache.get( a, "a" );
+			cache.get( b, "b" );
+		}
+		for( int i = 0; i < 100; i++ )
+			cache.get( new CountingLoader( "x" ), "x", i );
+
+		cache.get( a, "a" );
+		cache.get( b, "b" );
+		Assert.assertEquals( a.loads, 1 );
+		Assert.assertEquals( b.loads, 1 );
+		Assert.assertEquals( cache.size(), 2 );
+	}
+
+	@Test
+	static public void testRefreshExecutor() throws InterruptedException
+	{
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setBlockingMode( BlockingMode.NONE );
+		cache.setExpirationMillis( 50 );
+		cache.setGracePeriodMillis( 60000 );
+		cache.setMaxPendingRefreshes( 1 );
+		cache.setRefreshExecutor( new Executor()
+		{
+			public void execute( Runnable command )
+			{
+				tasks.add( command );
+			}
+		} );
+
+		CountingLoader a = new CountingLoader( "a" );
+		CountingLoader b = new CountingLoader( "b" );
+		cache.get( a, "a" );
+		cache.get( b, "b" );
+		Thread.sleep( 100 );
+
+		Assert.assertEquals( cache.get( a, "a" ), "a" );
+		Assert.assertEquals( cache.get( a, "a" ), "a" ); // Refresh in progress
+		Assert.assertEquals( cache.get( b, "b" ), "b" ); // Too many refreshes, old value is kept
+		Assert.assertEquals( tasks.size(), 1 );
+
+		tasks.remove( 0 ).run();
+		Assert.assertEquals( a.loads, 2 );
+
+		Assert.assertEquals( cache.get( b, "b" ), "b" ); // Tries again
+		Assert.assertEquals( tasks.size(), 1 );
+		tasks.remove( 0 ).run();
+		Assert.assertEquals( b.loads, 2 );
+	}
+
+	@Test
+	static public void testAsync() throws InterruptedException, ExecutionException
+	{
+		final List<LoadCallback<String>> callbacks = new ArrayList<LoadCallback<String>>();
+		AsyncLoader<String> loader = new AsyncLoader<String>()
+		{
+			public void load( LoadCallback<String> callback )
+			{
+				callbacks.add( callback );
+			}
+		};
+
+		ReadThroughCache cache = new ReadThroughCache();
+		CacheFuture<String> future1 = cache.getAsync( loader, "key" );
+		CacheFuture<String> future2 = cache.getAsync( loader, "key" );
+		Assert.assertSame( future1, future2 );
+		Assert.assertFalse( future1.isDone() );
+		Assert.assertEquals( callbacks.size(), 1 );
+
+		final List<String> completed = new ArrayList<String>();
+		future1.addListener( new CacheFuture.Listener<String>()
+		{
+			public void completed( String value )
+			{
+				completed.add( value );
+			}
+
+			public void failed( Throwable throwable )
+			{
+				Assert.fail();
+			}
+		} );
+
+		callbacks.get( 0 ).loaded( "value" );
+		Assert.assertEquals( completed, Arrays.asList( "value" ) );
+		Assert.assertEquals( future2.get(), "value" );
+		Assert.assertEquals( cache.getAsync( loader, "key" ).get(), "value" );
+		Assert.assertEquals( cache.get( new CountingLoader( "other" ), "key" ), "value" );
+		Assert.assertEquals( callbacks.size(), 1 );
+
+		CacheFuture<String> future3 = cache.getAsync( loader, "fail" );
+		callbacks.get( 1 ).failed( new IllegalStateException( "failed" ) );
+		try
+		{
+			future3.get();
+			Assert.fail( "Expected an ExecutionException" );
+		}
+		catch( ExecutionException e )
+		{
+			Assert.assertEquals( e.getCause().getMessage(), "failed" );
+		}
+	}
+
+	@Test
+	static public void testCacheManager() throws InterruptedException
+	{
+		CacheManager manager = new CacheManager();
+		manager.setMaintenanceIntervalMillis( 3600000 ); // The test runs the maintenance itself
+		manager.setSweepIntervalMillis( 0 );
+		try
+		{
+			ReadThroughCache cache = manager.getReadThroughCache( "readthrough" );
+			Assert.assertSame( manager.getReadThroughCache( "readthrough" ), cache );
+			Assert.assertEquals( cache.getName(), "readthrough" );
+			final AtomicLong time = new AtomicLong( System.currentTimeMillis() );
+			SimpleCache simple = new SimpleCache( "simple" )
+			{
+				@Override
+				protected long getTime()
+				{
+					return time.get();
+				}
+			};
+			manager.manage( simple );
+			Assert.assertSame( manager.getSimpleCache( "simple" ), simple );
+			Assert.assertEquals( manager.getCacheNames().toString(), "[readthrough, simple]" );
+			try
+			{
+				manager.getSimpleCache( "readthrough" );
+				Assert.fail( "Expected an IllegalStateException" );
+			}
+			catch( IllegalStateException e )
+			{
+				// Expected
+			}
+
+			cache.setExpirationMillis( 0 );
+			cache.setGracePeriodMillis( 0 );
+			cache.get( new CountingLoader( "value" ), "key" );
+			simple.put( "value", "key" );
+			Assert.assertEquals( cache.size(), 1 );
+			Thread.sleep( 10 );
+			time.addAndGet( simple.getExpirationMillis() + simple.getPurgeAge() + 1 );
+
+			manager.maintain();
+			Assert.assertEquals( cache.size(), 0 );
+			time.addAndGet( -simple.getPurgeAge() ); // Would be expired, but not purged
+			Assert.assertNull( simple.getEntry( "key" ) );
+			Assert.assertNull( simple.getEntry( "key" ) );
+
+			Assert.assertTrue( manager.release( "simple" ) );
+			Assert.assertFalse( manager.release( "simple" ) );
+			manager.manage( simple );
+		}
+		finally
+		{
+			manager.shutdown();
+		}
+	}
+
+	@Test
+	static public void testGetAll()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		final List<Set<String>> calls = new ArrayList<Set<String>>();
+		BulkLoader<String, String> loader = new BulkLoader<String, String>()
+		{
+			public Map<String, String> load( Set<String> keys )
+			{
+				calls.add( new HashSet<String>( keys ) );
+				Map<String, String> result = new HashMap<String, String>();
+				for( String key : keys )
+					if( !key.equals( "none" ) )
+						result.put( key, key.toUpperCase() );
+				return result;
+			}
+		};
+
+		cache.get( new CountingLoader( "B" ), "b" );
+		Map<String, String> values = cache.getAll( loader, Arrays.asList( "a", "b", "c", "none", "a" ) );
+		Assert.assertEquals( values.keySet().toString(), "[a, b, c, none]" );
+		Assert.assertEquals( values.values().toString(), "[A, B, C, null]" );
+		Assert.assertEquals( calls.size(), 1 );
+		Assert.assertEquals( calls.get( 0 ), new HashSet<String>( Arrays.asList( "a", "c", "none" ) ) );
+
+		values = cache.getAll( loader, Arrays.asList( "c", "d" ) );
+		Assert.assertEquals( values.values().toString(), "[C, D]" );
+		Assert.assertEquals( calls.size(), 2 );
+		Assert.assertEquals( calls.get( 1 ), Collections.singleton( "d" ) );
+		Assert.assertEquals( cache.get( new CountingLoader( "other" ), "none" ), null );
+	}
+
+	@Test
+	static public void testStatistics() throws JMException
+	{
+		CacheManager manager = new CacheManager();
+		manager.setJmxEnabled( true );
+		try
+		{
+			ReadThroughCache cache = manager.getReadThroughCache( "statistics" );
+			cache.setMaxEntries( 2 );
+			cache.get( new CountingLoader( "a" ), "a" );
+			cache.get( new CountingLoader( "a" ), "a" );
+			cache.get( new CountingLoader( "b" ), "b" );
+			cache.get( new CountingLoader( "c" ), "c" );
+			try
+			{
+				cache.get( new Loader<String>()
+				{
+					public String load()
+					{
+						throw new IllegalStateException( "failed" );
+					}
+				}, "d" );
+				Assert.fail( "Expected an IllegalStateException" );
+			}
+			catch( IllegalStateException e )
+			{
+				// Expected
+			}
+
+			CacheStatistics.Snapshot snapshot = cache.getStatistics().snapshot();
+			Assert.assertEquals( snapshot.getHitCount(), 1 );
+			Assert.assertEquals( snapshot.getMissCount(), 4 );
+			Assert.assertEquals( snapshot.getLoadSuccessCount(), 3 );
+			Assert.assertEquals( snapshot.getLoadFailureCount(), 1 );
+			Assert.assertEquals( snapshot.getEvictionCount(), 2 );
+			Assert.assertEquals( snapshot.getSize(), 2 );
+			Assert.assertEquals( snapshot.getHitRatio(), 0.2, 0.0001 );
+			long loads = 0;
+			for( long count : snapshot.getLoadTimeHistogram() )
+				loads += count;
+			Assert.assertEquals( loads, 4 );
+
+			ObjectName name = new ObjectName( "solidstack.cache:type=ReadThroughCache,name=\"statistics\"" );
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Assert.assertEquals( server.getAttribute( name, "MissCount" ), 4L );
+			manager.release( "statistics" );
+			Assert.assertFalse( server.isRegistered( name ) );
+		}
+		finally
+		{
+			manager.shutdown();
+		}
+	}
+
+	@Test
+	static public void testOffHeap()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setMaxEntries( 1 );
+		cache.setOffHeapCapacity( 4 * OffHeapStore.PAGE_SIZE );
+
+		char[] chars = new char[ OffHeapStore.PAGE_SIZE ]; // Serialized takes 2 pages
+		Arrays.fill( chars, 'x' );
+		String large = new String( chars );
+
+		CountingLoader a = new CountingLoader( large );
+		CountingLoader b = new CountingLoader( "b" );
+		cache.get( a, "a" );
+		cache.get( b, "b" );
+		Assert.assertEquals( cache.size(), 1 );
+		Assert.assertEquals( cache.offHeapSize(), 1 );
+
+		Assert.assertEquals( cache.get( a, "a" ), large ); // Promoted, b is demoted
+		Assert.assertEquals( a.loads, 1 );
+		Assert.assertEquals( cache.offHeapSize(), 1 );
+		Assert.assertEquals( cache.get( b, "b" ), "b" );
+		Assert.assertEquals( b.loads, 1 );
+
+		cache.get( new CountingLoader( large ), "c" );
+		cache.get( new CountingLoader( large ), "d" ); // Does not fit, a is dropped
+		Assert.assertEquals( cache.offHeapSize(), 2 );
+		cache.get( a, "a" );
+		Assert.assertEquals( a.loads, 2 );
+	}
+
+	@Test
+	static public void testSnapshot() throws IOException
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.get( new CountingLoader( "a" ), "a", 1 );
+		cache.get( new CountingLoader( "b" ), "b" );
+		cache.get( new CountingLoader( null ), "null" );
+		cache.get( new Loader<Object>()
+		{
+			public Object load()
+			{
+				return new Object(); // Not serializable
+			}
+		}, "object" );
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals( cache.writeSnapshot( out ), 3 );
+
+		ReadThroughCache cache2 = new ReadThroughCache();
+		cache2.get( new CountingLoader( "newer" ), "b" );
+		Assert.assertEquals( cache2.readSnapshot( new ByteArrayInputStream( out.toByteArray() ) ), 2 );
+		CountingLoader loader = new CountingLoader( "other" );
+		Assert.assertEquals( cache2.get( loader, "a", 1 ), "a" );
+		Assert.assertEquals( cache2.get( loader, "b" ), "newer" );
+		Assert.assertEquals( cache2.get( loader, "null" ), null );
+		Assert.assertEquals( loader.loads, 0 );
+
+		ReadThroughCache cache3 = new ReadThroughCache();
+		cache3.setExpirationMillis( 0 ); // Expired entries are not read
+		cache3.setGracePeriodMillis( 0 );
+		Assert.assertEquals( cache3.readSnapshot( new ByteArrayInputStream( out.toByteArray() ) ), 3 );
+		cache.setExpirationMillis( 0 );
+		cache.setGracePeriodMillis( 0 );
+		cache.get( new CountingLoader( "c" ), "c" );
+		out.reset();
+		cache.writeSnapshot( out );
+		Assert.assertEquals( cache3.readSnapshot( new ByteArrayInputStream( out.toByteArray() ) ), 0 );
+
+		File directory = new File( System.getProperty( "java.io.tmpdir" ) );
+		CacheManager manager = new CacheManager();
+		manager.setSnapshotDirectory( directory );
+		manager.getReadThroughCache( "snapshot test" ).get( new CountingLoader( "a" ), "a" );
+		manager.shutdown();
+		File file = new File( directory, "snapshot_0020test.snapshot" );
+		Assert.assertTrue( file.exists() );
+
+		manager = new CacheManager();
+		manager.setSnapshotDirectory( directory );
+		Assert.assertEquals( manager.getReadThroughCache( "snapshot test" ).size(), 1 );
+		manager.setSnapshotDirectory( null );
+		manager.shutdown();
+		file.delete();
+
+		// Names that differ only in characters that are escaped get their own snapshot file
+		String[] names = { "snapshot a b", "snapshot a/b", "snapshot a_b" };
+		manager = new CacheManager();
+		manager.setSnapshotDirectory( directory );
+		for( String name : names )
+			manager.getReadThroughCache( name ).get( new CountingLoader( name ), "key" );
+		manager.shutdown();
+
+		manager = new CacheManager();
+		manager.setSnapshotDirectory( directory );
+		CountingLoader other = new CountingLoader( "other" );
+		for( String name : names )
+			Assert.assertEquals( manager.getReadThroughCache( name ).get( other, "key" ), name );
+		Assert.assertEquals( other.loads, 0 );
+		manager.setSnapshotDirectory( null );
+		manager.shutdown();
+		for( String name : new String[] { "a_0020b", "a_002fb", "a_005fb" } )
+			Assert.assertTrue( new File( directory, "snapshot_0020" + name + ".snapshot" ).delete() );
+
+		// A directory that is not empty can't be replaced, the temporary file must not be left behind
+		File target = new File( directory, "snapshot_test.dir" );
+		File child = new File( target, "child" );
+		target.mkdir();
+		child.createNewFile();
+		File temp = new File( target.getPath() + ".tmp" );
+		try
+		{
+			cache.writeSnapshot( target );
+			Assert.fail( "Expected a FatalIOException" );
+		}
+		catch( FatalIOException e )
+		{
+			Assert.assertFalse( temp.exists() );
+		}
+		finally
+		{
+			child.delete();
+			target.delete();
+		}
+	}
+
+	@Test
+	static public void testEarlyRefresh()
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setExpirationMillis( 10000 );
+		cache.setEarlyRefreshBeta( 1000 );
+		cache.setRefreshExecutor( new Executor()
+		{
+			public void execute( Runnable command )
+			{
+				command.run();
+			}
+		} );
+
+		final AtomicInteger loads = new AtomicInteger();
+		Loader<Integer> loader = new Loader<Integer>()
+		{
+			public Integer load()
+			{
+				try
+				{
+					Thread.sleep( 50 ); // Slow loads are refreshed earlier
+				}
+				catch( InterruptedException e )
+				{
+					throw new ThreadInterrupted();
+				}
+				return loads.incrementAndGet();
+			}
+		};
+
+		Assert.assertEquals( (int)cache.get( loader, "key" ), 1 );
+		for( int i = 0; i < 20; i++ )
+			cache.get( loader, "key" );
+		Assert.assertTrue( loads.get() > 1 );
+		Assert.assertEquals( cache.getStatistics().getMissCount(), 1 );
+		Assert.assertEquals( cache.getStatistics().getBackgroundLoadCount(), loads.get() - 1 );
+
+		cache.setEarlyRefreshBeta( 0 );
+		int count = loads.get();
+		for( int i = 0; i < 20; i++ )
+			cache.get( loader, "key" );
+		Assert.assertEquals( loads.get(), count );
+	}
+
+	@Test
+	static public void testEarlyRefreshJoin() throws InterruptedException
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setExpirationMillis( 200 );
+		cache.setGracePeriodMillis( 10000 );
+		cache.setEarlyRefreshBeta( 1000 );
+		cache.setRefreshExecutor( new Executor()
+		{
+			public void execute( Runnable command )
+			{
+				new Thread( command ).start();
+			}
+		} );
+
+		final AtomicInteger loads = new AtomicInteger();
+		Loader<Integer> loader = new Loader<Integer>()
+		{
+			public Integer load()
+			{
+				int result = loads.incrementAndGet();
+				try
+				{
+					Thread.sleep( result == 1 ? 20 : 400 ); // The refresh takes longer than the expiration
+				}
+				catch( InterruptedException e )
+				{
+					throw new ThreadInterrupted();
+				}
+				return result;
+			}
+		};
+
+		Assert.assertEquals( (int)cache.get( loader, "key" ), 1 );
+		Assert.assertEquals( (int)cache.get( loader, "key" ), 1 ); // Starts the early refresh
+		Thread.sleep( 250 );
+
+		// The entry expired while it is being refreshed, the reload waits for the refresh instead of loading again
+		Assert.assertEquals( (int)cache.get( loader, "key" ), 2 );
+		Assert.assertEquals( loads.get(), 2 );
+	}
+
+	@Test
+	static public void testExpirationJitter() throws InterruptedException
+	{
+		ReadThroughCache cache = new ReadThroughCache();
+		cache.setExpirationMillis( 400 );
+		cache.setGracePeriodMillis( 0 );
+		cache.setExpirationJitter( 1 );
+
+		CountingLoader loader = new CountingLoader( "value" );
+		for( int i = 0; i < 20; i++ )
+			cache.get( loader, i );
+		Thread.sleep( 200 );
+		for( int i = 0; i < 20; i++ )
+			cache.get( loader, i );
+		Assert.assertTrue( loader.loads > 20 ); // Some expired
+		Assert.assertTrue( loader.loads < 40 ); // But not all
+	}
+
+	@Test
+	static public void testCacheKey()
+	{
+		Assert.assertEquals( new CacheKey( "a", 1 ), new CacheKey( "a", 1 ) );
+		Assert.assertEquals( new CacheKey( "a", 1 ).hashCode(), new CacheKey( "a", 1 ).hashCode() );
+		Assert.assertFalse( new CacheKey( "a", 1 ).equals( new CacheKey( "a", "1" ) ) );
+		Assert.assertFalse( new CacheKey( "a;b" ).equals( new CacheKey( "a", "b" ) ) );
+		Assert.assertEquals( new CacheKey( "a", null ), new CacheKey( "a", null ) );
+
+		ReadThroughCache cache = new ReadThroughCache();
+		CountingLoader loader = new CountingLoader( "value" );
+		cache.get( loader, "a", 1 );
+		cache.get( loader, new CacheKey( "a", 1 ) );
+		Assert.assertEquals( loader.loads, 1 );
+		cache.get( loader, "a" );
+		cache.get( loader, new Object[] { "a" } );
+		Assert.assertEquals( loader.loads, 2 );
+		cache.get( loader, (Object)null );
+		cache.get( loader, new Object[] { null } );
+		Assert.assertEquals( loader.loads, 3 );
+		Assert.assertEquals( cache.size(), 3 );
+
+		SimpleCache simple = new SimpleCache();
+		simple.put( "value", "a", 1 );
+		Assert.assertEquals( simple.get( new CacheKey( "a", 1 ) ), "value" );
+		simple.put( "value2", 2 );
+		Assert.assertEquals( simple.get( 2 ), "value2" );
+		Assert.assertNull( simple.get( "2" ) );
+	}
+
+	@Test
+	@SuppressWarnings( "deprecation" )
 	static public void testKey()
 	{
 		Assert.assertEquals( ReadThroughCache.buildKey( "test", "test" ), "test;test" );
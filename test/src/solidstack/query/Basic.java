@@ -16,13 +16,26 @@
 
 package solidstack.query;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -284,6 +297,355 @@ public class Basic
 //		out.close();
 	}
 
+	@Test
+	public void testSQLShapes() throws Exception
+	{
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		Query query = queries.getQuery( "bigin.sql" );
+
+		Map< String, Object > params = new HashMap< String, Object >();
+		params.put( "names", Arrays.asList( new String[] { "SYSTABLES", "SYSCOLUMNS" } ) );
+		PreparedSQL sql = query.getPreparedSQL( params );
+		Assert.assertEquals( sql.getSQL(), "SELECT *\n" +
+				"FROM SYS.SYSTABLES\n" +
+				"WHERE TABLENAME IN ( ?,? )\n" );
+
+		// Same shape, other values
+		params.put( "names", Arrays.asList( new String[] { "SYSCOLUMNS", "SYSTABLES" } ) );
+		PreparedSQL sql2 = query.getPreparedSQL( params );
+		Assert.assertSame( sql2.getSQL(), sql.getSQL() );
+		Assert.assertEquals( sql2.getParameters(), Arrays.asList( new Object[] { "SYSCOLUMNS", "SYSTABLES" } ) );
+
+		// Other shape
+		params.put( "names", Arrays.asList( new String[] { "SYSTABLES" } ) );
+		sql2 = query.getPreparedSQL( params );
+		Assert.assertEquals( sql2.getSQL(), "SELECT *\n" +
+				"FROM SYS.SYSTABLES\n" +
+				"WHERE TABLENAME IN ( ? )\n" );
+	}
+
+	@Test
+	public void testStatementCache() throws SQLException, ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		queries.setStatementCacheSize( 2 );
+
+		Query query = queries.getQuery( "test.sql" );
+		Assert.assertEquals( query.listOfArrays( connection, new Pars( "prefix", "SYST" ) ).size(), 3 );
+		Assert.assertEquals( query.listOfArrays( connection, new Pars( "prefix", "SYST" ) ).size(), 3 );
+		Assert.assertEquals( StatementCache.size( connection ), 1 );
+
+		query.listOfArrays( connection, new Pars( "name", "SYSTABLES" ) );
+		query.listOfArrays( connection, new Pars( "name", "SYSTABLES", "prefix", "SYST" ) );
+		Assert.assertEquals( StatementCache.size( connection ), 2 );
+
+		StatementCache.release( connection );
+		Assert.assertEquals( StatementCache.size( connection ), 0 );
+		connection.close();
+	}
+
+	@Test
+	public void testUpdateBatch() throws SQLException, ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+		Statement statement = connection.createStatement();
+		statement.executeUpdate( "CREATE TABLE BATCHTEST ( ID INTEGER, NAME VARCHAR(10), DESCRIPTION VARCHAR(10) )" );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		Query query = queries.getQuery( "insert.sql" );
+
+		List< Pars > rows = new ArrayList< Pars >();
+		for( int i = 1; i <= 5; i++ )
+			rows.add( new Pars( "id", i, "name", "name" + i, "description", i == 3 ? "third" : null ) );
+
+		// The third row has other SQL, so the batches are: 1 and 2, 3, 4 and 5
+		int[] counts = query.updateBatch( connection, rows, 2 );
+		Assert.assertEquals( counts.length, 5 );
+		for( int count : counts )
+			Assert.assertEquals( count, 1 );
+
+		ResultSet result = statement.executeQuery( "SELECT COUNT(*), COUNT(DESCRIPTION) FROM BATCHTEST" );
+		Assert.assertTrue( result.next() );
+		Assert.assertEquals( result.getInt( 1 ), 5 );
+		Assert.assertEquals( result.getInt( 2 ), 1 );
+		result.close();
+
+		statement.executeUpdate( "DROP TABLE BATCHTEST" );
+		statement.close();
+	}
+
+	@Test
+	public void testStreaming() throws SQLException, ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		Query query = queries.getQuery( "test.sql" );
+		query.setFetchSize( 2 );
+
+		RowIterator rows = query.rowIterator( connection, new Pars( "prefix", "SYST" ) );
+		int index = rows.getColumnLabelMap().get( "tablename" );
+		int count = 0;
+		while( rows.hasNext() )
+		{
+			Assert.assertTrue( ( (String)rows.next()[ index ] ).startsWith( "SYST" ) );
+			count++;
+		}
+		Assert.assertEquals( count, 3 );
+		Assert.assertFalse( rows.hasNext() );
+		rows.close();
+
+		final List< Object[] > result = new ArrayList< Object[] >();
+		query.forEach( connection, new Pars( "prefix", "SYST" ), new RowHandler()
+		{
+			public void handleRow( Object[] row )
+			{
+				result.add( row );
+			}
+		} );
+		Assert.assertEquals( result.size(), 3 );
+	}
+
+	@Test
+	public void testColumnar() throws SQLException, ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+		Statement statement = connection.createStatement();
+		statement.executeUpdate( "CREATE TABLE COLUMNARTEST ( I INTEGER, L BIGINT, D DOUBLE, S VARCHAR(10), T TIMESTAMP )" );
+		statement.executeUpdate( "INSERT INTO COLUMNARTEST VALUES ( 1, 10000000000, 1.5, 'a', CURRENT_TIMESTAMP ), ( NULL, NULL, NULL, NULL, NULL ), ( 3, 3, 3, 'a', NULL )" );
+
+		ColumnarResultList columnar = new ColumnarResultList( statement.executeQuery( "SELECT * FROM COLUMNARTEST" ) );
+		List< Map< String, Object > > expected = Query.listOfMaps( statement.executeQuery( "SELECT * FROM COLUMNARTEST" ), false );
+		Assert.assertEquals( columnar.size(), 3 );
+		for( int i = 0; i < 3; i++ )
+			for( String name : new String[] { "I", "l", "D", "s", "T" } )
+				Assert.assertEquals( columnar.get( i ).get( name ), expected.get( i ).get( name ) );
+		Assert.assertEquals( columnar.get( 0 ).get( "i" ), 1 );
+		Assert.assertEquals( columnar.get( 0 ).get( "l" ), 10000000000L );
+		Assert.assertNull( columnar.get( 1 ).get( "d" ) );
+		Assert.assertSame( columnar.get( 2 ).get( "s" ), columnar.get( 0 ).get( "s" ) );
+		Assert.assertTrue( columnar.get( 2 ).equals( expected.get( 2 ) ) );
+
+		statement.executeUpdate( "DROP TABLE COLUMNARTEST" );
+		statement.close();
+	}
+
+	@Test
+	public void testColumnInterner()
+	{
+		ColumnInterner interner = new ColumnInterner();
+		String a = (String)interner.intern( new String( "a" ) );
+		interner.intern( new String( "b" ) );
+		Assert.assertSame( interner.intern( new String( "a" ) ), a );
+		Long l = (Long)interner.intern( new Long( 10000 ) );
+		Assert.assertSame( interner.intern( new Long( 10000 ) ), l );
+		Assert.assertNotSame( interner.intern( new Integer( 10000 ) ), l );
+		Assert.assertNull( interner.intern( null ) );
+
+		// A column with only distinct values is not deduplicated after the sample
+		interner = new ColumnInterner();
+		for( int i = 0; i < 1000; i++ )
+			interner.intern( "value" + i );
+		a = (String)interner.intern( new String( "a" ) );
+		interner.intern( new String( "b" ) );
+		Assert.assertNotSame( interner.intern( new String( "a" ) ), a );
+	}
+
+	static public enum TableType { S, T, V }
+
+	static public class Table
+	{
+		private String name;
+		public TableType tableType;
+		int count = -1;
+
+		public void setTableName( String name )
+		{
+			this.name = name;
+		}
+	}
+
+	@Test
+	public void testBeans() throws SQLException, ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		Query query = queries.getQuery( "test.sql" );
+
+		List< Table > tables = query.list( connection, new Pars( "prefix", "SYST" ), Table.class );
+		Assert.assertEquals( tables.size(), 3 );
+		for( Table table : tables )
+		{
+			Assert.assertTrue( table.name.startsWith( "SYST" ) );
+			Assert.assertEquals( table.tableType, TableType.S );
+			Assert.assertEquals( table.count, -1 );
+		}
+
+		Statement statement = connection.createStatement();
+		ResultSet result = statement.executeQuery( "SELECT TABLENAME AS TABLE_NAME, CAST( 5 AS BIGINT ) AS COUNT, CAST( NULL AS CHAR ) AS TABLETYPE FROM SYS.SYSTABLES WHERE TABLENAME = 'SYSTABLES'" );
+		tables = BeanMapper.get( Table.class ).list( result );
+		Assert.assertEquals( tables.size(), 1 );
+		Assert.assertEquals( tables.get( 0 ).name, "SYSTABLES" );
+		Assert.assertEquals( tables.get( 0 ).count, 5 );
+		Assert.assertNull( tables.get( 0 ).tableType );
+
+		// Labels that contain a comma get their own plan
+		result = statement.executeQuery( "SELECT TABLENAME AS \"TABLE_NAME,COUNT,TABLETYPE\" FROM SYS.SYSTABLES WHERE TABLENAME = 'SYSTABLES'" );
+		tables = BeanMapper.get( Table.class ).list( result );
+		Assert.assertEquals( tables.size(), 1 );
+		Assert.assertNull( tables.get( 0 ).name );
+		Assert.assertEquals( tables.get( 0 ).count, -1 );
+
+		result = statement.executeQuery( "SELECT CAST( 3.0 AS DECIMAL( 5, 1 ) ) AS COUNT FROM SYS.SYSTABLES WHERE TABLENAME = 'SYSTABLES'" );
+		Assert.assertEquals( BeanMapper.get( Table.class ).list( result ).get( 0 ).count, 3 );
+		for( String count : new String[] { "CAST( 10000000000 AS BIGINT )", "CAST( 3.7 AS DECIMAL( 5, 1 ) )" } )
+		{
+			result = statement.executeQuery( "SELECT " + count + " AS COUNT FROM SYS.SYSTABLES WHERE TABLENAME = 'SYSTABLES'" );
+			try
+			{
+				BeanMapper.get( Table.class ).list( result );
+				Assert.fail( "Expected a QueryException" );
+			}
+			catch( QueryException e )
+			{
+				Assert.assertTrue( e.getMessage().contains( "without loss" ) );
+			}
+		}
+		statement.close();
+	}
+
+	@Test
+	public void testParallel() throws ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		EmbeddedDataSource dataSource = new EmbeddedDataSource();
+		dataSource.setDatabaseName( "memory:test" );
+		dataSource.setCreateDatabase( "create" );
+		dataSource.setUser( "app" );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		Query query = queries.getQuery( "test.sql" );
+
+		ExecutorService executor = Executors.newFixedThreadPool( 3 );
+		ParallelQueryExecutor parallel = new ParallelQueryExecutor( dataSource, executor );
+		parallel.setTimeout( 1, TimeUnit.MINUTES );
+
+		List< ParallelQueryExecutor.Task > tasks = new ArrayList< ParallelQueryExecutor.Task >();
+		tasks.add( parallel.newTask( query, new Pars( "prefix", "SYST" ) ) );
+		tasks.add( parallel.newTask( query, new Pars( "name", "SYSTABLES" ) ) );
+		tasks.add( parallel.newTask( query, new Pars( "names", new String[] { "SYSTABLES", "SYSCOLUMNS" } ) ) );
+		List< List< Map< String, Object > > > results = parallel.listOfMaps( tasks );
+		Assert.assertEquals( results.size(), 3 );
+		Assert.assertEquals( results.get( 0 ).size(), 3 );
+		Assert.assertEquals( results.get( 1 ).size(), 1 );
+		Assert.assertEquals( results.get( 2 ).size(), 2 );
+
+		// The quote in the prefix makes the SQL invalid, only the second query fails
+		tasks.set( 1, parallel.newTask( query, new Pars( "prefix", "SYST' AND ERROR" ) ) );
+		try
+		{
+			parallel.listOfMaps( tasks );
+			Assert.fail( "Expected a ParallelQueryException" );
+		}
+		catch( ParallelQueryException e )
+		{
+			Assert.assertEquals( e.getFailures().keySet().toString(), "[1]" );
+			Assert.assertTrue( e.getFailures().get( 1 ) instanceof QuerySQLException );
+			Assert.assertEquals( e.getResults().get( 0 ).size(), 3 );
+			Assert.assertNull( e.getResults().get( 1 ) );
+			Assert.assertEquals( e.getResults().get( 2 ).size(), 2 );
+		}
+
+		executor.shutdown();
+	}
+
+	@Test
+	public void testStatistics() throws SQLException, ClassNotFoundException, JMException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		queries.setJmxEnabled( true );
+
+		Query query = queries.getQuery( "test.sql" );
+		query.listOfMaps( connection, new Pars( "prefix", "SYST" ) );
+		RowIterator rows = queries.getQuery( "test.sql" ).rowIterator( connection, new Pars( "name", "SYSTABLES" ) );
+		while( rows.hasNext() )
+			rows.next();
+		try
+		{
+			query.listOfMaps( connection, new Pars( "prefix", "SYST' AND ERROR" ) );
+			Assert.fail( "Expected a QuerySQLException" );
+		}
+		catch( QuerySQLException e )
+		{
+			// Expected
+		}
+
+		// The queries with the same path share their statistics
+		QueryStatistics statistics = queries.getStatistics( "test.sql" );
+		Assert.assertSame( query.getStatistics(), statistics );
+		Assert.assertEquals( statistics.getExecutionCount(), 3 );
+		Assert.assertEquals( statistics.getFailureCount(), 1 );
+		Assert.assertEquals( statistics.getRowCount(), 4 );
+		Assert.assertEquals( sum( statistics.getPrepareTimeHistogram() ), 2 );
+		Assert.assertEquals( sum( statistics.getExecuteTimeHistogram() ), 2 );
+		Assert.assertEquals( sum( statistics.getFetchTimeHistogram() ), 2 );
+		Assert.assertTrue( statistics.getExecuteTimePercentileMicros( 50 ) <= statistics.getExecuteTimePercentileMicros( 100 ) );
+
+		// A failing row handler fails the execution
+		try
+		{
+			query.forEach( connection, new Pars( "prefix", "SYST" ), new RowHandler()
+			{
+				public void handleRow( Object[] row )
+				{
+					throw new IllegalStateException( "handler failed" );
+				}
+			} );
+			Assert.fail( "Expected an IllegalStateException" );
+		}
+		catch( IllegalStateException e )
+		{
+			Assert.assertEquals( e.getMessage(), "handler failed" );
+		}
+		Assert.assertEquals( statistics.getExecutionCount(), 4 );
+		Assert.assertEquals( statistics.getFailureCount(), 2 );
+		Assert.assertEquals( statistics.getRowCount(), 4 );
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName( "solidstack.query:type=Query,name=\"test.sql\"" );
+		Assert.assertEquals( server.getAttribute( name, "ExecutionCount" ), 4L );
+		queries.setJmxEnabled( false );
+		Assert.assertFalse( server.isRegistered( name ) );
+
+		connection.close();
+	}
+
+	static private long sum( long[] histogram )
+	{
+		long result = 0;
+		for( long count : histogram )
+			result += count;
+		return result;
+	}
+
 	@Test
 	public void testInJar() throws SQLException, ClassNotFoundException
 	{
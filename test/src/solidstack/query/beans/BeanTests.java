@@ -0,0 +1,65 @@
+/*--
+ * Copyright 2012 Ren M. de Bloois
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package solidstack.query.beans;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import solidstack.query.Query;
+import solidstack.query.QueryLoader;
+import solidstack.util.Pars;
+
+
+/**
+ * Beans in another package than the BeanMapper, which can't access them without reflection tricks.
+ */
+@SuppressWarnings( "javadoc" )
+public class BeanTests
+{
+	static private class Table
+	{
+		String name;
+
+		public void setTableName( String name )
+		{
+			this.name = name;
+		}
+	}
+
+	@Test
+	public void testPrivateBean() throws SQLException, ClassNotFoundException
+	{
+		Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+		Connection connection = DriverManager.getConnection( "jdbc:derby:memory:test;create=true", "app", null );
+
+		QueryLoader queries = new QueryLoader();
+		queries.setTemplatePath( "classpath:/solidstack/query" );
+		Query query = queries.getQuery( "test.sql" );
+
+		List< Table > tables = query.list( connection, new Pars( "prefix", "SYST" ), Table.class );
+		Assert.assertEquals( tables.size(), 3 );
+		for( Table table : tables )
+			Assert.assertTrue( table.name.startsWith( "SYST" ) );
+
+		connection.close();
+	}
+}
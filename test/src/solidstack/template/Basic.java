@@ -16,8 +16,15 @@
 
 package solidstack.template;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -229,4 +236,35 @@ public class Basic
 	{
 		test_( "\n<!DOCTYPE html><%-- An HTML 5 page --%>\n<html>", "<!DOCTYPE html>\n<html>" );
 	}
+
+	@Test
+	public void testConcurrentCompilation() throws Exception
+	{
+		final TemplateLoader templates = new TemplateLoader();
+		templates.setTemplatePath( "classpath:/solidstack/template" );
+
+		final CountDownLatch start = new CountDownLatch( 1 );
+		ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		List< Future< Template > > futures = new ArrayList< Future< Template > >();
+		for( int i = 0; i < 16; i++ )
+		{
+			final String path = i % 2 == 0 ? "test.txt" : "test.xml";
+			futures.add( executor.submit( new Callable< Template >()
+			{
+				public Template call() throws Exception
+				{
+					start.await();
+					return templates.getTemplate( path );
+				}
+			} ) );
+		}
+		start.countDown();
+
+		// Every path is compiled only once
+		Template txt = templates.getTemplate( "test.txt" );
+		Template xml = templates.getTemplate( "test.xml" );
+		for( int i = 0; i < futures.size(); i++ )
+			Assert.assertSame( futures.get( i ).get(), i % 2 == 0 ? txt : xml );
+		executor.shutdown();
+	}
 }
@@ -16,6 +16,10 @@
 
 package solidstack.template;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 import org.codehaus.groovy.control.CompilationUnit;
@@ -24,6 +28,10 @@ import org.codehaus.groovy.tools.GroovyClass;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import solidstack.io.Resource;
+import solidstack.io.Resources;
+import solidstack.util.Pars;
+
 
 @SuppressWarnings( "javadoc" )
 public class GroovyCompilerTests
@@ -42,4 +50,65 @@ public class GroovyCompilerTests
 		Class< ? > clas = loader.defineClass( cls.getName(), cls.getBytes() );
 		clas.newInstance();
 	}
+
+	@Test
+	public void testClassCache() throws IOException
+	{
+		File folder = File.createTempFile( "classes", "" );
+		folder.delete();
+
+		TemplateLoader templates = new TemplateLoader();
+		templates.setTemplatePath( "classpath:/solidstack/template" );
+		templates.setClassCacheFolder( folder );
+		String result = templates.getTemplate( "test.txt" ).apply( new Pars( "names", new String[] { "name1" } ) );
+
+		File[] files = folder.listFiles();
+		Assert.assertEquals( files.length, 1 );
+		Assert.assertTrue( files[ 0 ].getName().startsWith( "test.txt-" ) );
+		long modified = files[ 0 ].lastModified();
+
+		// A new loader uses the cached classes
+		templates = new TemplateLoader();
+		templates.setTemplatePath( "classpath:/solidstack/template" );
+		templates.setClassCacheFolder( folder );
+		Assert.assertEquals( templates.getTemplate( "test.txt" ).apply( new Pars( "names", new String[] { "name1" } ) ), result );
+
+		files = folder.listFiles();
+		Assert.assertEquals( files.length, 1 );
+		Assert.assertEquals( files[ 0 ].lastModified(), modified );
+
+		// Paths that only differ in special characters keep their own cache files
+		Resource resource = Resources.getResource( "classpath:/solidstack/template/test.txt.slt" );
+		templates.defineTemplate( "a/b", resource );
+		templates.defineTemplate( "a_b", resource );
+		Assert.assertEquals( folder.listFiles().length, 3 );
+
+		// A damaged cache file is replaced, a huge class count or an invalid class must not break the template
+		for( int damage = 0; damage < 2; damage++ )
+		{
+			DataOutputStream out = new DataOutputStream( new FileOutputStream( files[ 0 ] ) );
+			out.writeInt( 0x53534743 );
+			if( damage == 0 )
+				out.writeInt( Integer.MAX_VALUE );
+			else
+			{
+				out.writeInt( 1 );
+				out.writeUTF( "Broken" );
+				out.writeInt( 4 );
+				out.writeInt( 0 );
+			}
+			out.close();
+			long damaged = files[ 0 ].length();
+
+			templates = new TemplateLoader();
+			templates.setTemplatePath( "classpath:/solidstack/template" );
+			templates.setClassCacheFolder( folder );
+			Assert.assertEquals( templates.getTemplate( "test.txt" ).apply( new Pars( "names", new String[] { "name1" } ) ), result );
+			Assert.assertTrue( files[ 0 ].length() > damaged );
+		}
+
+		for( File file : folder.listFiles() )
+			file.delete();
+		folder.delete();
+	}
 }
@@ -16,10 +16,13 @@
 
 package solidstack.template;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
+import java.util.Map;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -97,4 +100,121 @@ public class Reload
 		template2 = templates.getTemplate( "dummy" );
 		Assert.assertTrue( template != template2 );
 	}
+
+	@Test
+	public void testNotFound() throws IOException
+	{
+		File folder = File.createTempFile( "templates", "" );
+		folder.delete();
+		folder.mkdir();
+
+		TemplateLoader templates = new TemplateLoader();
+		templates.setTemplatePath( folder.toURI().toString() );
+		templates.setDefaultLanguage( "javascript" );
+		templates.setMaxNotFound( 1 );
+
+		assertNotFound( templates, "a" );
+		assertNotFound( templates, "b" );
+
+		for( String name : new String[] { "a", "b" } )
+		{
+			OutputStream out = new FileOutputStream( new File( folder, name + ".slt" ) );
+			out.write( "<%@template version=\"1.0\"%>test".getBytes() );
+			out.close();
+		}
+
+		// a has been pushed out of the not found cache by b
+		Assert.assertNotNull( templates.getTemplate( "a" ) );
+		assertNotFound( templates, "b" );
+
+		templates.setNotFoundMillis( 0 );
+		Assert.assertNotNull( templates.getTemplate( "b" ) );
+
+		for( File file : folder.listFiles() )
+			file.delete();
+		folder.delete();
+	}
+
+	static private void assertNotFound( TemplateLoader templates, String path )
+	{
+		try
+		{
+			templates.getTemplate( path );
+			Assert.fail( "Expected a TemplateNotFoundException" );
+		}
+		catch( TemplateNotFoundException e )
+		{
+			Assert.assertTrue( e.getMessage().endsWith( path + ".slt not found" ), e.getMessage() );
+		}
+	}
+
+	@Test
+	public void testBackgroundReloading() throws Exception
+	{
+		File folder = File.createTempFile( "templates", "" );
+		folder.delete();
+		folder.mkdir();
+		File file = new File( folder, "test.slt" );
+		OutputStream out = new FileOutputStream( file );
+		out.write( "<%@template version=\"1.0\"%>test".getBytes() );
+		out.close();
+
+		TemplateLoader templates = new TemplateLoader();
+		templates.setTemplatePath( folder.toURI().toString() );
+		templates.setDefaultLanguage( "javascript" );
+		templates.setReloading( true );
+		templates.setReloadInterval( 10 );
+
+		Template template = templates.getTemplate( "test" );
+		Assert.assertSame( templates.getTemplate( "test" ), template );
+
+		file.setLastModified( file.lastModified() + 10000 );
+		long stop = System.currentTimeMillis() + 5000;
+		Template template2 = template;
+		while( template2 == template && System.currentTimeMillis() < stop )
+		{
+			Thread.sleep( 10 );
+			template2 = templates.getTemplate( "test" );
+		}
+		Assert.assertNotSame( template2, template );
+
+		templates.setReloadInterval( 0 );
+		file.delete();
+		folder.delete();
+	}
+
+	@Test
+	public void testPrecompileAll() throws IOException
+	{
+		File folder = File.createTempFile( "templates", "" );
+		folder.delete();
+		new File( folder, "sub" ).mkdirs();
+		String[] names = { "a.slt", "sub/b.slt", "bad.slt", "c.txt" };
+		String[] sources = { "test", "test", "<% if( %>", "test" };
+		for( int i = 0; i < names.length; i++ )
+		{
+			OutputStream out = new FileOutputStream( new File( folder, names[ i ] ) );
+			out.write( ( "<%@template version=\"1.0\"%>" + sources[ i ] ).getBytes() );
+			out.close();
+		}
+
+		TemplateLoader templates = new TemplateLoader();
+		templates.setTemplatePath( folder.toURI().toString() );
+		templates.setDefaultLanguage( "javascript" );
+
+		Map< String, Throwable > failures = templates.precompileAll();
+		Assert.assertEquals( failures.keySet().toString(), "[bad]" );
+
+		// The templates are not compiled again
+		templates.setNotFoundMillis( 0 );
+		new File( folder, "a.slt" ).delete();
+		new File( folder, "sub/b.slt" ).delete();
+		Assert.assertNotNull( templates.getTemplate( "a" ) );
+		Assert.assertNotNull( templates.getTemplate( "sub/b" ) );
+
+		new File( folder, "bad.slt" ).delete();
+		new File( folder, "c.txt" ).delete();
+		new File( folder, "sub" ).delete();
+		folder.delete();
+	}
 }